@@ -1,9 +1,9 @@
 #include <jni.h>
 #include "com_tstordyallison_ffmpegmr_Demuxer.h"
 #include "SharedUtil.h"
-#include <map>
 #include <algorithm>
 #include <cstdlib>
+#include <climits>
 
 using namespace std;
 
@@ -17,7 +17,6 @@ extern "C" {
 }
 
 
-#define STREAM_BUFFER_SIZE 4096
 #define DEBUG_PRINT_CRAZY 0
 
 struct InputStreamOpaque{
@@ -25,6 +24,38 @@ struct InputStreamOpaque{
     jobject obj;
     jobject stream;
     long length;
+    
+    // Resolved once in initDemuxWithStream.
+    jmethodID read_bytes;       // read([BII)I
+    jmethodID read_buffer;      // read(Ljava/nio/ByteBuffer;)I - NULL if the stream can't do ByteBuffer reads.
+    jmethodID seek;
+    jmethodID getpos;
+    jmethodID buffer_clear;
+    jmethodID buffer_position;
+    jmethodID buffer_limit;
+    
+    jbyteArray read_array;      // Reusable copy buffer for streams without ByteBuffer reads (global ref).
+    jobject   direct_buffer;    // Reusable direct ByteBuffer over the AVIO buffer (global ref).
+    uint8_t   *direct_base;     // The AVIO buffer direct_buffer covers.
+    int       direct_capacity;
+    AVIOContext *pb;            // To follow the AVIO buffer if libavformat replaces it.
+    int       buffer_size;
+};
+
+// One stream's chunk being built in native memory: the stream header followed by the packet TPLs.
+struct ChunkAssembly {
+    uint8_t *data;
+    size_t  size;
+    size_t  capacity;
+    size_t  header_size;
+    jlong   block_size;
+    
+    int     count;
+    int     pkt_capacity;
+    jlong   *ts;
+    jlong   *durations;
+    size_t  *offsets;
+    int     end_marker;     // The last keyframe (the start of the next chunk), or -1.
 };
 
 struct DemuxState {
@@ -43,10 +74,26 @@ struct DemuxState {
     int stream_io; 
     uint8_t *stream_buffer;
     InputStreamOpaque stream_info;
+    int     used_probed_headers; // The headers passed to initDemuxWithStream were used instead of probing.
    
     long pts_offset;
     long pts_last;
     
+    int     pkt_pending;    // state->pkt has been read but not handed to Java yet.
+    int     batch_capacity;
+    jint    *batch_stream_ids;
+    jlong   *batch_ts;
+    jlong   *batch_durations;
+    jboolean *batch_split_points;
+    jint    *batch_offsets;
+    jint    *batch_lengths;
+    jlong   *batch_positions;
+    
+    ChunkAssembly *assembly;    // Per stream, NULL unless startChunkAssembly was called.
+    int     assembly_flush;     // Next stream to empty once we hit the end of the file (-1 until then).
+    int     assembly_ready;     // Stream with a chunk waiting for takeChunkImpl (-1 if none).
+    int     assembly_ready_end; // The number of packets in that chunk.
+    
     DemuxState(){
         this->fmt_ctx = NULL;
         av_init_packet(&pkt);
@@ -63,33 +110,46 @@ struct DemuxState {
         
         this->stream_io = 0;
         this->stream_buffer = NULL;
-        this->stream_info.stream = NULL;
+        memset(&this->stream_info, 0, sizeof(InputStreamOpaque));
+        this->used_probed_headers = 0;
+        
+        this->pkt_pending = 0;
+        this->batch_capacity = 0;
+        this->batch_stream_ids = NULL;
+        this->batch_ts = NULL;
+        this->batch_durations = NULL;
+        this->batch_split_points = NULL;
+        this->batch_offsets = NULL;
+        this->batch_lengths = NULL;
+        this->batch_positions = NULL;
+        
+        this->assembly = NULL;
+        this->assembly_flush = -1;
+        this->assembly_ready = -1;
+        this->assembly_ready_end = 0;
     }
 };
 
 class DemuxTracker {
     
 private:
-    map<int, DemuxState*> objectRegister; // Object register.
+    NativeHandleTracker<DemuxState> handles; // State lives in Demuxer.nativeHandle.
     
 public:
     DemuxState *getObjectState(JNIEnv *env, jobject obj)
     {
-        int hashCode = getHashCode(env, obj);
-        if(objectRegister.find(hashCode) != objectRegister.end())
+        DemuxState *state = handles.getState(env, obj);
+        if(state != NULL)
         {
-            DemuxState *state = objectRegister[hashCode];
             state->stream_info.env = env;
             state->stream_info.obj = obj;
-            return state;
         }
-        return NULL;
+        return state;
     };
     
     void registerObjectState(JNIEnv *env, jobject obj, DemuxState *objstate)
     {
-        int hashCode = getHashCode(env, obj);
-        objectRegister[hashCode] = objstate;
+        handles.setState(env, obj, objstate);
     };
     
     void unregisterObjectState(JNIEnv *env, jobject obj)
@@ -119,26 +179,54 @@ public:
             if(state->stream_data_sizes != NULL)
                 delete[] state->stream_data_sizes;
             
+            // Free any packet still waiting for a batch, and the batch metadata.
+            if(state->pkt_pending)
+                av_free_packet(&state->pkt);
+            delete[] state->batch_stream_ids;
+            delete[] state->batch_ts;
+            delete[] state->batch_durations;
+            delete[] state->batch_split_points;
+            delete[] state->batch_offsets;
+            delete[] state->batch_lengths;
+            delete[] state->batch_positions;
+            
+            // Free any chunks still being assembled.
+            if(state->assembly != NULL)
+            {
+                for(int i = 0; i < state->stream_count; i++)
+                {
+                    free(state->assembly[i].data);
+                    free(state->assembly[i].ts);
+                    free(state->assembly[i].durations);
+                    free(state->assembly[i].offsets);
+                }
+                delete[] state->assembly;
+            }
+            
             // Free streaming state.
             if(state->stream_io)
             {
-                // IO Context.
+                // IO Context (libavformat may have swapped the buffer for a new one, so free whatever it has now).
                 if(state->stream_buffer != NULL){
+                    av_free(state->fmt_ctx->pb->buffer);
                     av_free(state->fmt_ctx->pb);
                 }
                 
-                // Remove the stream ref
+                // Remove the stream refs.
                 if(state->stream_info.stream != NULL)
                     env->DeleteGlobalRef(state->stream_info.stream); 
+                if(state->stream_info.read_array != NULL)
+                    env->DeleteGlobalRef(state->stream_info.read_array);
+                if(state->stream_info.direct_buffer != NULL)
+                    env->DeleteGlobalRef(state->stream_info.direct_buffer);
             }
             
             // Close the format context
             if(state->fmt_ctx != NULL)
                 avformat_close_input(&state->fmt_ctx);
             
-            // Remove the state from the map.
-            int hashCode = getHashCode(env, obj);
-            objectRegister.erase(hashCode);
+            // Clear the handle.
+            handles.setState(env, obj, NULL);
             
             // Free the state.
             delete state;
@@ -320,21 +408,105 @@ JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_initDemuxWithFil
     return ret;
 }
 
+/*
+ * Points direct_buffer at the AVIO buffer (it can be replaced by libavformat, e.g. when it grows it after probing).
+ */
+static int set_direct_buffer(JNIEnv *env, InputStreamOpaque *info, uint8_t *base, int capacity){
+    jobject direct_buffer = env->NewDirectByteBuffer(base, capacity);
+    if(direct_buffer == NULL){
+        env->ExceptionClear();
+        return -1;
+    }
+    if(info->direct_buffer != NULL)
+        env->DeleteGlobalRef(info->direct_buffer);
+    info->direct_buffer = env->NewGlobalRef(direct_buffer);
+    env->DeleteLocalRef(direct_buffer);
+    info->direct_base = base;
+    info->direct_capacity = capacity;
+    return 0;
+}
+
+/*
+ * A direct ByteBuffer with its position and limit around buf[0..buf_size), for the stream to read straight into. This
+ * is the reusable one over the AVIO buffer when buf is in it (nearly always). avio_read can also ask for a large read
+ * straight into the caller's memory, which gets a new buffer that the caller has to delete (*temp is set).
+ */
+static jobject direct_buffer_over(JNIEnv *env, InputStreamOpaque *info, uint8_t *buf, int buf_size, int *temp){
+    AVIOContext *pb = info->pb;
+    if(pb != NULL && (pb->buffer != info->direct_base || pb->buffer_size != info->direct_capacity) && 
+       buf >= pb->buffer && buf + buf_size <= pb->buffer + pb->buffer_size)
+        set_direct_buffer(env, info, pb->buffer, pb->buffer_size);
+    
+    jobject direct_buffer;
+    int offset;
+    *temp = 0;
+    if(info->direct_buffer != NULL && buf >= info->direct_base && buf + buf_size <= info->direct_base + info->direct_capacity){
+        direct_buffer = info->direct_buffer;
+        offset = (int)(buf - info->direct_base);
+    }
+    else{
+        direct_buffer = env->NewDirectByteBuffer(buf, buf_size);
+        if(direct_buffer == NULL){
+            env->ExceptionClear();
+            return NULL;
+        }
+        offset = 0;
+        *temp = 1;
+    }
+    
+    // These return the buffer itself, as a new local ref each time (so drop them, or they pile up in long native calls).
+    env->DeleteLocalRef(env->CallObjectMethod(direct_buffer, info->buffer_clear));
+    env->DeleteLocalRef(env->CallObjectMethod(direct_buffer, info->buffer_position, offset));
+    env->DeleteLocalRef(env->CallObjectMethod(direct_buffer, info->buffer_limit, offset + buf_size));
+    return direct_buffer;
+}
+
 /*
  * FFmpeg custom IO read function - for use with JNI InputStream.
+ *
+ * Where the stream supports ByteBufferReadable it reads straight into the AVIO buffer through a direct ByteBuffer over
+ * it, so the data is never copied. Otherwise we go through one reusable byte[]. Either way nothing is allocated per
+ * read (apart from the odd large read avio_read sends straight to its caller, see direct_buffer_over).
  */
 static int Java_InputStream_Read(/*InputStreamOpaque*/ void *jni_input_stream, uint8_t *buf, int buf_size){
     InputStreamOpaque *info = (InputStreamOpaque *)jni_input_stream;
     JNIEnv *env = info->env;
-    jclass      inputstream_clazz   = env->GetObjectClass(info->stream);
-    jmethodID   read                = env->GetMethodID(inputstream_clazz, "read", "([B)I");
+    int bytes_read;
     
-    jbyteArray dataArray = env->NewByteArray(buf_size);
-    int bytes_read = env->CallIntMethod(info->stream, read, dataArray);
+    if(buf_size > info->buffer_size)
+        buf_size = info->buffer_size;
     
+    if(info->read_buffer != NULL)
+    {
+        int temp;
+        jobject direct_buffer = direct_buffer_over(env, info, buf, buf_size, &temp);
+        if(direct_buffer != NULL)
+        {
+            bytes_read = env->CallIntMethod(info->stream, info->read_buffer, direct_buffer);
+            if(temp)
+                env->DeleteLocalRef(direct_buffer);
+            
+            if(!env->ExceptionCheck())
+                return bytes_read > 0 ? bytes_read : -1;
+            
+            // FSDataInputStream throws UnsupportedOperationException if the stream it wraps can't do it - use the byte[] path from now on.
+            env->ExceptionClear();
+            info->read_buffer = NULL;
+        }
+    }
+    
+    if(info->read_array == NULL)
+    {
+        jbyteArray read_array = env->NewByteArray(info->buffer_size);
+        if(read_array == NULL)
+            return -1;
+        info->read_array = (jbyteArray)env->NewGlobalRef(read_array);
+        env->DeleteLocalRef(read_array);
+    }
+    
+    bytes_read = env->CallIntMethod(info->stream, info->read_bytes, info->read_array, 0, buf_size);
     if(bytes_read > 0 && !env->ExceptionCheck()){
-        env->GetByteArrayRegion(dataArray, 0, bytes_read, (jbyte *)buf);
-        env->DeleteLocalRef(dataArray);
+        env->GetByteArrayRegion(info->read_array, 0, bytes_read, (jbyte *)buf);
         return bytes_read;
     }
     else
@@ -345,53 +517,142 @@ static int64_t Java_InputStream_Seek(/*InputStreamOpaque*/ void *jni_input_strea
 {
     InputStreamOpaque *info = (InputStreamOpaque *)jni_input_stream;
     JNIEnv *env = info->env;
-    jclass inputstream_clazz = env->GetObjectClass(info->stream);
-    jmethodID seek = env->GetMethodID(inputstream_clazz, "seek", "(J)V");
-    jmethodID getpos = env->GetMethodID(inputstream_clazz, "getPos", "()J");
     
     switch (whence) {
         case SEEK_SET: // Offset is relative to the start of the file.
         {
             if(DEBUG_PRINT_CRAZY)
                 fprintf(stderr, "Seeking to (SEEK_SET): %lld\n", offset);
-            if(offset < info->length)
-                env->CallVoidMethod(info->stream, seek, offset);
+            if(info->length < 0 || offset < info->length)
+                env->CallVoidMethod(info->stream, info->seek, offset);
             break;
         }
         case SEEK_CUR: // Offset is relative to the current postion.
         {
-            long current_pos = env->CallLongMethod(info->stream, getpos);
+            long current_pos = env->CallLongMethod(info->stream, info->getpos);
             if(DEBUG_PRINT_CRAZY)
                 fprintf(stderr, "Seeking to (SEEK_CUR): %lld\n", offset+current_pos);
-            if(offset+current_pos < info->length)
-                env->CallVoidMethod(info->stream, seek, offset+current_pos);
+            if(info->length < 0 || offset+current_pos < info->length)
+                env->CallVoidMethod(info->stream, info->seek, offset+current_pos);
             break;
         }
         case SEEK_END: // Offset is relative to the end of the file.
         {
+            if(info->length < 0)
+                return -1; // Still being written, so there is no end yet.
             if(DEBUG_PRINT_CRAZY)
                 fprintf(stderr, "Seeking to (SEEK_END): %lld\n", offset+info->length);
             if(offset+info->length < info->length)
-                env->CallVoidMethod(info->stream, seek, offset+info->length);
+                env->CallVoidMethod(info->stream, info->seek, offset+info->length);
             break;
         }
-        case AVSEEK_SIZE: // Return the size.
+        case AVSEEK_SIZE: // Return the size (-1 if it isn't known yet).
         {
             return info->length;
         }
     }
+    
+    // A followed input can't seek past the end once it has ended.
+    if(env->ExceptionCheck()){
+        env->ExceptionClear();
+        return -1;
+    }
+    return env->CallLongMethod(info->stream, info->getpos);
+}
 
-    return env->CallLongMethod(info->stream, getpos);
+/*
+ * Resolves the stream methods once and sets up the reusable read buffer (over io_buffer, the AVIO buffer).
+ */
+static int init_stream_info(JNIEnv *env, InputStreamOpaque *info, uint8_t *io_buffer, int buffer_size, jboolean direct_read){
+    jclass stream_clazz = env->GetObjectClass(info->stream);
+    info->read_bytes = env->GetMethodID(stream_clazz, "read", "([BII)I");
+    info->seek       = env->GetMethodID(stream_clazz, "seek", "(J)V");
+    info->getpos     = env->GetMethodID(stream_clazz, "getPos", "()J");
+    if(info->read_bytes == NULL || info->seek == NULL || info->getpos == NULL)
+        return -1;
+    
+    info->buffer_size = buffer_size;
+    info->read_buffer = NULL;
+    
+    if(direct_read)
+    {
+        // Only newer Hadoop versions have read(ByteBuffer) - older ones just use the byte[] path.
+        info->read_buffer = env->GetMethodID(stream_clazz, "read", "(Ljava/nio/ByteBuffer;)I");
+        if(info->read_buffer == NULL)
+            env->ExceptionClear();
+        else
+        {
+            jclass buffer_clazz = env->FindClass("java/nio/Buffer");
+            info->buffer_clear = env->GetMethodID(buffer_clazz, "clear", "()Ljava/nio/Buffer;");
+            info->buffer_position = env->GetMethodID(buffer_clazz, "position", "(I)Ljava/nio/Buffer;");
+            info->buffer_limit = env->GetMethodID(buffer_clazz, "limit", "(I)Ljava/nio/Buffer;");
+            env->DeleteLocalRef(buffer_clazz);
+            
+            if(set_direct_buffer(env, info, io_buffer, buffer_size) != 0)
+                info->read_buffer = NULL;
+        }
+    }
+    
+    env->DeleteLocalRef(stream_clazz);
+    return 0;
 }
 
 
+/*
+ * Loads cached stream headers over the streams avformat_open_input found. Returns non-zero (leaving the streams alone)
+ * if they don't line up, in which case the input needs probing as normal.
+ */
+static int apply_probed_headers(JNIEnv *env, AVFormatContext *fmt_ctx, jobjectArray headers, jlong duration_ms){
+    int count = env->GetArrayLength(headers);
+    if(count != (int)fmt_ctx->nb_streams)
+        return -1;
+    
+    // Check that every stream has its header before changing anything.
+    for(int i = 0; i < count; i++){
+        jbyteArray header = (jbyteArray)env->GetObjectArrayElement(headers, i);
+        int missing = header == NULL || env->GetArrayLength(header) == 0;
+        if(header != NULL)
+            env->DeleteLocalRef(header);
+        if(missing && avcodec_find_decoder(fmt_ctx->streams[i]->codec->codec_id) != NULL)
+            return -1; // We have a decoder for it now, but didn't last time.
+    }
+    
+    for(int i = 0; i < count; i++){
+        jbyteArray header = (jbyteArray)env->GetObjectArrayElement(headers, i);
+        jsize size = header != NULL ? env->GetArrayLength(header) : 0;
+        if(size == 0){
+            if(header != NULL)
+                env->DeleteLocalRef(header);
+            continue; // Unsupported stream - init_demux will skip it again.
+        }
+        
+        jbyte *data = env->GetByteArrayElements(header, NULL);
+        int ret = read_avstream_chunk_into_stream((uint8_t *)data, size, fmt_ctx->streams[i]);
+        env->ReleaseByteArrayElements(header, data, JNI_ABORT);
+        env->DeleteLocalRef(header);
+        if(ret < 0){
+            fprintf(stderr, "Failed to load the cached header for stream %d.\n", i);
+            return ret;
+        }
+    }
+    
+    if(duration_ms > 0)
+        fmt_ctx->duration = av_rescale_q(duration_ms, (AVRational){1, 1000}, AV_TIME_BASE_Q);
+    
+    return 0;
+}
+
 /*
  * Class:     com_tstordyallison_ffmpegmr_Demuxer
  * Method:    initDemuxWithStream
- * Signature: (Ljava/io/InputStream;)V
+ * Signature: (Lorg/apache/hadoop/fs/FSDataInputStream;JIZ[[BJ)I
+ *
+ * probed_headers/probed_duration_ms are the getStreamData()/getDurationMs() results from an earlier open of the same
+ * input (or NULL). If they match the streams the container header gives us, they are used instead of running
+ * avformat_find_stream_info, which has to read (and seek around) the start of the input.
  */
 JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_initDemuxWithStream
-(JNIEnv *env, jobject obj, jobject stream, jlong length){
+(JNIEnv *env, jobject obj, jobject stream, jlong length, jint buffer_size, jboolean direct_read, jobjectArray probed_headers, jlong probed_duration_ms){
 
     // Init state and add them to the object register.
     int err = 0;
@@ -402,9 +663,20 @@ JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_initDemuxWithStr
     jobject stream_global = env->NewGlobalRef(stream);
     
     // Setup the IO context and init the format context.
-    state->stream_buffer = (uint8_t*)malloc(STREAM_BUFFER_SIZE); 
-    state->stream_info = (InputStreamOpaque){env, obj, stream_global, (long)length};
-    AVIOContext *input_stream = avio_alloc_context(state->stream_buffer, STREAM_BUFFER_SIZE, 0, &state->stream_info, Java_InputStream_Read, NULL, Java_InputStream_Seek);
+    state->stream_buffer = (uint8_t*)av_malloc(buffer_size); 
+    state->stream_info.env = env;
+    state->stream_info.obj = obj;
+    state->stream_info.stream = stream_global;
+    state->stream_info.length = (long)length;
+    if(state->stream_buffer == NULL || init_stream_info(env, &state->stream_info, state->stream_buffer, buffer_size, direct_read) != 0){
+        fprintf(stderr, "Failed to set up the Java stream reader.\n");
+        return -1;
+    }
+    AVIOContext *input_stream = avio_alloc_context(state->stream_buffer, buffer_size, 0, &state->stream_info, Java_InputStream_Read, NULL, Java_InputStream_Seek);
+    input_stream->max_packet_size = buffer_size; // Otherwise avio shrinks the buffer back to 32k after probing.
+    state->stream_info.pb = input_stream;
+    if(length < 0)
+        input_stream->seekable = 0; // The input is still being written (follow mode), so don't go looking for the end.
     
     // Set and open the format context.
     state->fmt_ctx = avformat_alloc_context();
@@ -415,8 +687,14 @@ JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_initDemuxWithStr
         return -1;
     }
 
-    // Do some more probing.
-    if ((err = avformat_find_stream_info(state->fmt_ctx, NULL)) < 0) {
+    // Do some more probing (unless we already have the answers).
+    if (probed_headers != NULL && apply_probed_headers(env, state->fmt_ctx, probed_headers, probed_duration_ms) == 0) {
+        state->used_probed_headers = 1;
+#ifdef DEBUG
+        fprintf(stderr, "Using cached probe results for %d streams.\n", state->fmt_ctx->nb_streams);
+#endif
+    }
+    else if ((err = avformat_find_stream_info(state->fmt_ctx, NULL)) < 0) {
         printf("Failed to open streams in java input stream, error %d\n",  err);
         return -1;
     }
@@ -499,7 +777,57 @@ JNIEXPORT jlong JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getDurationMs
         return -1;
 }
 
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    usedProbedHeaders
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_usedProbedHeaders
+(JNIEnv *env, jobject obj){
+    
+    DemuxState *state = tracker.getObjectState(env, obj);
+    return state != NULL && state->used_probed_headers ? JNI_TRUE : JNI_FALSE;
+}
+
+
 
+/*
+ * Reads the next packet for a stream we have a decoder for into state->pkt.
+ */
+static int read_next_packet(DemuxState *state){
+    int ret = av_read_frame(state->fmt_ctx, &state->pkt);
+    if(ret != 0) return ret;
+    
+    // Skip over any invalid streams/ones that appeared out of the blue (this can sometime be subtitle etc).
+    while(state->pkt.stream_index >= state->stream_count || state->stream_data_sizes[state->pkt.stream_index] == 0){
+        av_free_packet(&state->pkt);
+        ret = av_read_frame(state->fmt_ctx, &state->pkt);
+        if(ret != 0) return ret;
+    }
+    
+    return 0;
+}
+
+/*
+ * The packet timestamp in the common timebase (1/tb_lcm).
+ */
+static int64_t packet_ts(DemuxState *state, AVPacket *pkt){
+    AVRational tb = state->fmt_ctx->streams[pkt->stream_index]->time_base;
+    if(pkt->pts != AV_NOPTS_VALUE)
+        return av_rescale_q(pkt->pts, tb, (AVRational){1, state->tb_lcm});
+    else if(pkt->dts != AV_NOPTS_VALUE)
+        // TODO: Sort out a properly delay here to synthesise the PTS on non-keyframes.
+        return av_rescale_q(pkt->dts, tb, (AVRational){1, state->tb_lcm});
+    else
+        return 0;
+}
+
+static int64_t packet_duration(DemuxState *state, AVPacket *pkt){
+    if(pkt->duration != 0)
+        return av_rescale_q(pkt->duration, state->fmt_ctx->streams[pkt->stream_index]->time_base, (AVRational){1, state->tb_lcm});
+    else
+        return 0;
+}
 
 /*
  * Class:     com_tstordyallison_ffmpegmr_Demuxer
@@ -513,16 +841,10 @@ JNIEXPORT jobject JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getNextChunkI
     DemuxState *state = tracker.getObjectState(env, obj);
     if(state != NULL)
     {
-        // Read the next AVPacket from the input.
-        int ret = 0;
-        ret = av_read_frame(state->fmt_ctx, &state->pkt);
-        if(ret != 0) return NULL;
-        
-        // Skip over any invalid streams/ones that appeared out of the blue (this can sometime be subtitle etc).
-        while(state->pkt.stream_index >= state->stream_count || state->stream_data_sizes[state->pkt.stream_index] == 0){
-            ret = av_read_frame(state->fmt_ctx, &state->pkt);
-            if(ret != 0) return NULL;
-        }
+        // Read the next AVPacket from the input (a batch read may have left one behind).
+        if(!state->pkt_pending && read_next_packet(state) != 0)
+            return NULL;
+        state->pkt_pending = 0;
         
         // Temp for the AVPacket TPL.
         uint8_t *pkt_tpl_data;
@@ -549,15 +871,8 @@ JNIEXPORT jobject JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getNextChunkI
         env->SetLongField(dpkt, tb_num, 1);
         env->SetLongField(dpkt, tb_den, state->tb_lcm);
         
-        if(state->pkt.pts != AV_NOPTS_VALUE)
-            env->SetLongField(dpkt, ts, av_rescale_q(state->pkt.pts, state->fmt_ctx->streams[state->pkt.stream_index]->time_base, (AVRational){1, state->tb_lcm}));
-        else if(state->pkt.dts != AV_NOPTS_VALUE){
-            // TODO: Sort out a properly delay here to synthesise the PTS on non-keyframes.
-            env->SetLongField(dpkt, ts, av_rescale_q(state->pkt.dts, state->fmt_ctx->streams[state->pkt.stream_index]->time_base, (AVRational){1, state->tb_lcm}));
-        }
-        
-        if(state->pkt.duration != 0)
-            env->SetLongField(dpkt, duration,av_rescale_q(state->pkt.duration, state->fmt_ctx->streams[state->pkt.stream_index]->time_base, (AVRational){1, state->tb_lcm}));
+        env->SetLongField(dpkt, ts, packet_ts(state, &state->pkt));
+        env->SetLongField(dpkt, duration, packet_duration(state, &state->pkt));
         
         if(state->pkt.flags & AV_PKT_FLAG_KEY)
             env->SetBooleanField(dpkt, splitPoint, JNI_TRUE);
@@ -585,10 +900,457 @@ JNIEXPORT jobject JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getNextChunkI
 
 /*
  * Class:     com_tstordyallison_ffmpegmr_Demuxer
- * Method:    close
+ * Method:    readPacketsImpl
+ * Signature: (ILjava/nio/ByteBuffer;[I[J[J[Z[I[I[J)I
+ *
+ * Batched version of getNextChunk: the packet TPLs go back to back into the direct arena buffer and the 
+ * metadata into the arrays, with one copy out per array at the end. Returns the number of packets, or 
+ * -(bytes needed) if the next packet on its own will not fit in the arena.
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_readPacketsImpl
+(JNIEnv *env, jobject obj, jint max, jobject arena, jintArray stream_ids, jlongArray ts, jlongArray durations, jbooleanArray split_points, jintArray offsets, jintArray lengths, jlongArray positions){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state == NULL){
+        fprintf(stderr, "Warning: failed to find object for a readPackets() call.\n");
+        return 0;
+    }
+    
+    uint8_t *arena_data = (uint8_t *)env->GetDirectBufferAddress(arena);
+    jlong arena_size = env->GetDirectBufferCapacity(arena);
+    if(arena_data == NULL || arena_size < 0){
+        throw_new_exception(env, "readPackets() needs a direct ByteBuffer arena.");
+        return 0;
+    }
+    
+    // Make sure we have space for the metadata.
+    if(state->batch_capacity < max){
+        delete[] state->batch_stream_ids;
+        delete[] state->batch_ts;
+        delete[] state->batch_durations;
+        delete[] state->batch_split_points;
+        delete[] state->batch_offsets;
+        delete[] state->batch_lengths;
+        delete[] state->batch_positions;
+        state->batch_stream_ids   = new jint[max];
+        state->batch_ts           = new jlong[max];
+        state->batch_durations    = new jlong[max];
+        state->batch_split_points = new jboolean[max];
+        state->batch_offsets      = new jint[max];
+        state->batch_lengths      = new jint[max];
+        state->batch_positions    = new jlong[max];
+        state->batch_capacity     = max;
+    }
+    
+    int count = 0;
+    size_t arena_pos = 0;
+    while(count < max)
+    {
+        if(!state->pkt_pending){
+            if(read_next_packet(state) != 0)
+                break; // EOF.
+            state->pkt_pending = 1;
+        }
+        
+        // Serialise straight into the arena. If it doesn't fit, leave it pending for the next call.
+        size_t pkt_tpl_size = 0;
+        int ret = write_avpacket_chunk_to_buffer(&state->pkt, arena_data + arena_pos, arena_size - arena_pos, &pkt_tpl_size);
+        if(ret == 1){
+            if(count == 0)
+                return -(jint)pkt_tpl_size;
+            break;
+        }
+        else if(ret < 0){
+            throw_new_exception(env, "Failed to serialise a packet into the readPackets() arena.");
+            return 0;
+        }
+        
+        state->batch_stream_ids[count]   = state->pkt.stream_index;
+        state->batch_ts[count]           = packet_ts(state, &state->pkt);
+        state->batch_durations[count]    = packet_duration(state, &state->pkt);
+        state->batch_split_points[count] = (state->pkt.flags & AV_PKT_FLAG_KEY) ? JNI_TRUE : JNI_FALSE;
+        state->batch_offsets[count]      = (jint)arena_pos;
+        state->batch_lengths[count]      = (jint)pkt_tpl_size;
+        state->batch_positions[count]    = state->pkt.pos;
+        
+        arena_pos += pkt_tpl_size;
+        count++;
+        
+        // Clean up.
+        av_free_packet(&state->pkt);
+        av_init_packet(&state->pkt);
+        state->pkt_pending = 0;
+    }
+    
+    if(count > 0){
+        env->SetIntArrayRegion(stream_ids, 0, count, state->batch_stream_ids);
+        env->SetLongArrayRegion(ts, 0, count, state->batch_ts);
+        env->SetLongArrayRegion(durations, 0, count, state->batch_durations);
+        env->SetBooleanArrayRegion(split_points, 0, count, state->batch_split_points);
+        env->SetIntArrayRegion(offsets, 0, count, state->batch_offsets);
+        env->SetIntArrayRegion(lengths, 0, count, state->batch_lengths);
+        env->SetLongArrayRegion(positions, 0, count, state->batch_positions);
+    }
+    
+    return count;
+}
+
+#define ASSEMBLY_START_CAPACITY 1048576
+#define ASSEMBLY_START_PACKETS 1024
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    startChunkAssemblyImpl
+ * Signature: ([J)I
+ *
+ * Sets up a native chunk buffer per stream (starting with the stream header), for readChunkImpl.
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_startChunkAssemblyImpl
+(JNIEnv *env, jobject obj, jlongArray block_sizes){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state == NULL || state->assembly != NULL)
+        return -1;
+    if(env->GetArrayLength(block_sizes) < state->stream_count)
+        return -2;
+    
+    jlong *sizes = env->GetLongArrayElements(block_sizes, NULL);
+    state->assembly = new ChunkAssembly[state->stream_count];
+    for(int i = 0; i < state->stream_count; i++)
+    {
+        ChunkAssembly *a = &state->assembly[i];
+        a->header_size = state->stream_data_sizes[i];
+        a->capacity = a->header_size + ASSEMBLY_START_CAPACITY;
+        a->data = (uint8_t *)malloc(a->capacity);
+        if(a->header_size > 0)
+            memcpy(a->data, state->stream_data[i], a->header_size);
+        a->size = a->header_size;
+        a->block_size = sizes[i];
+        
+        a->count = 0;
+        a->pkt_capacity = ASSEMBLY_START_PACKETS;
+        a->ts = (jlong *)malloc(a->pkt_capacity * sizeof(jlong));
+        a->durations = (jlong *)malloc(a->pkt_capacity * sizeof(jlong));
+        a->offsets = (size_t *)malloc(a->pkt_capacity * sizeof(size_t));
+        a->end_marker = -1;
+    }
+    env->ReleaseLongArrayElements(block_sizes, sizes, JNI_ABORT);
+    
+    return 0;
+}
+
+/*
+ * Serialises state->pkt onto the end of its stream's chunk buffer.
+ */
+static int assembly_append(DemuxState *state, ChunkAssembly *a){
+    if(a->count == a->pkt_capacity){
+        a->pkt_capacity *= 2;
+        a->ts = (jlong *)realloc(a->ts, a->pkt_capacity * sizeof(jlong));
+        a->durations = (jlong *)realloc(a->durations, a->pkt_capacity * sizeof(jlong));
+        a->offsets = (size_t *)realloc(a->offsets, a->pkt_capacity * sizeof(size_t));
+    }
+    
+    size_t pkt_tpl_size = 0;
+    int ret;
+    while((ret = write_avpacket_chunk_to_buffer(&state->pkt, a->data + a->size, a->capacity - a->size, &pkt_tpl_size)) == 1){
+        a->capacity = max(a->capacity * 2, a->size + pkt_tpl_size);
+        a->data = (uint8_t *)realloc(a->data, a->capacity);
+    }
+    if(ret < 0)
+        return ret;
+    
+    if(state->pkt.flags & AV_PKT_FLAG_KEY)
+        a->end_marker = a->count;
+    a->ts[a->count] = packet_ts(state, &state->pkt);
+    a->durations[a->count] = packet_duration(state, &state->pkt);
+    a->offsets[a->count] = a->size;
+    a->size += pkt_tpl_size;
+    a->count++;
+    
+    return 0;
+}
+
+static size_t assembly_chunk_size(ChunkAssembly *a, int end){
+    return end == a->count ? a->size : a->offsets[end];
+}
+
+/*
+ * Marks the packets before the end marker (or all of them) as the next chunk, for takeChunkImpl, and returns its size.
+ */
+static size_t assembly_ready(DemuxState *state, ChunkAssembly *a, int stream_id, int take_all, jlong *info){
+    int end = take_all ? a->count : a->end_marker;
+    state->assembly_ready = stream_id;
+    state->assembly_ready_end = end;
+    
+    info[0] = stream_id;
+    info[1] = a->ts[0];
+    info[2] = end == a->count ? a->ts[end-1] + a->durations[end-1] : a->ts[end]; // The first is just an estimate.
+    info[3] = end;
+    info[4] = take_all;
+    return assembly_chunk_size(a, end);
+}
+
+/*
+ * Copies the first end packets (with the header) to dest, and moves the packets that are left up behind the header,
+ * so the stream's buffer is reused rather than replaced for every chunk.
+ */
+static void assembly_take(ChunkAssembly *a, int end, uint8_t *dest){
+    size_t chunk_size = assembly_chunk_size(a, end);
+    size_t left = a->size - chunk_size;
+    
+    memcpy(dest, a->data, chunk_size);
+    memmove(a->data + a->header_size, a->data + chunk_size, left);
+    a->size = a->header_size + left;
+    
+    a->count -= end;
+    memmove(a->ts, a->ts + end, a->count * sizeof(jlong));
+    memmove(a->durations, a->durations + end, a->count * sizeof(jlong));
+    for(int i = 0; i < a->count; i++)
+        a->offsets[i] = a->offsets[i + end] - chunk_size + a->header_size;
+    a->end_marker = -1;
+}
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    readChunkImpl
+ * Signature: ([J)I
+ *
+ * Reads packets into the per stream chunk buffers until one of them goes over its block size and can be split on a
+ * keyframe, and returns the size of that chunk (header + packet TPLs, the same layout as ChunkData), which Java then
+ * copies out with takeChunkImpl. Once the file runs out, the rest of each stream comes back as a final chunk, then 0.
+ *
+ * info gets: stream ID, start ts, end ts, packet count, final flag, and the stream that went over its block size
+ * without anywhere to split it (or -1).
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_readChunkImpl
+(JNIEnv *env, jobject obj, jlongArray info){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state == NULL || state->assembly == NULL){
+        throw_new_exception(env, "readChunk() called before startChunkAssembly().");
+        return -1;
+    }
+    if(state->assembly_ready >= 0){
+        throw_new_exception(env, "readChunk() called before the last chunk was taken.");
+        return -1;
+    }
+    
+    jlong values[6] = {-1, 0, 0, 0, 0, -1};
+    size_t chunk_size = 0;
+    
+    while(chunk_size == 0)
+    {
+        // Empty whatever is left once the file has ended.
+        if(state->assembly_flush >= 0){
+            while(state->assembly_flush < state->stream_count && state->assembly[state->assembly_flush].count == 0)
+                state->assembly_flush++;
+            if(state->assembly_flush == state->stream_count)
+                return 0;
+            chunk_size = assembly_ready(state, &state->assembly[state->assembly_flush], state->assembly_flush, 1, values);
+            break;
+        }
+        
+        if(!state->pkt_pending && read_next_packet(state) != 0){
+            state->assembly_flush = 0;
+            continue;
+        }
+        state->pkt_pending = 0;
+        
+        int stream_id = state->pkt.stream_index;
+        ChunkAssembly *a = &state->assembly[stream_id];
+        int ret = assembly_append(state, a);
+        av_free_packet(&state->pkt);
+        av_init_packet(&state->pkt);
+        if(ret < 0){
+            throw_new_exception(env, "Failed to serialise a packet into its chunk buffer.");
+            return -1;
+        }
+        
+        if((jlong)a->size > a->block_size){
+            if(a->end_marker > 0)
+                chunk_size = assembly_ready(state, a, stream_id, 0, values);
+            else
+                values[5] = stream_id;
+        }
+    }
+    
+    if(chunk_size > INT_MAX){
+        state->assembly_ready = -1;
+        throw_new_exception(env, "Assembled chunk is too large.");
+        return -1;
+    }
+    env->SetLongArrayRegion(info, 0, 6, values);
+    return (jint)chunk_size;
+}
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    takeChunkImpl
+ * Signature: (Ljava/nio/ByteBuffer;)I
+ *
+ * Copies the chunk readChunkImpl found into the given direct buffer (which must have room for it), and returns its size.
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_takeChunkImpl
+(JNIEnv *env, jobject obj, jobject buffer){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state == NULL || state->assembly == NULL || state->assembly_ready < 0)
+        return -1;
+    
+    ChunkAssembly *a = &state->assembly[state->assembly_ready];
+    size_t chunk_size = assembly_chunk_size(a, state->assembly_ready_end);
+    uint8_t *dest = (uint8_t *)env->GetDirectBufferAddress(buffer);
+    if(dest == NULL || env->GetDirectBufferCapacity(buffer) < (jlong)chunk_size)
+        return -2;
+    
+    assembly_take(a, state->assembly_ready_end, dest);
+    state->assembly_ready = -1;
+    return (jint)chunk_size;
+}
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getTimeBaseDen
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getTimeBaseDen
+(JNIEnv *env, jobject obj){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state != NULL)
+        return state->tb_lcm;
+    else
+        return -1;
+}
+
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getStreamIndexSize
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamIndexSize
+(JNIEnv *env, jobject obj, jint streamID){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state != NULL && streamID >= 0 && streamID < state->stream_count)
+        return state->fmt_ctx->streams[streamID]->nb_index_entries;
+    else
+        return -1;
+}
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getStreamFrameCount
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamFrameCount
+(JNIEnv *env, jobject obj, jint streamID){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state != NULL && streamID >= 0 && streamID < state->stream_count)
+        return state->fmt_ctx->streams[streamID]->nb_frames;
+    else
+        return -1;
+}
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getStreamIndexImpl
+ * Signature: (I[J[J[Z[I)I
+ *
+ * Copies out the container index for a stream (byte position, DTS in the common timebase, keyframe flag and
+ * packet size - which is 0 where the container doesn't store it).
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamIndexImpl
+(JNIEnv *env, jobject obj, jint streamID, jlongArray positions, jlongArray timestamps, jbooleanArray keyframes, jintArray sizes){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state == NULL || streamID < 0 || streamID >= state->stream_count)
+        return -1;
+    
+    AVStream *stream = state->fmt_ctx->streams[streamID];
+    int count = stream->nb_index_entries;
+    if(count > env->GetArrayLength(positions))
+        count = env->GetArrayLength(positions);
+    if(count <= 0)
+        return 0;
+    
+    jlong *pos = new jlong[count];
+    jlong *ts = new jlong[count];
+    jboolean *key = new jboolean[count];
+    jint *size = new jint[count];
+    for(int i = 0; i < count; i++)
+    {
+        AVIndexEntry *entry = &stream->index_entries[i];
+        pos[i]  = entry->pos;
+        ts[i]   = av_rescale_q(entry->timestamp, stream->time_base, (AVRational){1, state->tb_lcm});
+        key[i]  = (entry->flags & AVINDEX_KEYFRAME) ? JNI_TRUE : JNI_FALSE;
+        size[i] = entry->size;
+    }
+    env->SetLongArrayRegion(positions, 0, count, pos);
+    env->SetLongArrayRegion(timestamps, 0, count, ts);
+    env->SetBooleanArrayRegion(keyframes, 0, count, key);
+    env->SetIntArrayRegion(sizes, 0, count, size);
+    delete[] pos;
+    delete[] ts;
+    delete[] key;
+    delete[] size;
+    
+    return count;
+}
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getStreamParamsImpl
+ * Signature: (I[J)I
+ *
+ * Fills params with: bit rate, width, height, sample rate, channels, frame rate num, frame rate den (0 if unknown).
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamParamsImpl
+(JNIEnv *env, jobject obj, jint streamID, jlongArray params){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state == NULL || streamID < 0 || streamID >= state->stream_count || env->GetArrayLength(params) < 7)
+        return -1;
+    
+    AVStream *stream = state->fmt_ctx->streams[streamID];
+    AVCodecContext *codec = stream->codec;
+    jlong values[7];
+    values[0] = codec->bit_rate;
+    values[1] = codec->width;
+    values[2] = codec->height;
+    values[3] = codec->sample_rate;
+    values[4] = codec->channels;
+    values[5] = stream->avg_frame_rate.num;
+    values[6] = stream->avg_frame_rate.den;
+    env->SetLongArrayRegion(params, 0, 7, values);
+    return 7;
+}
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    seekImpl
+ * Signature: (IJ)I
+ *
+ * Seeks to the keyframe at or before ts (in the common timebase) on the given stream.
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_seekImpl
+(JNIEnv *env, jobject obj, jint streamID, jlong ts){
+    DemuxState *state = tracker.getObjectState(env, obj);
+    if(state == NULL || streamID < 0 || streamID >= state->stream_count)
+        return -1;
+    
+    // Drop anything a batch read left behind.
+    if(state->pkt_pending){
+        av_free_packet(&state->pkt);
+        av_init_packet(&state->pkt);
+        state->pkt_pending = 0;
+    }
+    
+    AVStream *stream = state->fmt_ctx->streams[streamID];
+    int64_t stream_ts = av_rescale_q(ts, (AVRational){1, state->tb_lcm}, stream->time_base);
+    return av_seek_frame(state->fmt_ctx, streamID, stream_ts, AVSEEK_FLAG_BACKWARD);
+}
+
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    closeImpl
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_close
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_closeImpl
 (JNIEnv * env, jobject obj){
     DemuxState *state = tracker.getObjectState(env, obj);
     if(state != NULL)
@@ -1,7 +1,6 @@
 #include <jni.h>
 #include "com_tstordyallison_ffmpegmr_Merger.h"
 #include "SharedUtil.h"
-#include <map>
 
 #define DEBUG 1
 #define DEBUG_PRINT 0
@@ -82,26 +81,23 @@ typedef struct MergerState {
 class MergerTracker {
     
 private:
-    map<int, MergerState*> objectRegister;
+    NativeHandleTracker<MergerState> handles; // State lives in Merger.nativeHandle.
     
 public:
     MergerState *getObjectState(JNIEnv *env, jobject obj)
     {
-        int hashCode = getHashCode(env, obj);
-        if(objectRegister.find(hashCode) != objectRegister.end())
+        MergerState *state = handles.getState(env, obj);
+        if(state != NULL)
         {
-            MergerState *state = objectRegister[hashCode];
             state->stream_info.env = env;
             state->stream_info.obj = obj;
-            return state;
         }
-        return NULL;
+        return state;
     };
     
     void registerObjectState(JNIEnv *env, jobject obj, MergerState *objstate)
     {
-        int hashCode = getHashCode(env, obj);
-        objectRegister[hashCode] = objstate;
+        handles.setState(env, obj, objstate);
     };
     
     void unregisterObjectState(JNIEnv *env, jobject obj)
@@ -109,9 +105,8 @@ public:
         MergerState *state = getObjectState(env, obj);
         if(state != NULL)
         {
-            // Remove the state from the map.
-            int hashCode = getHashCode(env, obj);
-            objectRegister.erase(hashCode);
+            // Clear the handle.
+            handles.setState(env, obj, NULL);
             
             // Free the state.
             delete state;
@@ -462,6 +457,53 @@ JNIEXPORT void JNICALL Java_com_tstordyallison_ffmpegmr_Merger_addSegment___3BJJ
         throw_new_exception(env, "Merger not available.");
 };
 
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Merger
+ * Method:    addSegment
+ * Signature: (Ljava/nio/ByteBuffer;JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_tstordyallison_ffmpegmr_Merger_addSegment__Ljava_nio_ByteBuffer_2JJ
+(JNIEnv *env, jobject obj, jobject data, jlong off, jlong len){
+    MergerState *state = tracker.getObjectState(env, obj);
+    if(state != NULL)
+    {
+        // Read the segment in place from the direct buffer (it stays owned by Java, so no copy and no free).
+        uint8_t *data_raw = (uint8_t *)env->GetDirectBufferAddress(data);
+        jlong data_size = env->GetDirectBufferCapacity(data);
+        if(data_raw == NULL || data_size < 0){
+            throw_new_exception(env, "Segment is not a direct buffer.");
+            return;
+        }
+        if(off < 0 || len < 0 || off+len > data_size){
+            throw_new_exception(env, "Invalid off+len");
+            return;
+        }
+        
+        // Setup a format context to read this file segment using custom RawBuffer* functions.
+        RawInputStreamOpaque io_info = (RawInputStreamOpaque){data_raw + off, (size_t)len, 0};
+        uint8_t *raw_buffer = (uint8_t *)malloc((STREAM_BUFFER_SIZE + FF_INPUT_BUFFER_PADDING_SIZE) + sizeof(uint8_t));
+        AVIOContext *input_stream = avio_alloc_context(raw_buffer, STREAM_BUFFER_SIZE, 0, &io_info, RawBuffer_Read, NULL, RawBuffer_Seek);
+        
+        // Set and open the format context and probe.
+        AVFormatContext *input_format_ctx = avformat_alloc_context();
+        input_format_ctx->pb = input_stream;
+        if(throwNonZero(avformat_open_input(&input_format_ctx, "", NULL, NULL), "Opening input chunk.", env)!=0)
+            return;
+        
+        // Probe the streams.
+        avformat_find_stream_info(input_format_ctx, NULL);
+    
+        // Process the segment.
+        process_segment(env, state, input_format_ctx);
+        
+        // Close the AVIOContext.
+        av_free(input_format_ctx->pb);
+        avformat_close_input(&input_format_ctx);
+    }
+    else
+        throw_new_exception(env, "Merger not available.");
+};
+
 /*
  * Class:     com_tstordyallison_ffmpegmr_Merger
  * Method:    closeOutput
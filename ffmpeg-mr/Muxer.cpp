@@ -47,80 +47,42 @@ static int read_avpacket(TPLImageRef *image_list, size_t image_list_size, size_t
 /*
  * Take a set of chunks (one for each stream) and muxes them back into an MKV container. 
  *
+ * The chunk data is read where it is, in the Java direct buffers (Remuxer.muxChunks holds on to them until we return).
+ *
  * Class:     com_tstordyallison_ffmpegmr_Remuxer
- * Method:    muxChunks
- * Signature: (Ljava/lang/Iterable;)[B
+ * Method:    muxBuffers
+ * Signature: ([Ljava/nio/ByteBuffer;[I[I)[B
  */
-JNIEXPORT jbyteArray JNICALL Java_com_tstordyallison_ffmpegmr_Remuxer_muxChunks(JNIEnv *env, jclass clazz, jobject chunks)
+JNIEXPORT jbyteArray JNICALL Java_com_tstordyallison_ffmpegmr_Remuxer_muxBuffers(JNIEnv *env, jclass clazz, jobjectArray buffers, jintArray lengths, jintArray stream_ids)
 {
-    // Get the iterator for the Interable object.
-    jclass      iterable_clazz    = env->GetObjectClass(chunks);
-    jmethodID   getIterator       = env->GetMethodID(iterable_clazz, "iterator", "()Ljava/util/Iterator;");
-    jobject     iterator          = env->CallObjectMethod(chunks, getIterator);
-    
-    jclass      iterator_clazz = env->GetObjectClass(iterator);
-    jmethodID   hasNext        = env->GetMethodID(iterator_clazz, "hasNext", "()Z");
-    jmethodID   next        = env->GetMethodID(iterator_clazz, "next", "()Ljava/lang/Object;");
-    
+    int nb_chunks = env->GetArrayLength(buffers);
+    uint8_t **data_chunks = (uint8_t **)malloc(sizeof(uint8_t *) * nb_chunks); // Pointers into each stream's buffer.
+    size_t *data_chunks_size  = (size_t *)malloc(sizeof(size_t) * nb_chunks);
+    int *data_chunks_streamid  = (int *)malloc(sizeof(int) * nb_chunks);
     
-    uint8_t **data_chunks = NULL; // Array of byte arrays containing each streams data. 
-    size_t *data_chunks_size  = NULL;
-    int *data_chunks_streamid  = NULL;
-    int nb_chunks = 0;
+    jint *lengths_raw = env->GetIntArrayElements(lengths, NULL);
+    jint *stream_ids_raw = env->GetIntArrayElements(stream_ids, NULL);
+    int missing = 0;
+    for(int i = 0; i < nb_chunks; i++)
+    {
+        jobject buffer = env->GetObjectArrayElement(buffers, i);
+        data_chunks[i] = (uint8_t *)env->GetDirectBufferAddress(buffer);
+        data_chunks_size[i] = lengths_raw[i];
+        data_chunks_streamid[i] = stream_ids_raw[i];
+        env->DeleteLocalRef(buffer);
+        if(data_chunks[i] == NULL)
+            missing = 1;
+    }
+    env->ReleaseIntArrayElements(lengths, lengths_raw, JNI_ABORT);
+    env->ReleaseIntArrayElements(stream_ids, stream_ids_raw, JNI_ABORT);
     
-    while(env->CallBooleanMethod(iterator, hasNext))
+    if(missing)
     {
-        // Increment and alloc.
-        nb_chunks += 1;
-        data_chunks = (uint8_t **)realloc(data_chunks, sizeof(uint8_t *) * nb_chunks);
-        data_chunks_size = (size_t *)realloc(data_chunks_size, sizeof(size_t *) * nb_chunks);
-        data_chunks_streamid = (int *)realloc(data_chunks_streamid, sizeof(int *) * nb_chunks);
-        
-        // Get the chunk and copy over the data.
-        jclass  chunk_clazz = env->FindClass("com/tstordyallison/ffmpegmr/Chunk");
-        jobject chunk       = env->CallObjectMethod(iterator, next);
-        jmethodID getChunkID   = env->GetMethodID(chunk_clazz, "getChunkID", "()Lcom/tstordyallison/ffmpegmr/ChunkID;");
-        jmethodID getChunkData   = env->GetMethodID(chunk_clazz, "getChunkData", "()Lcom/tstordyallison/ffmpegmr/ChunkData;");
-        
-        if(!getChunkData || !getChunkID)
-        {
-            throw_new_exception(env, "getChunkData/ID method missing");
-            return NULL;
-        }
-        
-        jclass chunk_data_clazz = env->FindClass("com/tstordyallison/ffmpegmr/ChunkData");
-        jobject chunk_data      = env->CallObjectMethod(chunk, getChunkData);
-        
-        if(!chunk_data)
-        {
-            throw_new_exception(env, "getChunkData() returned null.");
-            return NULL;
-        }
-
-        jmethodID  getData   = env->GetMethodID(chunk_data_clazz, "getData", "()[B");
-        jbyteArray dataArray = (jbyteArray)env->CallObjectMethod(chunk_data, getData);
-        
-        if(!dataArray)
-        {
-            throw_new_exception(env, "ChunkData.getData() returned null.");
-            return NULL;
-        } 
-        
-        // Copy the chunk over into memory from the JVM.
-        int data_size = env->GetArrayLength(dataArray);
-        uint8_t *data = (uint8_t *)malloc(sizeof(jbyte) * data_size);
-        env->GetByteArrayRegion(dataArray, 0, (jint)data_size, (jbyte *)data);
-        env->DeleteLocalRef(dataArray);
-        
-        // Get ChunkID
-        jclass chunk_id_clazz = env->FindClass("com/tstordyallison/ffmpegmr/ChunkID");
-        jobject chunk_id      = env->CallObjectMethod(chunk, getChunkID);
-        jfieldID streamID     = env->GetFieldID(chunk_id_clazz, "streamID", "I");
-        
-        // Save the data pointers.
-        data_chunks[nb_chunks-1] = data;
-        data_chunks_size[nb_chunks-1] = data_size;
-        data_chunks_streamid[nb_chunks-1] = (int)env->GetIntField(chunk_id, streamID);
+        free(data_chunks);
+        free(data_chunks_size);
+        free(data_chunks_streamid);
+        throw_new_exception(env, "Chunk data is not in a direct buffer.");
+        return NULL;
     }
     
 #ifdef DEBUG 
@@ -303,7 +265,7 @@ JNIEXPORT jbyteArray JNICALL Java_com_tstordyallison_ffmpegmr_Remuxer_muxChunks(
     
     for(int i = 0; i < nb_chunks; i++){
         free(image_lists[i]); image_lists[i] = NULL;
-        free(data_chunks[i]); data_chunks[i] = NULL;
+        data_chunks[i] = NULL; // Owned by the Java buffers.
     }
 
     free(data_chunks);
@@ -9,14 +9,6 @@ extern "C" {
 // Util methods.
 // --------
 
-int getHashCode(JNIEnv* env, jobject obj)
-{
-    jclass clazz  = env->GetObjectClass(obj);
-    jmethodID mid = env->GetMethodID(clazz, "hashCode", "()I");
-    jint hashCode = env->CallIntMethod(obj, mid);
-    return (int)hashCode;
-}
-
 void print_file_error(const char *filename, int err)
 {
     char errbuf[128];
@@ -2,8 +2,46 @@
 #include "libavutil/rational.h"
 
 void print_av_error(int err);
-int getHashCode(JNIEnv* env, jobject obj);
 void print_file_error(const char *filename, int err);
 void throw_new_exception(JNIEnv *env, const char* msg);
 int lcmf(int arr[], int size);
-void dump_buffer(uint8_t *data, int N);
\ No newline at end of file
+void dump_buffer(uint8_t *data, int N);
+
+/*
+ * Keeps the native state for a Java object as an opaque pointer in its 'long nativeHandle' field.
+ * A lookup is a single field read, so there is no hashCode() upcall, no shared map to lock, and two
+ * live objects can never collide.
+ */
+template <class State>
+class NativeHandleTracker {
+    
+private:
+    jfieldID handleField; // Resolved once, field IDs stay valid for as long as the class is loaded.
+    
+    jfieldID getHandleField(JNIEnv *env, jobject obj)
+    {
+        if(handleField == NULL)
+        {
+            jclass clazz = env->GetObjectClass(obj);
+            handleField = env->GetFieldID(clazz, "nativeHandle", "J");
+            env->DeleteLocalRef(clazz);
+        }
+        return handleField;
+    };
+    
+public:
+    NativeHandleTracker()
+    {
+        handleField = NULL;
+    };
+    
+    State *getState(JNIEnv *env, jobject obj)
+    {
+        return (State *)(intptr_t)env->GetLongField(obj, getHandleField(env, obj));
+    };
+    
+    void setState(JNIEnv *env, jobject obj, State *state)
+    {
+        env->SetLongField(obj, getHandleField(env, obj), (jlong)(intptr_t)state);
+    };
+};
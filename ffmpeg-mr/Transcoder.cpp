@@ -1,7 +1,6 @@
 #include <jni.h>
 #include "com_tstordyallison_ffmpegmr_Transcoder.h"
 #include "SharedUtil.h"
-#include <map>
 
 #define DEBUG 1
 #define DEBUG_PRINT 1
@@ -29,6 +28,7 @@ extern "C" {
 typedef struct TranscoderState {
     uint8_t         *data; // Actual TPL chunk data, including an initial header (e.g. stream, pkt, pkt, and so on). 
     size_t          data_size;
+    int             data_owned; // 0 if data is in a Java direct buffer (so not ours to free).
     TPLImageRef     *image_list;
     size_t          image_list_size;
     int             image_cursor; // Position in the TPL chunk data array. 
@@ -74,6 +74,7 @@ typedef struct TranscoderState {
     TranscoderState(){
         data = NULL;
         data_size = 0;
+        data_owned = 1;
         
         image_list = NULL;
         image_list_size = 0;
@@ -119,7 +120,8 @@ typedef struct TranscoderState {
         // Free some stuff.
         if(data != NULL)
         {
-            free(data);
+            if(data_owned)
+                free(data);
             data = NULL;
         }
         
@@ -181,23 +183,17 @@ typedef struct TranscoderState {
 class TranscoderTracker {
     
     private:
-        map<int, TranscoderState*> objectRegister;
+        NativeHandleTracker<TranscoderState> handles; // State lives in Transcoder.nativeHandle.
         
     public:
         TranscoderState *getObjectState(JNIEnv *env, jobject obj)
         {
-            int hashCode = getHashCode(env, obj);
-            if(objectRegister.find(hashCode) != objectRegister.end())
-            {
-                return objectRegister[hashCode];
-            }
-            return NULL;
+            return handles.getState(env, obj);
         };
         
         void registerObjectState(JNIEnv *env, jobject obj, TranscoderState *objstate)
         {
-            int hashCode = getHashCode(env, obj);
-            objectRegister[hashCode] = objstate;
+            handles.setState(env, obj, objstate);
         };
         
         void unregisterObjectState(JNIEnv *env, jobject obj)
@@ -205,9 +201,8 @@ class TranscoderTracker {
             TranscoderState *state = getObjectState(env, obj);
             if(state != NULL)
             {
-                // Remove the state from the map.
-                int hashCode = getHashCode(env, obj);
-                objectRegister.erase(hashCode);
+                // Clear the handle.
+                handles.setState(env, obj, NULL);
                 
                 // Free the state.
                 delete state;
@@ -652,10 +647,10 @@ static int decode_packet(JNIEnv *env, TranscoderState *state)
 /*
  * Class:     com_tstordyallison_ffmpegmr_Transcoder
  * Method:    initWithBytes
- * Signature: (JJ[J[B)I
+ * Signature: (JJ[J[BLjava/nio/ByteBuffer;IDDIII)I
  */
 JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_initWithBytes
-(JNIEnv *env, jobject obj, jlong chunk_tb_num, jlong chunk_tb_den, jlongArray chunk_points, jbyteArray data, 
+(JNIEnv *env, jobject obj, jlong chunk_tb_num, jlong chunk_tb_den, jlongArray chunk_points, jbyteArray data, jobject direct_data, jint data_length, 
  jdouble video_res_scale, jdouble video_crf, jint video_bitrate, jint audio_bitrate, jint video_threads){
     
     // Init state;
@@ -681,11 +676,26 @@ JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_initWithBytes
     if(video_threads < 0)
         video_threads = 0;
     
-    // Copy the chunk over into memory from the JVM.
-    state->data_size = env->GetArrayLength(data);
-    state->data = (uint8_t *)malloc(sizeof(jbyte) * state->data_size);
-    env->GetByteArrayRegion(data, 0, (jint)state->data_size, (jbyte *)state->data);
-    env->DeleteLocalRef(data);
+    state->data_size = data_length;
+    if(direct_data != NULL)
+    {
+        // Read the chunk where it is (the Java side keeps the buffer until we are closed).
+        state->data = (uint8_t *)env->GetDirectBufferAddress(direct_data);
+        state->data_owned = 0;
+        if(state->data == NULL)
+        {
+            throw_new_exception(env, "Init failed - chunk buffer is not a direct buffer.");
+            delete state;
+            return -1;
+        }
+    }
+    else
+    {
+        // Copy the chunk over into memory from the JVM (only the valid part - the array may be a reused, bigger buffer).
+        state->data = (uint8_t *)malloc(sizeof(jbyte) * state->data_size);
+        env->GetByteArrayRegion(data, 0, (jint)state->data_size, (jbyte *)state->data);
+        env->DeleteLocalRef(data);
+    }
     
     // Copy over the chunk points into memory from the JVM.
     state->chunk_points_size = env->GetArrayLength(chunk_points);
@@ -1144,10 +1154,10 @@ JNIEXPORT jobject JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_getNextPac
 
 /*
  * Class:     com_tstordyallison_ffmpegmr_Transcoder
- * Method:    close
+ * Method:    closeNative
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_close
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_closeNative
 (JNIEnv *env, jobject obj){
     TranscoderState *state = tracker.getObjectState(env, obj);
     if(state != NULL)
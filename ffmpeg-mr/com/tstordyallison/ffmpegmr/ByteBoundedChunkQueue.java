@@ -0,0 +1,236 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.tstordyallison.ffmpegmr.util.FileUtils;
+
+/**
+ * The chunk queue between the ChunkerThread and the WriterThread, bounded by the bytes of chunk data in flight rather
+ * than by the number of chunks.
+ *
+ * Putting a chunk reserves its size from the MemoryBudget (blocking while it doesn't fit). Taking it does NOT give the
+ * memory back - the consumer calls release() once it has finished with the chunk (for the writer, once it is
+ * written), so the chunks it holds on to count against the budget too.
+ *
+ * A spilled chunk only counts its header, as the rest of its data is on disk until it is written.
+ */
+public class ByteBoundedChunkQueue extends AbstractQueue<Chunk> implements BlockingQueue<Chunk> {
+
+	private final MemoryBudget budget;
+	private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<Chunk>();
+
+	private long queuedBytes = 0;
+	private long peakQueuedBytes = 0;
+	private int peakQueuedChunks = 0;
+	private long chunks = 0;
+	private long totalBytes = 0;
+	private long consumerStallNanos = 0;
+	private int producerWaiting = 0; // Producers of this queue waiting for memory (guarded by the budget's monitor).
+
+	public ByteBoundedChunkQueue(MemoryBudget budget) {
+		this.budget = budget;
+	}
+
+	public ByteBoundedChunkQueue(long capacity) {
+		this(new MemoryBudget(capacity));
+	}
+
+	private static long getSize(Chunk chunk) {
+		return chunk.getChunkData() != null ? chunk.getChunkData().getMemorySize() : 0;
+	}
+
+	/**
+	 * Gives back the memory for a chunk taken from the queue.
+	 */
+	public void release(Chunk chunk) {
+		budget.release(getSize(chunk));
+	}
+
+	public MemoryBudget getBudget() {
+		return budget;
+	}
+
+	private synchronized void added(Chunk chunk) {
+		queuedBytes += getSize(chunk);
+		peakQueuedBytes = Math.max(peakQueuedBytes, queuedBytes);
+		peakQueuedChunks = Math.max(peakQueuedChunks, queue.size() + 1);
+		chunks++;
+		totalBytes += chunk.getChunkData() != null ? chunk.getChunkData().getSize() : 0;
+	}
+
+	private synchronized Chunk removed(Chunk chunk, long stallNanos) {
+		if(chunk != null)
+			queuedBytes -= getSize(chunk);
+		consumerStallNanos += stallNanos;
+		return chunk;
+	}
+
+	@Override
+	public void put(Chunk chunk) throws InterruptedException {
+		long size = getSize(chunk);
+		if(!budget.tryAcquire(size)){
+			// Let our consumer know it is us who are short of memory (see takeOrStall).
+			synchronized (budget) {
+				producerWaiting++;
+				budget.notifyAll();
+			}
+			try {
+				budget.acquire(size);
+			} finally {
+				synchronized (budget) {
+					producerWaiting--;
+				}
+			}
+		}
+		added(chunk);
+		queue.put(chunk);
+		signal();
+	}
+
+	@Override
+	public boolean offer(Chunk chunk) {
+		if(!budget.tryAcquire(getSize(chunk)))
+			return false;
+		added(chunk);
+		queue.offer(chunk);
+		signal();
+		return true;
+	}
+
+	@Override
+	public boolean offer(Chunk chunk, long timeout, TimeUnit unit) throws InterruptedException {
+		if(!budget.tryAcquire(getSize(chunk), timeout, unit))
+			return false;
+		added(chunk);
+		queue.offer(chunk);
+		signal();
+		return true;
+	}
+
+	/**
+	 * Wakes a consumer in takeOrStall(). The budget's monitor is used as the condition, as it is shared by everything
+	 * waiting on the budget.
+	 */
+	private void signal() {
+		synchronized (budget) {
+			budget.notifyAll();
+		}
+	}
+
+	/**
+	 * Takes the next chunk, waiting for one if need be. If the consumer is holding chunks back (holding is true), this
+	 * also returns null as soon as the queue is empty and this queue's producer is waiting for memory, so the consumer
+	 * can write some of them out and give the memory back. Producers of other queues on the same budget don't count:
+	 * writing chunks early means they can't be fixed up any more, so we only do it to unblock our own input.
+	 */
+	public Chunk takeOrStall(boolean holding) throws InterruptedException {
+		long start = System.nanoTime();
+		synchronized (budget) {
+			while(queue.isEmpty())
+			{
+				if(holding && producerWaiting > 0)
+					return removed(null, System.nanoTime() - start);
+				budget.wait();
+			}
+		}
+		return removed(queue.poll(), System.nanoTime() - start);
+	}
+
+	@Override
+	public Chunk take() throws InterruptedException {
+		long start = System.nanoTime();
+		Chunk chunk = queue.take();
+		return removed(chunk, System.nanoTime() - start);
+	}
+
+	@Override
+	public Chunk poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long start = System.nanoTime();
+		Chunk chunk = queue.poll(timeout, unit);
+		return removed(chunk, System.nanoTime() - start);
+	}
+
+	@Override
+	public Chunk poll() {
+		return removed(queue.poll(), 0);
+	}
+
+	@Override
+	public Chunk peek() {
+		return queue.peek();
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE; // Bounded by bytes, not chunks.
+	}
+
+	@Override
+	public int drainTo(Collection<? super Chunk> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Chunk> c, int maxElements) {
+		int n = 0;
+		Chunk chunk;
+		while(n < maxElements && (chunk = poll()) != null)
+		{
+			c.add(chunk);
+			n++;
+		}
+		return n;
+	}
+
+	@Override
+	public Iterator<Chunk> iterator() {
+		return queue.iterator();
+	}
+
+	@Override
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Chunks (and their bytes) put on the queue so far.
+	 */
+	public synchronized long getChunkCount() {
+		return chunks;
+	}
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+	public synchronized long getPeakQueuedBytes() {
+		return peakQueuedBytes;
+	}
+	public synchronized int getPeakQueuedChunks() {
+		return peakQueuedChunks;
+	}
+	/**
+	 * Time the producer spent waiting for memory.
+	 */
+	public long getProducerStallMillis() {
+		return budget.getStallMillis();
+	}
+	/**
+	 * Time the consumer spent waiting for a chunk.
+	 */
+	public synchronized long getConsumerStallMillis() {
+		return consumerStallNanos / 1000000;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ByteBoundedChunkQueue [chunks=" + chunks + ", peak queued=" + peakQueuedChunks + " chunks/" + FileUtils.humanReadableByteCount(peakQueuedBytes, false)
+				+ ", producer stalled " + budget.getStalls() + " times (" + getProducerStallMillis() + "ms), consumer stalled " + getConsumerStallMillis() + "ms, " + budget + "]";
+	}
+}
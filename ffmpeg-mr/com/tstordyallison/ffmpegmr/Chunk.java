@@ -42,11 +42,16 @@ public class Chunk implements Writable, Comparable<Chunk> {
 		chunkData.write(out);
 	}
 
+	/**
+	 * Reads into the existing ChunkID and ChunkData if there are some (so a reused Chunk reuses their buffers too).
+	 */
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		chunkID = new ChunkID();
+		if(chunkID == null)
+			chunkID = new ChunkID();
 		chunkID.readFields(in);
-		chunkData = new ChunkData();
+		if(chunkData == null)
+			chunkData = new ChunkData();
 		chunkData.readFields(in);
 	}
 	
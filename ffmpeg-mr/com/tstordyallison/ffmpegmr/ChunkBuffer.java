@@ -0,0 +1,247 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.hadoop.io.DataInputBuffer;
+
+import com.tstordyallison.ffmpegmr.util.FileUtils;
+
+/**
+ * Chunk data held off the Java heap in a direct ByteBuffer, so native code can use it in place (through
+ * GetDirectBufferAddress) rather than copying it out of a byte[].
+ *
+ * The buffers are pooled and reference counted: acquire() takes one from the pool (or allocates it), anyone else who
+ * keeps hold of it calls retain(), and everyone calls release() when they are done. The last release puts it back in
+ * the pool (up to POOL_BYTES of idle buffers, the rest are left to the GC).
+ */
+public class ChunkBuffer {
+
+	public static long POOL_BYTES = 268435456; // Idle buffers kept for reuse (256MB).
+	public static int ROUND_TO = 1048576; // Buffers are allocated in 1MB steps, so similar sized chunks can share them.
+	private static final int COPY_SIZE = 65536;
+
+	private static final LinkedList<ChunkBuffer> pool = new LinkedList<ChunkBuffer>();
+	private static long pooledBytes = 0;
+	private static long allocated = 0;
+	private static long reused = 0;
+
+	private static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[COPY_SIZE];
+		}
+	};
+
+	private final ByteBuffer buffer;
+	private int length = 0;
+	private int refCount = 0;
+
+	private ChunkBuffer(int capacity) {
+		buffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * A buffer with room for at least capacity bytes (and a length of 0), with one reference to it.
+	 */
+	public static ChunkBuffer acquire(int capacity) {
+		ChunkBuffer chunkBuffer = null;
+		synchronized (pool) {
+			// Take the smallest one that is big enough.
+			ChunkBuffer best = null;
+			for(ChunkBuffer pooled : pool)
+				if(pooled.capacity() >= capacity && (best == null || pooled.capacity() < best.capacity()))
+					best = pooled;
+			if(best != null){
+				pool.remove(best);
+				pooledBytes -= best.capacity();
+				reused++;
+				chunkBuffer = best;
+			}
+			else
+				allocated++;
+		}
+		if(chunkBuffer == null){
+			long rounded = ((long)capacity + ROUND_TO - 1) / ROUND_TO * ROUND_TO;
+			chunkBuffer = new ChunkBuffer((int)Math.min(Math.max(rounded, capacity), Integer.MAX_VALUE));
+		}
+		chunkBuffer.length = 0;
+		chunkBuffer.refCount = 1;
+		return chunkBuffer;
+	}
+
+	/**
+	 * A buffer holding a copy of the given bytes.
+	 */
+	public static ChunkBuffer copyOf(byte[] data, int offset, int length) {
+		ChunkBuffer chunkBuffer = acquire(length);
+		ByteBuffer dup = chunkBuffer.buffer.duplicate();
+		dup.clear();
+		dup.put(data, offset, length);
+		chunkBuffer.length = length;
+		return chunkBuffer;
+	}
+
+	public synchronized ChunkBuffer retain() {
+		if(refCount <= 0)
+			throw new RuntimeException("ChunkBuffer retained after it was released.");
+		refCount++;
+		return this;
+	}
+
+	public void release() {
+		synchronized (this) {
+			if(refCount <= 0)
+				throw new RuntimeException("ChunkBuffer released more times than it was retained.");
+			if(--refCount > 0)
+				return;
+		}
+		synchronized (pool) {
+			if(pooledBytes + capacity() <= POOL_BYTES){
+				pool.add(this);
+				pooledBytes += capacity();
+			}
+		}
+	}
+
+	/**
+	 * True if we are the only one holding this buffer (so it can be read into again).
+	 */
+	public synchronized boolean isExclusive() {
+		return refCount == 1;
+	}
+
+	/**
+	 * Reads length bytes into the buffer (replacing what was there).
+	 */
+	public void readFrom(DataInput in, int length) throws IOException {
+		if(length > capacity())
+			throw new RuntimeException("Chunk of " + length + " bytes does not fit in a " + capacity() + " byte buffer.");
+		ByteBuffer dup = buffer.duplicate();
+		dup.clear();
+
+		if(in instanceof DataInputBuffer){
+			// Straight from the record buffer (this is what Hadoop gives to readFields).
+			DataInputBuffer inBuffer = (DataInputBuffer)in;
+			if(inBuffer.getLength() - inBuffer.getPosition() >= length){
+				dup.put(inBuffer.getData(), inBuffer.getPosition(), length);
+				inBuffer.skipBytes(length);
+				this.length = length;
+				return;
+			}
+		}
+
+		byte[] copy = copyBuffer.get();
+		int remaining = length;
+		while(remaining > 0)
+		{
+			int n = Math.min(remaining, copy.length);
+			in.readFully(copy, 0, n);
+			dup.put(copy, 0, n);
+			remaining -= n;
+		}
+		this.length = length;
+	}
+
+	/**
+	 * Sets how much of the buffer is valid, after native code has written into it directly.
+	 */
+	public void setLength(int length) {
+		if(length < 0 || length > capacity())
+			throw new RuntimeException("Invalid ChunkBuffer length " + length + " (capacity " + capacity() + ").");
+		this.length = length;
+	}
+
+	/**
+	 * Empties the buffer (keeping its capacity), e.g. before writing the next record into it.
+	 */
+	public void clear() {
+		length = 0;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		ByteBuffer dup = getBuffer();
+		byte[] copy = copyBuffer.get();
+		while(dup.hasRemaining())
+		{
+			int n = Math.min(dup.remaining(), copy.length);
+			dup.get(copy, 0, n);
+			out.write(copy, 0, n);
+		}
+	}
+
+	/**
+	 * An OutputStream that appends to the buffer (from the current length), e.g. for SequenceFile raw values.
+	 */
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(length + len > capacity())
+					throw new IOException("ChunkBuffer is full (" + capacity() + " bytes).");
+				ByteBuffer dup = buffer.duplicate();
+				dup.clear();
+				dup.position(length);
+				dup.put(b, off, len);
+				length += len;
+			}
+		};
+	}
+
+	/**
+	 * Copies the data into a byte array (which must have room for getLength() bytes).
+	 */
+	public void copyTo(byte[] data) {
+		getBuffer().get(data, 0, length);
+	}
+
+	/**
+	 * A view of the valid data (position 0, limit getLength()).
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer dup = buffer.duplicate();
+		dup.clear();
+		dup.limit(length);
+		return dup;
+	}
+
+	/**
+	 * The direct buffer itself, for handing to native code along with getLength().
+	 */
+	public ByteBuffer getDirectBuffer() {
+		return buffer;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int capacity() {
+		return buffer.capacity();
+	}
+
+	public static String getPoolStats() {
+		synchronized (pool) {
+			return "ChunkBuffer pool [idle=" + pool.size() + " (" + FileUtils.humanReadableByteCount(pooledBytes, false) + "), allocated=" + allocated + ", reused=" + reused + "]";
+		}
+	}
+
+	/**
+	 * Drops all of the idle buffers.
+	 */
+	public static void clearPool() {
+		synchronized (pool) {
+			for(Iterator<ChunkBuffer> it = pool.iterator(); it.hasNext(); it.remove())
+				pooledBytes -= it.next().capacity();
+		}
+	}
+}
@@ -2,7 +2,10 @@ package com.tstordyallison.ffmpegmr;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -10,10 +13,31 @@ import org.apache.hadoop.io.Writable;
 
 import com.tstordyallison.ffmpegmr.util.FileUtils;
 
+/**
+ * The packet data for a chunk (the stream header TPL, then the packet TPLs).
+ *
+ * readFields reuses the data array when it is big enough, so a ChunkData that is read into over and over (as Hadoop
+ * does with its keys and values) stops allocating once it has seen its largest chunk. This means getData() can be
+ * longer than the chunk - only the first getLength() bytes are valid.
+ *
+ * With DIRECT_BUFFERS set, readFields reads into a pooled ChunkBuffer instead (off the heap), which the Transcoder and
+ * Remuxer hand to native code without copying. A ChunkData only reads into its ChunkBuffer again if no one else has
+ * retained it, otherwise it takes a new one from the pool.
+ */
 public class ChunkData implements Writable {
+	
+	public static boolean DIRECT_BUFFERS = false; // Read chunks into pooled direct buffers (ffmpeg-mr.directChunkBuffers).
 
-	private byte[] rawData = null; // The raw binary data that this chunk stores.
+	private byte[] rawData = null; // The raw binary data that this chunk stores (grow only when read into).
+	private int length = 0; // How much of rawData is valid.
 	private int packet_count; // Number of packets stored in this chunk.
+	private ChunkBuffer buffer = null; // Set if the data is off the heap (then rawData is only a copy, made on demand).
+	private boolean rawDataValid = true;
+	
+	// Spilled chunks keep their packet data in a temp file until they are written (see PacketRing).
+	private byte[] header = null;
+	private File spillFile = null;
+	private long spillLength = 0;
 	
 	public ChunkData()
 	{
@@ -56,17 +80,156 @@ public class ChunkData implements Writable {
 			cursor += pkt.data.length;
 		}
 		
+		this.length = size;
 		this.packet_count = packets.size();
 	}
 	
+	/**
+	 * Builds the chunk from the header and a run of packet data that is already back to back (e.g. in a PacketRing).
+	 */
+	public ChunkData(byte[] header, byte[] packetData, int offset, int length, int packetCount)
+	{
+		int headerSize = header != null ? header.length : 0;
+		rawData = new byte[headerSize + length];
+		if(header != null)
+			System.arraycopy(header, 0, rawData, 0, headerSize);
+		System.arraycopy(packetData, offset, rawData, headerSize, length);
+		this.length = rawData.length;
+		this.packet_count = packetCount;
+	}
+	
+	/**
+	 * Copies in a whole chunk that has already been laid out (header + packet TPLs), e.g. by Demuxer.readChunk.
+	 */
+	public ChunkData(ByteBuffer data, int packetCount)
+	{
+		rawData = new byte[data.remaining()];
+		data.duplicate().get(rawData);
+		this.length = rawData.length;
+		this.packet_count = packetCount;
+	}
+	
+	/**
+	 * A chunk that is already laid out (header + packet TPLs) in a ChunkBuffer, e.g. by Demuxer.readChunk. The chunk
+	 * takes over the caller's reference to the buffer (and gives it back on release()).
+	 */
+	public ChunkData(ChunkBuffer buffer, int packetCount)
+	{
+		this.buffer = buffer;
+		this.rawDataValid = false;
+		this.packet_count = packetCount;
+	}
+	
+	/**
+	 * A chunk whose packet data is in a spill file (which this chunk now owns, and deletes on release()).
+	 */
+	public ChunkData(byte[] header, File spillFile, long spillLength, int packetCount)
+	{
+		if((header != null ? header.length : 0) + spillLength > Integer.MAX_VALUE)
+			throw new RuntimeException("Chunk is too large (" + FileUtils.humanReadableByteCount(spillLength, false) + ").");
+		this.header = header != null ? header : new byte[0];
+		this.spillFile = spillFile;
+		this.spillLength = spillLength;
+		this.packet_count = packetCount;
+	}
+	
+	/**
+	 * The chunk data (for a spilled chunk, this reads it all back into memory). Only the first getLength() bytes are 
+	 * valid.
+	 */
 	public byte[] getData()
 	{
+		if(buffer != null && !rawDataValid){
+			if(rawData == null || rawData.length < buffer.getLength())
+				rawData = new byte[buffer.getLength()];
+			buffer.copyTo(rawData);
+			length = buffer.getLength();
+			rawDataValid = true;
+		}
+		if(rawData == null && spillFile != null){
+			try {
+				rawData = new byte[(int)getSize()];
+				length = rawData.length;
+				System.arraycopy(header, 0, rawData, 0, header.length);
+				FileInputStream in = new FileInputStream(spillFile);
+				try {
+					int read = 0;
+					while(read < spillLength)
+					{
+						int n = in.read(rawData, header.length + read, (int)spillLength - read);
+						if(n < 0)
+							throw new IOException("Spill file " + spillFile + " is truncated.");
+						read += n;
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				rawData = null;
+				throw new RuntimeException("Failed to read spilled chunk (" + e.getMessage() + ").", e);
+			}
+		}
 		return rawData;
 	}
 	
 	public long getSize()
 	{
-		return rawData.length;
+		if(spillFile != null)
+			return header.length + spillLength;
+		if(buffer != null)
+			return buffer.getLength();
+		return length;
+	}
+	
+	/**
+	 * How much of getSize() is held in memory: all of it, except for a spilled chunk, which only holds its header.
+	 */
+	public long getMemorySize()
+	{
+		if(spillFile != null)
+			return header.length;
+		return getSize();
+	}
+	
+	/**
+	 * The off heap buffer the data is in, or null if it is on the heap (or spilled). Anyone keeping hold of it after 
+	 * the next readFields should retain() it.
+	 */
+	public ChunkBuffer getBuffer()
+	{
+		return buffer;
+	}
+	
+	/**
+	 * The number of valid bytes in getData().
+	 */
+	public int getLength()
+	{
+		return (int)getSize();
+	}
+	
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+	
+	/**
+	 * Deletes the spill file once the chunk has been written, and gives back the off heap buffer if there is one.
+	 */
+	public void release()
+	{
+		if(spillFile != null)
+			spillFile.delete();
+		releaseBuffer();
+	}
+	
+	private void releaseBuffer()
+	{
+		if(buffer != null){
+			buffer.release();
+			buffer = null;
+			rawDataValid = true;
+			length = 0;
+		}
 	}
 	
 	public long getPacketCount() {
@@ -76,16 +239,57 @@ public class ChunkData implements Writable {
 	@Override
 	public void write(DataOutput out) throws IOException {
 		out.writeInt(packet_count);
-		out.writeInt(rawData.length);
-		out.write(rawData);
+		if(rawData == null && spillFile != null){
+			// Stream it from the file, so we never hold the whole chunk.
+			out.writeInt((int)getSize());
+			out.write(header);
+			byte[] copy = new byte[65536];
+			FileInputStream in = new FileInputStream(spillFile);
+			try {
+				long remaining = spillLength;
+				while(remaining > 0)
+				{
+					int n = in.read(copy, 0, (int)Math.min(copy.length, remaining));
+					if(n < 0)
+						throw new IOException("Spill file " + spillFile + " is truncated.");
+					out.write(copy, 0, n);
+					remaining -= n;
+				}
+			} finally {
+				in.close();
+			}
+			return;
+		}
+		if(buffer != null){
+			out.writeInt(buffer.getLength());
+			buffer.writeTo(out);
+			return;
+		}
+		out.writeInt(length);
+		out.write(rawData, 0, length);
 	}
 
 	@Override
 	public void readFields(DataInput in) throws IOException {
 		this.packet_count = in.readInt();
+		this.header = null;
+		this.spillFile = null;
+		this.spillLength = 0;
 		int size = in.readInt();
-		rawData = new byte[size];
-		in.readFully(rawData); // Internally this data is all delimited using TPL anyway.
+		if(DIRECT_BUFFERS){
+			if(buffer != null && (!buffer.isExclusive() || buffer.capacity() < size))
+				releaseBuffer();
+			if(buffer == null)
+				buffer = ChunkBuffer.acquire(size);
+			buffer.readFrom(in, size);
+			rawDataValid = false;
+			return;
+		}
+		releaseBuffer();
+		if(rawData == null || rawData.length < size)
+			rawData = new byte[size + (size >> 3)]; // Some room to spare, so slightly bigger chunks don't need a new array.
+		in.readFully(rawData, 0, size); // Internally this data is all delimited using TPL anyway.
+		length = size;
 	}
 	
 	@Override
@@ -94,9 +298,11 @@ public class ChunkData implements Writable {
 		return "ChunkData ["
 				+ "\n\t\thashCode=" + super.hashCode()
 				+ "\n\t\tsize=" + FileUtils.humanReadableByteCount(this.getSize(), false)
-				+ (rawData != null ? "\n\t\trawData="
+				+ (spillFile != null ? "\n\t\tspillFile=" + spillFile : "")
+				+ (buffer != null ? "\n\t\tbuffer=direct" : "")
+				+ (buffer == null && rawData != null ? "\n\t\trawData="
 						+ Arrays.toString(Arrays.copyOf(rawData,
-								Math.min(rawData.length, maxLen))) + "..." : "")
+								Math.min(length, maxLen))) + "..." : "")
 				+ "\n]";
 	}
 
@@ -105,7 +311,11 @@ public class ChunkData implements Writable {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + packet_count;
-		result = prime * result + Arrays.hashCode(rawData);
+		byte[] data = getData();
+		int dataHash = 1;
+		for(int i = 0; i < getLength(); i++)
+			dataHash = 31 * dataHash + data[i]; // Same as Arrays.hashCode over the valid bytes.
+		result = prime * result + dataHash;
 		return result;
 	}
 	
@@ -120,8 +330,12 @@ public class ChunkData implements Writable {
 		ChunkData other = (ChunkData) obj;
 		if (packet_count != other.packet_count)
 			return false;
-		if (!Arrays.equals(rawData, other.rawData))
+		byte[] data = getData(), otherData = other.getData();
+		if (getLength() != other.getLength())
 			return false;
+		for (int i = 0; i < getLength(); i++)
+			if (data[i] != otherData[i])
+				return false;
 		return true;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The chunks the ChunkerThread has drained, indexed by their [startTS, endTS) ranges so that the chunks containing a
+ * new chunk's end TS can be found without going through all of them.
+ *
+ * Chunks are dropped once they end at or before the watermark (the lowest TS any later chunk can end after - see
+ * evictBefore), which keeps the history down to the chunks around the current demux position however long the input is.
+ */
+public class ChunkHistory {
+
+	private static class Entry {
+		private final long start;
+		private final long end;
+		private final long seq;
+		private final ChunkID chunkID;
+
+		private Entry(long start, long end, long seq, ChunkID chunkID) {
+			this.start = start;
+			this.end = end;
+			this.seq = seq;
+			this.chunkID = chunkID;
+		}
+	}
+
+	private static final Comparator<Entry> BY_START = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			if(a.start != b.start)
+				return a.start < b.start ? -1 : 1;
+			return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<Entry> BY_END = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			if(a.end != b.end)
+				return a.end < b.end ? -1 : 1;
+			return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+		}
+	};
+
+	private final TreeSet<Entry> byStart = new TreeSet<Entry>(BY_START);
+	private final TreeSet<Entry> byEnd = new TreeSet<Entry>(BY_END);
+	private long maxLength = 0; // The longest chunk we have seen, which bounds how far back a containing chunk can start.
+	private long seq = 0;
+	private long evicted = 0;
+
+	public void add(ChunkID chunkID) {
+		Entry entry = new Entry(chunkID.getStartTS(), chunkID.getEndTS(), seq++, chunkID);
+		byStart.add(entry);
+		byEnd.add(entry);
+		maxLength = Math.max(maxLength, entry.end - entry.start);
+	}
+
+	/**
+	 * The chunks with startTS < ts < endTS.
+	 */
+	public List<ChunkID> containing(long ts) {
+		List<ChunkID> found = new ArrayList<ChunkID>(2);
+		if(maxLength <= 0)
+			return found;
+
+		// Only chunks starting in (ts - maxLength, ts) can reach past ts.
+		Entry from = new Entry(ts - maxLength, 0, Long.MIN_VALUE, null);
+		Entry to = new Entry(ts, 0, Long.MIN_VALUE, null);
+		for(Entry entry : byStart.subSet(from, false, to, false))
+			if(entry.start < ts && ts < entry.end)
+				found.add(entry.chunkID);
+		return found;
+	}
+
+	/**
+	 * Drops the chunks that end at or before the watermark. The caller promises that no chunk it looks up from now on
+	 * ends at or before it (for the chunker, that is the lowest TS still waiting in its buffers).
+	 */
+	public void evictBefore(long watermark) {
+		while(!byEnd.isEmpty() && byEnd.first().end <= watermark)
+		{
+			Entry entry = byEnd.pollFirst();
+			byStart.remove(entry);
+			evicted++;
+		}
+	}
+
+	public int size() {
+		return byStart.size();
+	}
+
+	public long getEvictedCount() {
+		return evicted;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkHistory [size=" + size() + ", evicted=" + evicted + ", maxLength=" + maxLength + "]";
+	}
+}
@@ -4,18 +4,29 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.joda.time.Period;
 import org.joda.time.format.PeriodFormat;
 
 import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
 
-public class ChunkID implements Writable, Comparable<ChunkID> {
+public class ChunkID implements WritableComparable<ChunkID> {
+	
+	/**
+	 * First byte of a ChunkID written in the current (version 1) format. The old format started with the stream ID as 
+	 * an int, so its first byte is always 0x00 (or 0xFF for an unset ID), and readFields can tell them apart.
+	 */
+	public static final byte FORMAT_V1 = (byte)0xC1;
+	
+	static {
+		WritableComparator.define(ChunkID.class, new Comparator());
+	}
 	
 	private long streamDuration = Long.MAX_VALUE;
 	private long chunkNumber = -1;
@@ -25,32 +36,71 @@ public class ChunkID implements Writable, Comparable<ChunkID> {
 	private long tbNum = 0;
 	private long tbDen = 1;
 	private List<Long> outputChunkPoints = new ArrayList<Long>(); // Stores the extra points at which this chunk will split on encode
+	private ArrayList<Long> readChunkPoints = null; // The list readFields made (which it can reuse, as no one else has it).
 	private Demuxer.AVMediaType streamType = AVMediaType.UNKNOWN;
 	
-	private boolean written = false; 
+	private volatile boolean written = false; 
 	
+	/**
+	 * Writes the version 1 format: the marker byte, then variable length fields, with the end TS relative to the start 
+	 * and each output chunk point relative to the one before (the first to the start TS).
+	 */
 	@Override
 	public void write(DataOutput out) throws IOException {
-		out.writeInt(streamID);
-		out.writeLong(chunkNumber);
-		out.writeLong(startTS);
-		out.writeLong(endTS);
-		out.writeLong(tbNum);
-		out.writeLong(tbDen);
-		out.writeLong(streamDuration);
-		out.writeInt(streamType.ordinal());
-		StringBuilder sb = new StringBuilder();
-		for(Long point : outputChunkPoints){
-			sb.append(point);
-			sb.append(",");
+		out.writeByte(FORMAT_V1);
+		WritableUtils.writeVInt(out, streamID);
+		WritableUtils.writeVLong(out, chunkNumber);
+		WritableUtils.writeVLong(out, startTS);
+		WritableUtils.writeVLong(out, endTS - startTS);
+		WritableUtils.writeVLong(out, tbNum);
+		WritableUtils.writeVLong(out, tbDen);
+		WritableUtils.writeVLong(out, streamDuration);
+		WritableUtils.writeVInt(out, streamType.ordinal());
+		WritableUtils.writeVInt(out, outputChunkPoints.size());
+		long last = startTS;
+		for(long point : outputChunkPoints){
+			WritableUtils.writeVLong(out, point - last);
+			last = point;
 		}
-		out.writeUTF(sb.toString());
 		
 		this.written = true; // This prevents modification.
 	}
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		streamID = in.readInt();
+		byte first = in.readByte();
+		if(first != FORMAT_V1){
+			readFieldsV0(first, in);
+			return;
+		}
+		
+		streamID = WritableUtils.readVInt(in);
+		chunkNumber = WritableUtils.readVLong(in);
+		startTS = WritableUtils.readVLong(in);
+		endTS = startTS + WritableUtils.readVLong(in);
+		tbNum = WritableUtils.readVLong(in);
+		tbDen = WritableUtils.readVLong(in);
+		streamDuration = WritableUtils.readVLong(in);
+		streamType = Demuxer.AVMediaType.values()[WritableUtils.readVInt(in)];
+		int count = WritableUtils.readVInt(in);
+		outputChunkPoints = getReadChunkPoints();
+		long last = startTS;
+		for(int i = 0; i < count; i++){
+			last += WritableUtils.readVLong(in);
+			outputChunkPoints.add(last);
+		}
+	}
+	private List<Long> getReadChunkPoints() {
+		if(readChunkPoints == null || outputChunkPoints != readChunkPoints || written)
+			readChunkPoints = new ArrayList<Long>();
+		else
+			readChunkPoints.clear();
+		return readChunkPoints;
+	}
+	/**
+	 * Reads the original format (fixed size fields, and the chunk points as comma separated text), given its first byte.
+	 */
+	private void readFieldsV0(byte first, DataInput in) throws IOException {
+		streamID = ((first & 0xff) << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
 		chunkNumber = in.readLong();
 		startTS = in.readLong();
 		endTS = in.readLong();
@@ -58,13 +108,12 @@ public class ChunkID implements Writable, Comparable<ChunkID> {
 		tbDen = in.readLong();
 		streamDuration = in.readLong();
 		streamType = Demuxer.AVMediaType.values()[in.readInt()];
-		outputChunkPoints =  new ArrayList<Long>();
+		outputChunkPoints = getReadChunkPoints();
 		String input = in.readUTF();
 		if(!input.isEmpty())
 		{
-			List<String> chunkPoints = Arrays.asList(input.split(","));
-				for(String point : chunkPoints)
-					outputChunkPoints.add(Long.parseLong(point));
+			for(String point : input.split(","))
+				outputChunkPoints.add(Long.parseLong(point));
 		}
 	}
 
@@ -138,6 +187,25 @@ public class ChunkID implements Writable, Comparable<ChunkID> {
 	{
 		return !written;
 	}
+	/**
+	 * Makes this ID read only (as it would be once written). The writer calls this before it writes the ID, so a
+	 * chunker still fixing up its chunk points (see addOutputChunkPoint) either gets in first or is told it is too late.
+	 */
+	public synchronized void freeze()
+	{
+		written = true;
+	}
+	/**
+	 * Adds an output chunk point (keeping them sorted), unless the ID has been frozen. Returns false if it was too late.
+	 */
+	public synchronized boolean addOutputChunkPoint(long point)
+	{
+		if(written)
+			return false;
+		outputChunkPoints.add(point);
+		Collections.sort(outputChunkPoints);
+		return true;
+	}
 	
 	public long getMillisecondsStartTs()
 	{
@@ -185,9 +253,68 @@ public class ChunkID implements Writable, Comparable<ChunkID> {
 		return builder.toString();
 	}
 	
+	/**
+	 * Orders by stream, then chunk number, then start TS.
+	 */
 	@Override
 	public int compareTo(ChunkID o) {
-		return this.toString().compareTo(o.toString());
+		if(streamID != o.streamID)
+			return streamID < o.streamID ? -1 : 1;
+		if(chunkNumber != o.chunkNumber)
+			return chunkNumber < o.chunkNumber ? -1 : 1;
+		if(startTS != o.startTS)
+			return startTS < o.startTS ? -1 : 1;
+		return 0;
+	}
+	
+	/**
+	 * Compares serialised ChunkIDs in the same order as compareTo, without reading them back in (the fields it needs 
+	 * come first in both formats).
+	 */
+	public static class Comparator extends WritableComparator {
+		public Comparator() {
+			super(ChunkID.class);
+		}
+		
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				if(b1[s1] == FORMAT_V1 && b2[s2] == FORMAT_V1){
+					// Walk the stream ID, chunk number and start TS of both.
+					s1++; s2++;
+					for(int field = 0; field < 3; field++){
+						long value1 = readVLong(b1, s1);
+						long value2 = readVLong(b2, s2);
+						if(value1 != value2)
+							return value1 < value2 ? -1 : 1;
+						s1 += WritableUtils.decodeVIntSize(b1[s1]);
+						s2 += WritableUtils.decodeVIntSize(b2[s2]);
+					}
+					return 0;
+				}
+				for(int field = 0; field < 3; field++){
+					long value1 = readField(b1, s1, field);
+					long value2 = readField(b2, s2, field);
+					if(value1 != value2)
+						return value1 < value2 ? -1 : 1;
+				}
+				return 0;
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to read a serialised ChunkID.", e);
+			}
+		}
+		
+		/**
+		 * Field 0, 1 or 2 (stream ID, chunk number, start TS) of a ChunkID in either format.
+		 */
+		private static long readField(byte[] b, int s, int field) throws IOException {
+			if(b[s] != FORMAT_V1)
+				return field == 0 ? readInt(b, s) : readLong(b, s + 4 + (field - 1) * 8);
+			s++;
+			for(int i = 0; i < field; i++)
+				s += WritableUtils.decodeVIntSize(b[s]);
+			return readVLong(b, s);
+		}
 	}
 	
 	public static long toMs(long value, long tbNum, long tbDen){
@@ -0,0 +1,226 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
+
+/**
+ * The chunks an input will be split into, worked out before demuxing it.
+ *
+ * Timestamps are in the common demuxer timebase (1/getTbDen()).
+ */
+public class ChunkPlan {
+
+	public static class PlannedChunk {
+		private final int streamID;
+		private final AVMediaType streamType;
+		private final long startTS;
+		private final long endTS;
+		private final long startPos;
+		private final long size;
+		private final int packetCount;
+
+		public PlannedChunk(int streamID, AVMediaType streamType, long startTS, long endTS, long startPos, long size, int packetCount) {
+			this.streamID = streamID;
+			this.streamType = streamType;
+			this.startTS = startTS;
+			this.endTS = endTS;
+			this.startPos = startPos;
+			this.size = size;
+			this.packetCount = packetCount;
+		}
+
+		public int getStreamID() {
+			return streamID;
+		}
+		public AVMediaType getStreamType() {
+			return streamType;
+		}
+		public long getStartTS() {
+			return startTS;
+		}
+		public long getEndTS() {
+			return endTS;
+		}
+		/**
+		 * Byte position of the first packet in the input (-1 if unknown).
+		 */
+		public long getStartPos() {
+			return startPos;
+		}
+		/**
+		 * Size of the chunk data (exact when planned from a PacketIndex, an estimate otherwise).
+		 */
+		public long getSize() {
+			return size;
+		}
+		/**
+		 * Number of packets in the chunk (-1 if unknown).
+		 */
+		public int getPacketCount() {
+			return packetCount;
+		}
+
+		@Override
+		public String toString() {
+			return "PlannedChunk [streamID=" + streamID + ", startTS=" + startTS + ", endTS=" + endTS + ", size=" + size + ", packets=" + packetCount + "]";
+		}
+	}
+
+	private final long tbDen;
+	private final List<List<PlannedChunk>> streams = new ArrayList<List<PlannedChunk>>();
+
+	public ChunkPlan(int streamCount, long tbDen) {
+		this.tbDen = tbDen;
+		for(int i = 0; i < streamCount; i++)
+			streams.add(new ArrayList<PlannedChunk>());
+	}
+
+	public void add(PlannedChunk chunk) {
+		streams.get(chunk.getStreamID()).add(chunk);
+	}
+
+	public long getTbDen() {
+		return tbDen;
+	}
+
+	public int getStreamCount() {
+		return streams.size();
+	}
+
+	public List<PlannedChunk> getChunks(int streamID) {
+		return Collections.unmodifiableList(streams.get(streamID));
+	}
+
+	/**
+	 * True if every chunk was planned from single packets with their real timestamps (i.e. from a PacketIndex), so the
+	 * plan is exactly what the ChunkerThread will drain.
+	 */
+	public boolean isExact() {
+		for(List<PlannedChunk> chunks : streams)
+			for(PlannedChunk chunk : chunks)
+				if(chunk.getPacketCount() < 0)
+					return false;
+		return true;
+	}
+
+	/**
+	 * The end TS of each chunk in the stream but the last (i.e. the points the stream's chunks are cut at).
+	 */
+	public long[] getCutPoints(int streamID) {
+		List<PlannedChunk> chunks = streams.get(streamID);
+		long[] points = new long[Math.max(chunks.size() - 1, 0)];
+		for(int i = 0; i < points.length; i++)
+			points[i] = chunks.get(i).getEndTS();
+		return points;
+	}
+
+	/**
+	 * Every stream's cut points together, sorted and without duplicates. These are the output chunk points for the
+	 * whole input.
+	 */
+	public long[] getGrid() {
+		int total = 0;
+		for(int i = 0; i < streams.size(); i++)
+			total += Math.max(streams.get(i).size() - 1, 0);
+		long[] grid = new long[total];
+		int n = 0;
+		for(int i = 0; i < streams.size(); i++)
+			for(long point : getCutPoints(i))
+				grid[n++] = point;
+		Arrays.sort(grid);
+
+		int unique = 0;
+		for(int i = 0; i < grid.length; i++)
+			if(i == 0 || grid[i] != grid[unique-1])
+				grid[unique++] = grid[i];
+		return Arrays.copyOf(grid, unique);
+	}
+
+	public int getChunkCount() {
+		int total = 0;
+		for(List<PlannedChunk> chunks : streams)
+			total += chunks.size();
+		return total;
+	}
+
+	/**
+	 * Plans the chunks the ChunkerThread will drain from a packet index.
+	 */
+	public static ChunkPlan fromPacketIndex(PacketIndex index, long[] blockSizes) {
+		ChunkPlan plan = new ChunkPlan(index.getStreamCount(), index.getTbDen());
+		for(int s = 0; s < index.getStreamCount(); s++)
+		{
+			PacketIndex.StreamEntries stream = index.getStream(s);
+			int count = stream.size();
+			long[] ts = new long[count], pos = new long[count], size = new long[count];
+			boolean[] keyframe = new boolean[count];
+			for(int i = 0; i < count; i++)
+			{
+				ts[i] = stream.getTs(i);
+				pos[i] = stream.getPos(i);
+				size[i] = stream.getSize(i);
+				keyframe[i] = stream.isKeyframe(i);
+			}
+			long endTS = count > 0 ? ts[count-1] + stream.getDuration(count-1) : 0;
+			plan.addStream(s, stream.getType(), stream.getHeaderSize(), blockSizes[s], count, ts, pos, size, keyframe, endTS, true);
+		}
+		return plan;
+	}
+
+	/**
+	 * Plans one stream the way the ChunkerThread drains it: a chunk is cut at the last keyframe once the buffered
+	 * packets (plus the stream header) go over the block size, and whatever is left at the end is the last chunk.
+	 *
+	 * The entries can be single packets, or (for estimated plans) runs of packets that start on a keyframe. In the
+	 * second case, pass exact = false and the chunk packet counts are left as -1.
+	 */
+	public void addStream(int streamID, AVMediaType type, int headerSize, long blockSize, int count,
+						  long[] ts, long[] pos, long[] size, boolean[] keyframe, long endTS, boolean exact) {
+		int start = 0;
+		int endMarker = -1; // Relative to start, like the ChunkBuffers end markers.
+		long bufferSize = headerSize;
+
+		for(int i = 0; i < count; i++)
+		{
+			bufferSize += size[i];
+			if(keyframe[i])
+				endMarker = i - start;
+
+			if(bufferSize > blockSize && endMarker > 0)
+			{
+				long chunkSize = 0;
+				for(int j = start; j < start + endMarker; j++)
+					chunkSize += size[j];
+				add(new PlannedChunk(streamID, type, ts[start], ts[start + endMarker], pos[start], headerSize + chunkSize, exact ? endMarker : -1));
+				bufferSize -= chunkSize;
+				start += endMarker;
+				endMarker = -1;
+			}
+		}
+
+		if(start < count)
+		{
+			long chunkSize = 0;
+			for(int j = start; j < count; j++)
+				chunkSize += size[j];
+			add(new PlannedChunk(streamID, type, ts[start], endTS, pos[start], headerSize + chunkSize, exact ? count - start : -1));
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ChunkPlan [" + getChunkCount() + " chunks");
+		for(int i = 0; i < streams.size(); i++)
+		{
+			long total = 0;
+			for(PlannedChunk chunk : streams.get(i))
+				total += chunk.getSize();
+			sb.append("\n\t\tStream " + i + ": " + streams.get(i).size() + " chunks, " + total + " bytes");
+		}
+		return sb.append("\n]").toString();
+	}
+}
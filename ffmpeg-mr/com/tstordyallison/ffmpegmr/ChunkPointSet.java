@@ -0,0 +1,109 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The output chunk points the ChunkerThread has handed out (the end TS of each chunk drained), kept sorted in a long[]
+ * so the points inside a chunk's range can be read straight off, and the ones behind the demux position dropped.
+ *
+ * Points mostly arrive in order, so adding one is usually just an append.
+ */
+public class ChunkPointSet {
+
+	private long[] points;
+	private int start = 0;	// Live points are points[start..end).
+	private int end = 0;
+
+	public ChunkPointSet() {
+		this(256);
+	}
+
+	public ChunkPointSet(int capacity) {
+		points = new long[Math.max(capacity, 4)];
+	}
+
+	/**
+	 * Adds the point (if we don't have it already).
+	 */
+	public void add(long point) {
+		int index;
+		if(end == start || points[end-1] < point)
+			index = end;
+		else{
+			index = Arrays.binarySearch(points, start, end, point);
+			if(index >= 0)
+				return;
+			index = -index - 1;
+		}
+
+		if(end == points.length){
+			int offset = index - start;
+			makeRoom();
+			index = start + offset;
+		}
+		System.arraycopy(points, index, points, index + 1, end - index);
+		points[index] = point;
+		end++;
+	}
+
+	private void makeRoom() {
+		int live = end - start;
+		long[] dest = points;
+		if(live >= points.length / 2)
+			dest = new long[points.length * 2];
+		System.arraycopy(points, start, dest, 0, live);
+		points = dest;
+		start = 0;
+		end = live;
+	}
+
+	/**
+	 * Adds the points p with from < p < to to the list, in order.
+	 */
+	public void getRange(long from, long to, List<Long> out) {
+		int i = firstAbove(from);
+		for(; i < end && points[i] < to; i++)
+			out.add(points[i]);
+	}
+
+	/**
+	 * Drops every point at or below the watermark.
+	 */
+	public void trim(long watermark) {
+		start = firstAbove(watermark);
+		if(start == end){
+			start = 0;
+			end = 0;
+		}
+	}
+
+	/**
+	 * The index of the first point > value.
+	 */
+	private int firstAbove(long value) {
+		int low = start, high = end;
+		while(low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if(points[mid] <= value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	public boolean contains(long point) {
+		return Arrays.binarySearch(points, start, end, point) >= 0;
+	}
+
+	public int size() {
+		return end - start;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkPointSet [size=" + size() + (size() > 0 ? ", first=" + points[start] + ", last=" + points[end-1] : "") + "]";
+	}
+}
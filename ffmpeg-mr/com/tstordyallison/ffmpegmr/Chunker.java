@@ -2,11 +2,14 @@ package com.tstordyallison.ffmpegmr;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 
 import com.tstordyallison.ffmpegmr.emr.Logger;
 import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
@@ -14,6 +17,9 @@ import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
 public class Chunker {
 	
 	public static int CHUNK_Q_LIMIT = 4;
+	public static long CHUNK_Q_BYTES = 268435456; // Memory budget for the chunks between the demuxer and the writer (256MB).
+	public static int WRITER_THREADS = 1; // More than 1 writes the chunks to that many part files under the output uri (as a directory).
+	public static boolean STRIPE_BY_STREAM = false; // Give each stream its own part file(s), rather than going round robin.
 	
 	public static class ChunkerReport {
 		private long[] packetCounts;
@@ -47,27 +53,85 @@ public class Chunker {
 	}
 	
 	public static ChunkerReport chunkInputFile(Configuration config, String inputUri, String hadoopUri, int blockSize) throws IOException, InterruptedException, URISyntaxException{
+		// Chunk queue for processing (bounded by the bytes in it, including the chunks the writer is holding back).
+		return chunkInputFile(config, inputUri, hadoopUri, blockSize, new ByteBoundedChunkQueue(config.getLong("ffmpeg-mr.chunkQueueBytes", CHUNK_Q_BYTES)));
+	}
+	
+	/**
+	 * As above, but using the given chunk queue (e.g. one drawing on a MemoryBudget shared with other inputs, see DemuxScheduler).
+	 */
+	public static ChunkerReport chunkInputFile(Configuration config, String inputUri, String hadoopUri, int blockSize, ByteBoundedChunkQueue chunkQ) throws IOException, InterruptedException, URISyntaxException{
 		Logger logger = new Logger(config);
 		logger.println("Demuxing " + inputUri + "...");
 		
-		// Chunk queue for processing
-		BlockingQueue<Chunk> chunkQ = new LinkedBlockingQueue<Chunk>(CHUNK_Q_LIMIT);
-		
 		// Start the chunker 
-		WriterThread writer = new WriterThread(config, chunkQ, hadoopUri, "Hadoop FS Writer Thread", blockSize); 
-		writer.setUncaughtExceptionHandler(new ThreadCatcher());
 		ChunkerThread chunker = new ChunkerThread(config, chunkQ, inputUri, blockSize, "FFmpeg JNI Demuxer");
 		chunker.setUncaughtExceptionHandler(new ThreadCatcher());
+		WriterThread writer = new WriterThread(config, chunkQ, hadoopUri, "Hadoop FS Writer Thread", blockSize, 
+											   config.getInt("ffmpeg-mr.writerThreads", WRITER_THREADS), 
+											   config.getBoolean("ffmpeg-mr.stripeByStream", STRIPE_BY_STREAM)); 
+		writer.setUncaughtExceptionHandler(new ThreadCatcher());
+		if(chunker.hasFinalChunkIDs())
+			writer.setWriteBufferSize(0); // Nothing will need fixing up, so write the chunks as they come.
 		
-		// Start and wait for completion.
+		// Start and wait for completion. The writer finishes after the chunker unless it fails, in which case the 
+		// chunker could be stuck waiting for memory the writer will never give back.
 		chunker.start(); writer.start();
-		chunker.join(); writer.join();
+		writer.join();
+		if(writer.getFailure() != null){
+			chunker.interrupt();
+			chunker.join();
+			throw new IOException("Writing the chunks of " + inputUri + " failed.", writer.getFailure());
+		}
+		chunker.join();
+		if(chunker.getFailure() != null)
+			throw new IOException("Demuxing " + inputUri + " failed.", chunker.getFailure());
 		
 		// Job done!
+		logger.println(chunkQ.toString());
 		logger.println("Sucessfully Demuxed " + inputUri + ".");
 		logger.flush();
 		
 		return new ChunkerReport(chunker.getPacketCounts(), chunker.getEndTS());
 	}
+	
+	/**
+	 * Plans the chunks for an input without demuxing it (from its packet index sidecar if there is one, otherwise from the container index).
+	 */
+	public static ChunkPlan planInputFile(Configuration config, String inputUri, long blockSize) throws IOException, URISyntaxException{
+		Demuxer demuxer;
+		FSDataInputStream in = null;
+		long length;
+		
+		if(inputUri.startsWith("file://")){
+			File file = new File(inputUri.substring(7));
+			demuxer = new Demuxer(file);
+			length = file.length();
+		}
+		else{
+			FileSystem fs = FileSystem.get(new URI(inputUri), config);
+			Path file = new Path(inputUri);
+			FileStatus status = fs.getFileStatus(file);
+			length = status.getLen();
+			in = fs.open(file);
+			demuxer = ProbeCache.getInstance(config).open(ProbeCache.getKey(inputUri, length, status.getModificationTime()), 
+														  in, length, Demuxer.STREAM_BUFFER_SIZE, Demuxer.STREAM_PREFETCH_BLOCKS);
+		}
+		
+		try{
+			long[] blockSizes = ChunkerThread.getBlockSizes(demuxer, blockSize);
+			if(config.getBoolean("ffmpeg-mr.packetIndex", ChunkerThread.USE_PACKET_INDEX)){
+				PacketIndex index = PacketIndex.load(config, inputUri);
+				if(index != null && index.getStreamCount() == demuxer.getStreamCount())
+					return ChunkPlan.fromPacketIndex(index, blockSizes);
+			}
+			return IndexChunkPlanner.plan(demuxer, blockSizes, length);
+		}
+		finally{
+			demuxer.close();
+			if(in != null)
+				in.close();
+		}
+	}
 		
 }
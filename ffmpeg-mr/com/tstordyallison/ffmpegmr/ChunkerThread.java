@@ -4,66 +4,117 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.Set;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.joda.time.Period;
 import org.joda.time.format.PeriodFormat;
 
+import com.tstordyallison.ffmpegmr.Demuxer.StreamParams;
 import com.tstordyallison.ffmpegmr.emr.Logger;
 import com.tstordyallison.ffmpegmr.util.FileUtils;
+import com.tstordyallison.ffmpegmr.util.FollowInputStream;
 
 public class ChunkerThread extends Thread {
 	
 	public class ChunkBuffers {
 		
 		private ChunkID					endTSChunkID				= new ChunkID();
-		private List<Long>				packetCount					= new ArrayList<Long>(demuxer.getStreamCount());
-		private List<ChunkID>			chunkHistory				= new ArrayList<ChunkID>(100);
-		private List<Boolean>           streamFirstChunk			= new ArrayList<Boolean>(demuxer.getStreamCount()); 
-		private List<ByteBuffer> 		streamHeaders 				= new ArrayList<ByteBuffer>(demuxer.getStreamCount()); 		
-		private List<List<DemuxPacket>> currentChunks				= new ArrayList<List<DemuxPacket>>(demuxer.getStreamCount()); 
-		private List<Integer> 			currentChunksSizes 			= new ArrayList<Integer>(demuxer.getStreamCount()); 			
-		private List<Integer> 			endMarkers 					= new ArrayList<Integer>(demuxer.getStreamCount()); 
-		private Set<Long> 				chunkPoints 				= new HashSet<Long>();
+		private ChunkHistory			chunkHistory				= new ChunkHistory();
+		private long[]					drainedTS					= new long[demuxer.getStreamCount()];
+		private PacketRing[]			streams						= new PacketRing[demuxer.getStreamCount()];
+		private ChunkPointSet			chunkPoints					= new ChunkPointSet();
+		private long[][]				plannedCuts					= null; // Set when the chunk points are planned up front.
+		private int[]					nextCut						= null;
 		
 		public ChunkBuffers()
 		{
+			long spillThreshold = config.getLong("ffmpeg-mr.spillThreshold", SPILL_THRESHOLD);
+			String spillDir = config.get("ffmpeg-mr.spillDir");
 			for(int i = 0; i < demuxer.getStreamCount(); i++)
-			{
-				packetCount.add(0L);
-				streamFirstChunk.add(true);
-				streamHeaders.add(ByteBuffer.wrap(demuxer.getStreamData(i)));
-				currentChunks.add(new LinkedList<DemuxPacket>()); // Linked list makes quite a difference.
-				currentChunksSizes.add(0);
-				endMarkers.add(-1);
-			}
+				streams[i] = new PacketRing(demuxer.getStreamData(i), spillThreshold > 0 ? spillThreshold : Long.MAX_VALUE, 
+											spillDir != null ? new File(spillDir) : null);
+			Arrays.fill(drainedTS, Long.MIN_VALUE);
+		}
+		
+		/**
+		 * Cuts every stream at the points in the plan, and takes the output chunk points from it, rather than finding 
+		 * them as we go. Every ChunkID is then final as soon as it is made. If a cut doesn't land on a planned point (the
+		 * input doesn't match the plan), the demux fails (see newChunkID).
+		 */
+		public void usePlan(ChunkPlan plan) {
+			plannedCuts = new long[streams.length][];
+			nextCut = new int[streams.length];
+			for(int i = 0; i < streams.length; i++)
+				plannedCuts[i] = plan.getCutPoints(i);
+			for(long point : plan.getGrid())
+				chunkPoints.add(point);
+		}
+		
+		public boolean isPlanned() {
+			return plannedCuts != null;
+		}
+		
+		/**
+		 * True if the last packet added to the stream is at (or past) its next planned cut point.
+		 */
+		public boolean atPlannedCut(int streamID) {
+			PacketRing chunkBuffer = streams[streamID];
+			int next = nextCut[streamID];
+			return next < plannedCuts[streamID].length && chunkBuffer.size() > 1 
+					&& chunkBuffer.getTs(chunkBuffer.size()-1) >= plannedCuts[streamID][next];
 		}
 
-		public void add(DemuxPacket currentPacket) {
-			packetCount.set(currentPacket.streamID, packetCount.get(currentPacket.streamID) + 1);
-			currentChunks.get(currentPacket.streamID).add(currentPacket);
-			currentChunksSizes.set(currentPacket.streamID, currentChunksSizes.get(currentPacket.streamID) + currentPacket.data.length);
-			
-			// Mark this if it is a split point.
-			if(currentPacket.splitPoint)
-				endMarkers.set(currentPacket.streamID, currentChunks.get(currentPacket.streamID).size()-1);
-	
+		/**
+		 * Adds packet i of the batch (without making a DemuxPacket for it).
+		 */
+		public void add(DemuxPacketBatch batch, int i) {
+			streams[batch.streamID[i]].add(batch, i);
 		}
 
 		public long getBufferSize(int streamID) {
-			return streamHeaders.get(streamID).limit() + currentChunksSizes.get(streamID);
+			return streams[streamID].getBufferSize();
+		}
+		
+		/**
+		 * The predicted transcode cost of the packets buffered for the stream.
+		 */
+		public double getBufferCost(int streamID) {
+			PacketRing chunkBuffer = streams[streamID];
+			int last = chunkBuffer.size()-1;
+			if(last < 0)
+				return 0;
+			long durationTs = chunkBuffer.getTs(last) + chunkBuffer.getDuration(last) - chunkBuffer.getTs(0);
+			return costModel.cost(streamID, chunkBuffer.size(), chunkBuffer.getBufferSize(), durationTs, chunkBuffer.getTbNum(), chunkBuffer.getTbDen());
+		}
+		
+		/**
+		 * True if what is left of the stream after the next cut (going by the duration estimate, at the buffered cost 
+		 * rate) would only make a small chunk, in which case it is better to make this chunk longer and end the stream 
+		 * with it.
+		 */
+		public boolean isShortTail(int streamID) {
+			PacketRing chunkBuffer = streams[streamID];
+			int endMarker = chunkBuffer.getEndMarker();
+			int last = chunkBuffer.size()-1;
+			if(streamDuration <= 0 || endMarker <= 0 || last < 0)
+				return false;
+			
+			double seconds = (double)(chunkBuffer.getTs(last) + chunkBuffer.getDuration(last) - chunkBuffer.getTs(0)) * chunkBuffer.getTbNum() / chunkBuffer.getTbDen();
+			double remaining = streamDuration / 1000.0 - (double)chunkBuffer.getTs(Math.min(endMarker, last)) * chunkBuffer.getTbNum() / chunkBuffer.getTbDen();
+			if(seconds <= 0 || remaining <= 0)
+				return false;
+			return getBufferCost(streamID) / seconds * remaining < tailMergeFraction * targetCost;
 		}
 
 		public Chunk drainChunk(int streamID)
@@ -74,12 +125,12 @@ public class ChunkerThread extends Thread {
 		public Chunk drainChunk(int streamID, boolean monotonicityCheck) {
 			
 			// Get stream state.
-			List<DemuxPacket> chunkBuffer = currentChunks.get(streamID);
+			PacketRing chunkBuffer = streams[streamID];
 			if(chunkBuffer.size() <= 0)
 				return null;
 			
 			// Check the end markers.
-			int endMarker = endMarkers.get(streamID); // This is exclusive of the end marker, e.g. the end marker is the start of the next chunk.
+			int endMarker = chunkBuffer.getEndMarker(); // This is exclusive of the end marker, e.g. the end marker is the start of the next chunk.
 			
 			if(endMarker == -1) // No where to split yet!
 				return null;
@@ -89,67 +140,96 @@ public class ChunkerThread extends Thread {
 				endMarker = chunkBuffer.size(); 
 			
 			// Build a new chunk ID.
-			ChunkID chunkID = new ChunkID();
-			chunkID.setStreamID(streamID);
-			chunkID.setStreamDuration(streamDuration);
-			chunkID.setStartTS(chunkBuffer.get(0).ts);
-			chunkID.setTbDen(chunkBuffer.get(0).tb_den);
-			chunkID.setTbNum(chunkBuffer.get(0).tb_num);
-			chunkID.setStreamType(demuxer.getStreamMediaType(streamID));
+			long endTS;
 			if(endMarker == chunkBuffer.size()){
 				// This is just an estimate. The last packet in the GOP will probably not be the last PTS.
-				DemuxPacket lastPacket = chunkBuffer.get(endMarker-1);
-				chunkID.setEndTS(lastPacket.ts + lastPacket.duration); 
+				endTS = chunkBuffer.getTs(endMarker-1) + chunkBuffer.getDuration(endMarker-1); 
 			}
 			else
-				chunkID.setEndTS(chunkBuffer.get(endMarker).ts);
+				endTS = chunkBuffer.getTs(endMarker);
+			ChunkID chunkID = newChunkID(streamID, chunkBuffer.getTs(0), endTS, chunkBuffer.getTbNum(), chunkBuffer.getTbDen(), 
+										 endMarker == chunkBuffer.size(), monotonicityCheck);
+			
+			// Build the chunk data, and remove the packets from the buffer (this invalidates the end marker).
+			ChunkData chunkData = chunkBuffer.takeChunk(endMarker);
+			drainedTS[streamID] = endTS;
+			evictHistory();
+			if(plannedCuts != null)
+				while(nextCut[streamID] < plannedCuts[streamID].length && plannedCuts[streamID][nextCut[streamID]] <= endTS)
+					nextCut[streamID]++;
+			
+			// Return the new chunk (this also calls retain on the data so we dealloc correctly).
+			return new Chunk(chunkID, chunkData);
+		}
+		
+		/**
+		 * Takes a chunk that the demuxer has already built natively (see Demuxer.readChunk), and gives it its ChunkID.
+		 * The chunk keeps the assembled buffer, rather than copying it onto the heap.
+		 */
+		public Chunk addAssembledChunk(Demuxer.AssembledChunk assembled) {
+			streams[assembled.streamID].addPacketCount(assembled.packetCount);
+			ChunkID chunkID = newChunkID(assembled.streamID, assembled.startTS, assembled.endTS, 1, ((Demuxer)demuxer).getTimeBaseDen(),
+										 assembled.finalChunk, !assembled.finalChunk);
+			drainedTS[assembled.streamID] = assembled.endTS;
+			evictHistory();
+			Chunk chunk = new Chunk(chunkID, new ChunkData(assembled.data, assembled.packetCount));
+			assembled.data = null;
+			return chunk;
+		}
+		
+		/**
+		 * Builds the ID for a chunk being drained, working out its chunk number and output chunk points, and 
+		 * fixing up the earlier chunks' chunk points to match.
+		 */
+		private ChunkID newChunkID(int streamID, long startTS, long endTS, long tbNum, long tbDen, boolean lastInStream, boolean monotonicityCheck) {
+			
+			ChunkID chunkID = new ChunkID();
+			chunkID.setStreamID(streamID);
+			chunkID.setStreamDuration(streamDuration);
+			chunkID.setStartTS(startTS);
+			chunkID.setTbDen(tbDen);
+			chunkID.setTbNum(tbNum);
+			chunkID.setStreamType(demuxer.getStreamMediaType(streamID));
+			chunkID.setEndTS(endTS);
 			
 			// Figure out the chunkNumber (this is used for tracking the chunks around the MR).
-			if(streamFirstChunk.get(streamID)){
+			if(streams[streamID].takeFirstChunk()){
 				chunkID.setChunkNumber(0); // This fixes the corner case where the first startTS is not 0 (e.g audio post-roll).
-				streamFirstChunk.set(streamID, false);
 			}
 			else
 				chunkID.setChunkNumber(chunkID.getMillisecondsStartTs()); // This should always be correct as it will be a key frame.
 			
-			// Find all of the output chunk points that apply to this chunk.
-			for(Long point : chunkPoints)
-			{
-				if(chunkID.getStartTS() < point && point < chunkID.getEndTS())
-					chunkID.getOutputChunkPoints().add(point);
-			}
+			// Find all of the output chunk points that apply to this chunk (these come out sorted).
+			chunkPoints.getRange(chunkID.getStartTS(), chunkID.getEndTS(), chunkID.getOutputChunkPoints());
 			
-			// Add this to our chunk points going forward.
-			if(endMarker != chunkBuffer.size())
+			// Add this to our chunk points going forward (if we are working to a plan, it must already be one - the chunks
+			// before it have gone out as final, so there is no going back to fix them).
+			if(!lastInStream){
+				if(plannedCuts != null && !chunkPoints.contains(chunkID.getEndTS())){
+					logger.println("Current chunk:" + chunkID.toString());
+					planMismatch = true;
+					throw new RuntimeException("The input does not match its chunk plan (no planned chunk point at " + chunkID.getEndTS() + 
+											   "), its packet index is out of date.");
+				}
 				chunkPoints.add(chunkID.getEndTS());
-			
-			// Sort the chunk points.
-			Collections.sort(chunkID.getOutputChunkPoints());
+			}
 			
 			// ------------------------------------- Monotonicity Fixes -----------------------------------------------
 			
-			// Go through all of the previously output chunks (we might be able to make this a tighter bound, but for now
-			// we're being thorough), and see if our end ts lies in their output ts range (the case where our start lies 
-			// in the range will have had this same code run when it was output where it's end = our start), and if it does
+			// Find the previously output chunks that our end ts lies in the output ts range of (the case where our start lies 
+			// in the range will have had this same code run when it was output where it's end = our start), and for each 
 			// we attempt to modify its chunk point list before it is written to the disk. If it has already been written, 
 			// we will throw and exception and fail, as not having this time stamp in place would break the remuxer.
-			
-			// TODO: try and make this a smaller search (it is very unlikely that chunks a long time ago will actually need checked). 
-			if(monotonicityCheck)
-				for(ChunkID testChunk : chunkHistory)
+			// With a plan, every chunk already has all of the points in its range, so there is nothing to fix.
+			if(monotonicityCheck && plannedCuts == null)
+				for(ChunkID testChunk : chunkHistory.containing(chunkID.getEndTS()))
 				{
-					if(testChunk.getStartTS() < chunkID.getEndTS() && chunkID.getEndTS() < testChunk.getEndTS()){
-						if(!testChunk.getOutputChunkPoints().contains(chunkID.getEndTS())){	
-							if(testChunk.isModifiable()){
-								// We need to add this chunk point!
-								testChunk.getOutputChunkPoints().add(chunkID.getEndTS());
-								Collections.sort(testChunk.getOutputChunkPoints());
-							}
-							else{
-								logger.println("Failure chunk:" + testChunk.toString());
-								logger.println("Current chunk:" + chunkID.toString());
-								throw new RuntimeException("A previously allocated chunk could not be modified to correct its chunk point list.");
-							}
+					if(!testChunk.getOutputChunkPoints().contains(chunkID.getEndTS())){	
+						// We need to add this chunk point (this fails if the writer has already taken the chunk).
+						if(!testChunk.addOutputChunkPoint(chunkID.getEndTS())){
+							logger.println("Failure chunk:" + testChunk.toString());
+							logger.println("Current chunk:" + chunkID.toString());
+							throw new RuntimeException("A previously allocated chunk could not be modified to correct its chunk point list.");
 						}
 					}
 				}
@@ -178,56 +258,56 @@ public class ChunkerThread extends Thread {
 				
 			// ---------------------------------------------------------------------------------------------------------
 			
-			// Build the chunk data.
-			ByteBuffer header = streamHeaders.get(streamID);
-			ChunkData chunkData = new ChunkData(header.array(), new LinkedList<DemuxPacket>(chunkBuffer.subList(0, endMarker)));
+			// Take history of this chunk having been drained.
+			if(plannedCuts == null)
+				chunkHistory.add(chunkID);
 			
-			// Calculate what is left, dealloc the demux packets, and remove them from the buffer.
-			int actualChunkSize = 0;
-			ListIterator<DemuxPacket> it = chunkBuffer.subList(0, endMarker).listIterator();
-			while(it.hasNext())
+			return chunkID;
+		}
+
+		/**
+		 * Drops the chunks from the history that no chunk still to come can end inside of, and the chunk points that no
+		 * chunk still to come can start before. Every later chunk starts at or after the first packet still buffered for
+		 * its stream (or, if none are buffered, the end of the last chunk drained from it), so anything at or before the
+		 * lowest of those is done with. Streams that haven't given us any packets yet are left out.
+		 */
+		private void evictHistory() {
+			long watermark = Long.MAX_VALUE;
+			for(int i = 0; i < streams.length; i++)
 			{
-				DemuxPacket currPacket = it.next();
-				actualChunkSize += currPacket.data.length;
-				it.remove();
+				if(streams[i].size() > 0)
+					watermark = Math.min(watermark, streams[i].getTs(0));
+				else if(drainedTS[i] != Long.MIN_VALUE)
+					watermark = Math.min(watermark, drainedTS[i]);
 			}
-			
-			// Store the left over counter and increment the chunk counter, invalidate the end marker.
-			currentChunksSizes.set(streamID, currentChunksSizes.get(streamID) - actualChunkSize);
-			endMarkers.set(streamID, -1);
-			
-			// Take history of this chunk having been drained.
-			chunkHistory.add(chunkID);
-			
-			// Return the new chunk (this also calls retain on the data so we dealloc correctly).
-			return new Chunk(chunkID, chunkData);
+			if(watermark != Long.MAX_VALUE){
+				chunkHistory.evictBefore(watermark);
+				chunkPoints.trim(watermark);
+			}
+		}
+
+		/**
+		 * Deletes any spill files still held by the buffers.
+		 */
+		public void close() {
+			for(PacketRing stream : streams)
+				stream.close();
+		}
+		
+		public long getSpillCount() {
+			long spills = 0;
+			for(PacketRing stream : streams)
+				spills += stream.getSpillCount();
+			return spills;
 		}
 
 		public void setMaxEndMarker(int streamID){
-			endMarkers.set(streamID, Integer.MAX_VALUE);
+			streams[streamID].setEndMarker(Integer.MAX_VALUE);
 		}
 		
 		@Override
 		public String toString() {
-			final int maxLen = 20;
-			return "ChunkBuffers ["
-					+ (streamHeaders != null ? "\n\t\tstreamHeaders="
-							+ streamHeaders.subList(0,
-									Math.min(streamHeaders.size(), maxLen))
-							+ ", " : "")
-					+ (currentChunks != null ? "\n\t\tcurrentChunks="
-							+ currentChunks.subList(0,
-									Math.min(currentChunks.size(), maxLen))
-							+ ", " : "")
-					+ (currentChunksSizes != null ? "\n\t\tcurrentChunksSizes="
-							+ currentChunksSizes
-									.subList(0, Math.min(
-											currentChunksSizes.size(), maxLen))
-							+ ", " : "")
-					+ (endMarkers != null ? "\n\t\tendMarkers="
-							+ endMarkers.subList(0,
-									Math.min(endMarkers.size(), maxLen)) : "")
-					+ "\n]";
+			return "ChunkBuffers [\n\t\tstreams=" + Arrays.toString(streams) + "\n]";
 		}
 		
 	}
@@ -235,14 +315,38 @@ public class ChunkerThread extends Thread {
 	public static double AUDIO_CHUNK_SIZE_FACTOR = 1;
 	public static double VIDEO_CHUNK_SIZE_FACTOR = 1;
 	public static boolean FORCE_STREAM = false;
+	public static int PARALLEL_DEMUX_THREADS = 1; // More than 1 demuxes indexed files in parallel byte ranges.
+	public static boolean USE_PACKET_INDEX = false; // Save a PacketIndex sidecar for each input, and use it on later runs.
+	public static boolean PLAN_FROM_INDEX = false; // Plan the chunks from the container index up front (if there is no PacketIndex). Only an estimate, for the log.
+	public static boolean NATIVE_CHUNK_ASSEMBLY = false; // Build the chunks in native memory rather than from Java DemuxPackets.
+	public static boolean PLANNED_GRID = false; // Cut all the streams at chunk points planned up front (needs a packet index, so from the second run on).
+	public static boolean COST_CHUNKING = false; // Cut chunks at a predicted transcode cost rather than a size (see CostModel).
+	public static double TAIL_MERGE_FRACTION = 0.5; // With cost chunking, a last chunk under this much of the target is merged into the one before.
+	public static int COST_MAX_BLOCKS = 4; // With cost chunking, a chunk is cut anyway once it is this many block sizes.
+	public static long SPILL_THRESHOLD = 134217728; // Packet data buffered in memory for a stream before it spills to a temp file (128MB, 0 for never).
+	public static boolean FOLLOW = false; // Keep reading the input as it grows (e.g. a live recording), until the end marker or the idle timeout.
+	public static String FOLLOW_END_MARKER_SUFFIX = ".done"; // The follow end marker is the input uri plus this, unless ffmpeg-mr.followEndMarker is set.
 	
 	private BlockingQueue<Chunk> chunkQ;
 	private FSDataInputStream in;
+	private FollowInputStream followIn = null; // Set in follow mode.
 	private long[] blockSizes;
 	
-	private Demuxer demuxer;
+	private PacketSource demuxer;
 	private ChunkBuffers chunkBuffers;
 	
+	private Configuration config;
+	private String indexUri = null;
+	private PacketIndex packetIndex = null;	// Loaded from the sidecar.
+	private PacketIndex newPacketIndex = null; // Being built to save at the end.
+	private ChunkPlan chunkPlan = null;
+	private boolean nativeAssembly = false;
+	private CostModel costModel = null;
+	private double targetCost = 0;
+	private double tailMergeFraction = TAIL_MERGE_FRACTION;
+	private volatile boolean planMismatch = false; // The input didn't match the chunk plan from its packet index.
+	private volatile Exception failure = null;
+	
 	private long streamDuration;
 
 	private Logger logger;
@@ -253,39 +357,225 @@ public class ChunkerThread extends Thread {
 		initDemuxer(config, chunkQ, inputUri, blockSize);
 	}
 	
+	/**
+	 * Chunks packets from something other than an input file (e.g. a recorded packet trace for benchmarking).
+	 */
+	public ChunkerThread(Configuration config, BlockingQueue<Chunk> chunkQ, PacketSource source, long blockSize, String name) {
+		super(name);
+		logger = new Logger(config);
+		this.config = config;
+		this.chunkQ = chunkQ;
+		this.demuxer = source;
+		this.chunkBuffers = new ChunkBuffers();
+		this.streamDuration = source.getDurationMs();
+		this.blockSizes = getBlockSizes(source, blockSize);
+		initCostModel(config, null);
+	}
+	
 	public void initDemuxer(Configuration config, BlockingQueue<Chunk> chunkQ, String inputUri, long blockSize) throws IOException, URISyntaxException
 	{	
 		this.chunkQ = chunkQ;
 		
-		if(FORCE_STREAM || !inputUri.startsWith("file://")){
+		if(config == null)
+			config = new Configuration();
+		
+		final int bufferSize = config.getInt("ffmpeg-mr.demuxStreamBufferSize", Demuxer.STREAM_BUFFER_SIZE);
+		final int prefetchBlocks = config.getInt("ffmpeg-mr.demuxPrefetchBlocks", Demuxer.STREAM_PREFETCH_BLOCKS);
+		final boolean follow = config.getBoolean("ffmpeg-mr.follow", FOLLOW);
+		final ParallelDemuxer.DemuxerFactory factory;
+		Demuxer primary;
+		long inputLength;
+		
+		if(follow){
+			logger.println("Following the input as it is written.");
+			
+			// The length isn't known until the end, so there is no prefetch, probe cache or parallel demux.
+			FileSystem fs = FileSystem.get(new URI(inputUri), config);
+			String endMarker = config.get("ffmpeg-mr.followEndMarker", inputUri + FOLLOW_END_MARKER_SUFFIX);
+			followIn = new FollowInputStream(fs, new Path(inputUri), endMarker.isEmpty() ? null : new Path(endMarker), 
+					config.getLong("ffmpeg-mr.followPollMs", FollowInputStream.DEFAULT_POLL_MS), 
+					config.getLong("ffmpeg-mr.followIdleTimeoutMs", FollowInputStream.DEFAULT_IDLE_TIMEOUT_MS));
+			this.in = new FSDataInputStream(followIn);
+			primary = new Demuxer(in, -1, bufferSize, 0, null);
+			inputLength = -1;
+			factory = null;
+		}
+		else if(FORCE_STREAM || !inputUri.startsWith("file://")){
 			logger.println("Reading using Hadoop FS.");
 			
 			// Open up the filesystem for reading.
-			if(config == null)
-				config = new Configuration();
-			FileSystem fs = FileSystem.get(new URI(inputUri), config);
-			Path file = new Path(inputUri);
+			final FileSystem fs = FileSystem.get(new URI(inputUri), config);
+			final Path file = new Path(inputUri);
+			final FileStatus status = fs.getFileStatus(file);
+			final long length = inputLength = status.getLen();
 			this.in = fs.open(file);
 			
-			// Open the demuxer.
-			this.demuxer = new Demuxer(in, fs.getFileStatus(file).getLen());
+			// Open the demuxer (reusing the probe from an earlier open of this input if we can).
+			final ProbeCache probeCache = ProbeCache.getInstance(config);
+			final String probeKey = ProbeCache.getKey(inputUri, length, status.getModificationTime());
+			primary = probeCache.open(probeKey, in, length, bufferSize, prefetchBlocks);
+			logger.println(probeCache.toString());
+			
+			// Range demuxers each get their own stream.
+			factory = new ParallelDemuxer.DemuxerFactory() {
+				private Map<Demuxer, FSDataInputStream> streams = Collections.synchronizedMap(new IdentityHashMap<Demuxer, FSDataInputStream>());
+				@Override
+				public Demuxer open() throws IOException {
+					FSDataInputStream rangeIn = fs.open(file);
+					Demuxer demuxer = probeCache.open(probeKey, rangeIn, length, bufferSize, prefetchBlocks);
+					streams.put(demuxer, rangeIn);
+					return demuxer;
+				}
+				@Override
+				public void release(Demuxer demuxer) {
+					demuxer.close();
+					try {
+						streams.remove(demuxer).close();
+					} catch (IOException e) {
+					}
+				}
+			};
 		}
 		else
 		{
 			logger.println("Reading using native file IO.");
-			this.demuxer = new Demuxer(new File(inputUri.substring(7)));
+			final String filename = inputUri.substring(7);
+			primary = new Demuxer(new File(filename));
+			inputLength = new File(filename).length();
+			factory = new ParallelDemuxer.DemuxerFactory() {
+				@Override
+				public Demuxer open() throws IOException {
+					return new Demuxer(filename);
+				}
+				@Override
+				public void release(Demuxer demuxer) {
+					demuxer.close();
+				}
+			};
 		}
 		
+		// Look for an index from an earlier run (if we are keeping them), otherwise build one as we go.
+		this.config = config;
+		if(!follow && config.getBoolean("ffmpeg-mr.packetIndex", USE_PACKET_INDEX))
+		{
+			indexUri = config.get("ffmpeg-mr.indexInputUri", "");
+			if(indexUri.isEmpty())
+				indexUri = inputUri;
+			
+			try {
+				packetIndex = PacketIndex.load(config, indexUri);
+			} catch (IOException e) {
+				logger.println("WARNING: Failed to read the packet index for " + indexUri + " (" + e.getMessage() + "), rebuilding it.");
+			}
+			if(packetIndex != null && packetIndex.getStreamCount() == primary.getStreamCount())
+				logger.println("Using packet index " + PacketIndex.getSidecarPath(config, indexUri) + " (" + packetIndex.getPacketCount() + " packets).");
+			else{
+				packetIndex = null;
+				newPacketIndex = new PacketIndex(primary, primary.getTimeBaseDen());
+			}
+		}
+		
+		// Split the demux over several threads if we can (this gives exactly the same packets as the single demuxer).
+		ParallelDemuxer parallel = follow ? null : ParallelDemuxer.create(primary, factory, 
+				config.getInt("ffmpeg-mr.parallelDemuxThreads", PARALLEL_DEMUX_THREADS), 
+				config.getLong("ffmpeg-mr.parallelDemuxRangeSize", ParallelDemuxer.DEFAULT_RANGE_SIZE), 
+				packetIndex != null ? packetIndex.toStreamIndexes() : null, logger);
+		if(parallel != null)
+			this.demuxer = parallel;
+		else
+			this.demuxer = primary;
+		
 		this.chunkBuffers = new ChunkBuffers();
 		this.streamDuration = this.demuxer.getDurationMs();
 		
 		if(this.streamDuration > 0)
 			logger.println("File duration estimate: " + PeriodFormat.getDefault().print(new Period(this.streamDuration)));
 		
-		blockSizes = new long[this.demuxer.getStreamCount()];
-		for(int i = 0; i < this.demuxer.getStreamCount(); i++)
+		blockSizes = getBlockSizes(this.demuxer, blockSize);
+		
+		StreamParams[] params = new StreamParams[primary.getStreamCount()];
+		for(int i = 0; i < params.length; i++)
+			params[i] = primary.getStreamParams(i);
+		initCostModel(config, params);
+		
+		if(packetIndex != null){
+			chunkPlan = ChunkPlan.fromPacketIndex(packetIndex, blockSizes);
+			logger.println("Planned " + chunkPlan.getChunkCount() + " chunks from the packet index.");
+		}
+		else if(!follow && config.getBoolean("ffmpeg-mr.planFromIndex", PLAN_FROM_INDEX)){
+			chunkPlan = IndexChunkPlanner.plan(primary, blockSizes, inputLength);
+			logger.println("Planned " + chunkPlan.getChunkCount() + " chunks from the container index.");
+		}
+		
+		// Work to the plan if asked to (this is only possible when the plan came from a packet index, as the container
+		// index has decode timestamps, which don't match the ones we cut on).
+		if(config.getBoolean("ffmpeg-mr.plannedGrid", PLANNED_GRID)){
+			if(packetIndex != null && chunkPlan != null && chunkPlan.isExact()){
+				chunkBuffers.usePlan(chunkPlan);
+				logger.println("Cutting to the planned chunk grid (" + chunkPlan.getGrid().length + " chunk points).");
+			}
+			else
+				logger.println("WARNING: No exact chunk plan for this input (it needs a packet index), finding chunk points while demuxing.");
+		}
+		
+		// Native chunk assembly needs the plain demuxer, and we don't get the packets to index.
+		if(config.getBoolean("ffmpeg-mr.nativeChunkAssembly", NATIVE_CHUNK_ASSEMBLY) && this.demuxer == primary && newPacketIndex == null 
+				&& !chunkBuffers.isPlanned() && costModel == null){
+			primary.startChunkAssembly(blockSizes);
+			nativeAssembly = true;
+			logger.println("Assembling chunks natively.");
+		}
+	}
+	
+	/**
+	 * Sets up cost chunking, if it is turned on. The target is ffmpeg-mr.chunkCost (in predicted seconds), or if that
+	 * isn't set, the cost of a block sized chunk of the video.
+	 */
+	private void initCostModel(Configuration config, StreamParams[] params)
+	{
+		if(!config.getBoolean("ffmpeg-mr.costChunking", COST_CHUNKING))
+			return;
+		
+		CostModel model = new CostModel(config, demuxer, params);
+		double target = config.getFloat("ffmpeg-mr.chunkCost", 0);
+		if(target <= 0)
+			target = model.getBlockCost(blockSizes, params);
+		if(target <= 0){
+			logger.println("WARNING: No cost target for this input (set ffmpeg-mr.chunkCost), chunking by size.");
+			return;
+		}
+		
+		costModel = model;
+		targetCost = target;
+		tailMergeFraction = config.getFloat("ffmpeg-mr.tailMergeFraction", (float)TAIL_MERGE_FRACTION);
+		logger.println("Chunking by predicted cost (" + String.format("%.1f", targetCost) + "s a chunk).");
+	}
+	
+	/**
+	 * True if the stream's buffer has reached the point we want to drain a chunk from it.
+	 */
+	private boolean isOverLimit(int streamID)
+	{
+		if(chunkBuffers.isPlanned())
+			return chunkBuffers.atPlannedCut(streamID);
+		
+		long bufferSize = chunkBuffers.getBufferSize(streamID);
+		if(costModel == null)
+			return bufferSize > blockSizes[streamID];
+		
+		if(blockSizes[streamID] == Long.MAX_VALUE)
+			return false;
+		if(bufferSize > blockSizes[streamID] * COST_MAX_BLOCKS)
+			return true;
+		return chunkBuffers.getBufferCost(streamID) > targetCost && !chunkBuffers.isShortTail(streamID);
+	}
+	
+	public static long[] getBlockSizes(PacketSource demuxer, long blockSize)
+	{
+		long[] blockSizes = new long[demuxer.getStreamCount()];
+		for(int i = 0; i < demuxer.getStreamCount(); i++)
 		{
-			switch (this.demuxer.getStreamMediaType(i)) {
+			switch (demuxer.getStreamMediaType(i)) {
 			case AUDIO:
 				if(blockSize > 0)
 					blockSizes[i] = (long)(AUDIO_CHUNK_SIZE_FACTOR * blockSize);
@@ -300,6 +590,7 @@ public class ChunkerThread extends Thread {
 				break;
 			}
 		}
+		return blockSizes;
 	}
 
 	@Override
@@ -307,31 +598,64 @@ public class ChunkerThread extends Thread {
 		// Get new chunks from FFmpeg.
 		try{
 			boolean inChunkTooSmallState = false; // Only get the warning once!
-			DemuxPacket currentPacket = demuxer.getNextChunk();
-			while(currentPacket != null)
+			
+			if(nativeAssembly)
 			{
-				// Add this packet to the ChunkBuffer.
-				chunkBuffers.add(currentPacket);
-				
-				// Check to see if we are now over our limit.
-				if(chunkBuffers.getBufferSize(currentPacket.streamID) > blockSizes[currentPacket.streamID])
+				Demuxer.AssembledChunk assembled = new Demuxer.AssembledChunk();
+				while(((Demuxer)demuxer).readChunk(assembled))
 				{
-					Chunk chunk = chunkBuffers.drainChunk(currentPacket.streamID);
+					Chunk chunk;
+					try{
+						chunk = chunkBuffers.addAssembledChunk(assembled);
+					}
+					finally{
+						((Demuxer)demuxer).freeChunk(assembled);
+					}
+					chunkQ.put(chunk); // This will block until the queue has space.
 					
-					// If this is null, we couldnt drain a valid chunk, so we have to carry on instead.
-					if(chunk != null){
-						chunkQ.put(chunk); // This will block until the queue has space.
+					int streamID = assembled.overflowStreamID;
+					if(streamID < 0)
 						inChunkTooSmallState = false;
+					else if(blockSizes[streamID] > 0 && !inChunkTooSmallState){
+						logger.println("WARNING: Demuxer unable to drain chunk smaller than "  + FileUtils.humanReadableByteCount(blockSizes[streamID], false) + ". Try a larger chunk size.");
+						inChunkTooSmallState = true;
 					}
-					else
-						if(blockSizes[currentPacket.streamID] > 0 && !inChunkTooSmallState){
-							logger.println("WARNING: Demuxer unable to drain chunk smaller than "  + FileUtils.humanReadableByteCount(blockSizes[currentPacket.streamID], false) + ". Try a larger chunk size.");
-							inChunkTooSmallState = true;
-						}
 				}
+			}
+			
+			// When following, take the packets one at a time, so a chunk goes out as soon as the keyframe that closes it 
+			// arrives, rather than waiting for the rest of a batch to be written.
+			DemuxPacketBatch batch = new DemuxPacketBatch();
+			int batchSize = followIn != null ? 1 : batch.capacity();
+			while(!nativeAssembly && demuxer.readPackets(batchSize, batch) > 0)
+			{
+				if(newPacketIndex != null)
+					newPacketIndex.add(batch);
 				
-				// Get the next packet.
-				currentPacket = demuxer.getNextChunk();
+				for(int i = 0; i < batch.count; i++)
+				{
+					int streamID = batch.streamID[i];
+					
+					// Add this packet to the ChunkBuffer.
+					chunkBuffers.add(batch, i);
+					
+					// Check to see if we are now over our limit (or at the next cut in the plan).
+					if(isOverLimit(streamID))
+					{
+						Chunk chunk = chunkBuffers.drainChunk(streamID);
+						
+						// If this is null, we couldnt drain a valid chunk, so we have to carry on instead.
+						if(chunk != null){
+							chunkQ.put(chunk); // This will block until the queue has space.
+							inChunkTooSmallState = false;
+						}
+						else
+							if(blockSizes[streamID] > 0 && !inChunkTooSmallState){
+								logger.println("WARNING: Demuxer unable to drain chunk smaller than "  + FileUtils.humanReadableByteCount(blockSizes[streamID], false) + ". Try a larger chunk size.");
+								inChunkTooSmallState = true;
+							}
+					}
+				}
 			}
 			
 			// Now empty any final chunks that are less than the block size.
@@ -347,15 +671,43 @@ public class ChunkerThread extends Thread {
 		
 			chunkQ.put(new Chunk(null, null));
 			
+			if(newPacketIndex != null){
+				try {
+					newPacketIndex.save(config, indexUri);
+					logger.println("Saved packet index to " + PacketIndex.getSidecarPath(config, indexUri) + ".");
+				} catch (IOException e) {
+					logger.println("WARNING: Failed to save the packet index for " + indexUri + " (" + e.getMessage() + ").");
+				}
+			}
+			
 			//Printer.println("Buffers:\n" + chunkBuffers.toString());
 			
 		} catch (InterruptedException e) {
 			System.err.println("Thread was interupped while waiting:");
 			e.printStackTrace();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			failure = e;
+			if(planMismatch)
+				dropPacketIndex();
+			
+			// Let the writer finish with what it has (the demux as a whole fails, see getFailure).
+			try {
+				chunkQ.put(new Chunk(null, null));
+			} catch (InterruptedException e1) {
+			}
 		}
 		finally {
-			if(demuxer != null)
+			if(chunkBuffers.getSpillCount() > 0)
+				logger.println("Packet buffers spilled to disk " + chunkBuffers.getSpillCount() + " times.");
+			chunkBuffers.close();
+			if(followIn != null)
+				logger.println(followIn.toString());
+			if(demuxer != null){
+				if(demuxer instanceof Demuxer && ((Demuxer)demuxer).getPrefetchStream() != null)
+					logger.println(((Demuxer)demuxer).getPrefetchStream().toString());
 				demuxer.close();
+			}
 			try {
 				if(in != null)
 					in.close();
@@ -365,13 +717,48 @@ public class ChunkerThread extends Thread {
 		logger.println("Demuxing complete. Thread ending.");
 	}
 
+	/**
+	 * Deletes the packet index sidecar the plan came from, so the next run demuxes without a plan and saves a new one.
+	 */
+	private void dropPacketIndex() {
+		Path sidecar = PacketIndex.getSidecarPath(config, indexUri);
+		try {
+			sidecar.getFileSystem(config).delete(sidecar, false);
+			logger.println("Deleted the out of date packet index " + sidecar + ", the next run will rebuild it.");
+		} catch (IOException e) {
+			logger.println("WARNING: Failed to delete the out of date packet index " + sidecar + " (" + e.getMessage() + ").");
+		}
+	}
+	
+	/**
+	 * The error that stopped the demux, or null if there wasn't one. Check this once the thread has finished.
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+	
+	/**
+	 * True if the chunk IDs are final when they are put on the queue (see ChunkBuffers.usePlan), so the writer 
+	 * doesn't need to hold any back.
+	 */
+	public boolean hasFinalChunkIDs() {
+		return chunkBuffers.isPlanned();
+	}
+	
 	public long[] getPacketCounts() {
-		long[] packetCount = new long[chunkBuffers.packetCount.size()];
-		for(int i = 0; i < chunkBuffers.packetCount.size(); i++)
-			packetCount[i] = chunkBuffers.packetCount.get(i);
+		long[] packetCount = new long[chunkBuffers.streams.length];
+		for(int i = 0; i < chunkBuffers.streams.length; i++)
+			packetCount[i] = chunkBuffers.streams[i].getPacketCount();
 		return packetCount;
 	}
 	
+	/**
+	 * The chunk plan from the packet index, or null if there wasn't an index for this input.
+	 */
+	public ChunkPlan getChunkPlan() {
+		return chunkPlan;
+	}
+	
 	public long getEndTS() {
 		return chunkBuffers.endTSChunkID.getMillisecondsEndTs();
 	}	
@@ -0,0 +1,89 @@
+package com.tstordyallison.ffmpegmr;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
+import com.tstordyallison.ffmpegmr.Demuxer.StreamParams;
+
+/**
+ * Predicts how long a run of packets will take to transcode (in seconds on a single map slot), so the chunker can
+ * cut chunks of about the same cost rather than the same size.
+ *
+ * Video is costed per frame (a fixed part, and a part per pixel), audio per second, and both per input byte (for the
+ * decode). The coefficients are rough figures for the x264/AAC settings we use - ffmpeg-mr.costScale corrects them
+ * for the cluster's machines (see testing.CostCalibration).
+ */
+public class CostModel {
+
+	public static double FRAME_COST = 0.0005;			// Per video frame.
+	public static double PIXEL_COST = 0.00000002;		// Per pixel in a video frame.
+	public static double BYTE_COST = 0.00000002;		// Per byte of input.
+	public static double AUDIO_SECOND_COST = 0.01;		// Per second of audio.
+	public static int DEFAULT_PIXELS = 1280 * 720;		// For video streams we don't know the size of.
+
+	private final AVMediaType[] types;
+	private final long[] pixels;
+	private final double scale;
+
+	/**
+	 * @param params The stream params (from Demuxer.getStreamParams), or null if they aren't known.
+	 */
+	public CostModel(Configuration config, PacketSource source, StreamParams[] params) {
+		this.scale = config.getFloat("ffmpeg-mr.costScale", 1);
+		this.types = new AVMediaType[source.getStreamCount()];
+		this.pixels = new long[source.getStreamCount()];
+		for(int i = 0; i < types.length; i++)
+		{
+			types[i] = source.getStreamMediaType(i);
+			if(params != null && params[i] != null && params[i].width > 0 && params[i].height > 0)
+				pixels[i] = (long)params[i].width * params[i].height;
+			else
+				pixels[i] = DEFAULT_PIXELS;
+		}
+	}
+
+	/**
+	 * The predicted cost of a run of packets from the stream.
+	 */
+	public double cost(int streamID, int frames, long bytes, long durationTs, long tbNum, long tbDen) {
+		double cost = bytes * BYTE_COST;
+		switch (types[streamID]) {
+		case VIDEO:
+			cost += frames * (FRAME_COST + pixels[streamID] * PIXEL_COST);
+			break;
+		case AUDIO:
+			cost += (double)durationTs * tbNum / tbDen * AUDIO_SECOND_COST;
+			break;
+		default:
+			break;
+		}
+		return cost * scale;
+	}
+
+	/**
+	 * The predicted cost of a chunk.
+	 */
+	public double cost(ChunkID chunkID, ChunkData chunkData) {
+		return cost(chunkID.getStreamID(), (int)chunkData.getPacketCount(), chunkData.getSize(),
+					chunkID.getEndTS() - chunkID.getStartTS(), chunkID.getTbNum(), chunkID.getTbDen());
+	}
+
+	/**
+	 * The cost of a blockSize chunk of the first video stream, at its average bit rate. This is the cost target to use
+	 * when one isn't given, as it keeps the chunks about the same size as in byte mode. Returns -1 if there isn't a video
+	 * stream with a known bit rate and frame rate.
+	 */
+	public double getBlockCost(long[] blockSizes, StreamParams[] params) {
+		if(params == null)
+			return -1;
+		for(int i = 0; i < types.length; i++)
+		{
+			if(types[i] != AVMediaType.VIDEO || params[i] == null || params[i].bitRate <= 0 || params[i].frameRate <= 0)
+				continue;
+			double frameSize = params[i].bitRate / 8.0 / params[i].frameRate + DemuxPacket.TPL_OVERHEAD;
+			int frames = (int)(blockSizes[i] / frameSize);
+			return cost(i, frames, blockSizes[i], (long)(frames * 1000 / params[i].frameRate), 1, 1000);
+		}
+		return -1;
+	}
+}
@@ -1,6 +1,8 @@
 package com.tstordyallison.ffmpegmr;
 
 public class DemuxPacket {
+	public static final int TPL_OVERHEAD = 56; // Bytes the TPL serialisation adds to each packet's payload (see ffmpeg_tpl.c).
+	
 	public int streamID;
 	public boolean splitPoint; 	// In the context of demuxing, this is a keyframe. In the transcoder this is a split point.
 	public long ts;
@@ -0,0 +1,152 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable batch of packets filled by Demuxer.readPackets() in a single native call.
+ *
+ * The TPL packet data is written back to back into a direct ByteBuffer arena, and the per packet
+ * metadata goes into the parallel primitive arrays, so nothing is allocated per packet.
+ */
+public class DemuxPacketBatch {
+
+	public static int DEFAULT_MAX_PACKETS = 256;
+	public static int DEFAULT_ARENA_SIZE = 8388608; // 8MB
+
+	public ByteBuffer arena;
+	public int[] streamID;
+	public long[] ts;
+	public long[] duration;
+	public boolean[] splitPoint;	// Keyframe flag.
+	public int[] offset;			// Offset of the packet TPL in the arena.
+	public int[] length;			// Length of the packet TPL in the arena.
+	public long[] pos;				// Byte position of the packet in the input (-1 if unknown).
+
+	public long tb_num = 1;
+	public long tb_den = 1;
+	public int count = 0;
+
+	public DemuxPacketBatch(){
+		this(DEFAULT_MAX_PACKETS, DEFAULT_ARENA_SIZE);
+	}
+
+	public DemuxPacketBatch(int maxPackets, int arenaSize){
+		this.arena = ByteBuffer.allocateDirect(arenaSize);
+		this.streamID = new int[maxPackets];
+		this.ts = new long[maxPackets];
+		this.duration = new long[maxPackets];
+		this.splitPoint = new boolean[maxPackets];
+		this.offset = new int[maxPackets];
+		this.length = new int[maxPackets];
+		this.pos = new long[maxPackets];
+	}
+
+	public int capacity(){
+		return streamID.length;
+	}
+
+	/**
+	 * Replaces the arena with one that can hold at least minSize bytes (used when a single packet will not fit).
+	 */
+	public void growArena(int minSize){
+		int newSize = arena.capacity();
+		while(newSize < minSize)
+			newSize *= 2;
+		arena = ByteBuffer.allocateDirect(newSize);
+	}
+
+	/**
+	 * Keeps only the packets for which keep[i] is set, in order. The arena data is left where it is.
+	 */
+	public void retain(boolean[] keep){
+		int kept = 0;
+		for(int i = 0; i < count; i++)
+		{
+			if(!keep[i])
+				continue;
+			streamID[kept] = streamID[i];
+			ts[kept] = ts[i];
+			duration[kept] = duration[i];
+			splitPoint[kept] = splitPoint[i];
+			offset[kept] = offset[i];
+			length[kept] = length[i];
+			pos[kept] = pos[i];
+			kept++;
+		}
+		count = kept;
+	}
+	
+	/**
+	 * Exchanges the contents of the two batches (so a filled batch can be handed over without copying).
+	 */
+	public void swap(DemuxPacketBatch other){
+		ByteBuffer arena = this.arena; this.arena = other.arena; other.arena = arena;
+		int[] streamID = this.streamID; this.streamID = other.streamID; other.streamID = streamID;
+		long[] ts = this.ts; this.ts = other.ts; other.ts = ts;
+		long[] duration = this.duration; this.duration = other.duration; other.duration = duration;
+		boolean[] splitPoint = this.splitPoint; this.splitPoint = other.splitPoint; other.splitPoint = splitPoint;
+		int[] offset = this.offset; this.offset = other.offset; other.offset = offset;
+		int[] length = this.length; this.length = other.length; other.length = length;
+		long[] pos = this.pos; this.pos = other.pos; other.pos = pos;
+		long tb_num = this.tb_num; this.tb_num = other.tb_num; other.tb_num = tb_num;
+		long tb_den = this.tb_den; this.tb_den = other.tb_den; other.tb_den = tb_den;
+		int count = this.count; this.count = other.count; other.count = count;
+	}
+
+	/**
+	 * Replaces the contents of this batch with count packets of another, from the given one on (copying their data).
+	 */
+	public void copyFrom(DemuxPacketBatch from, int start, int count){
+		int size = 0;
+		for(int i = start; i < start + count; i++)
+			size += from.length[i];
+		if(arena.capacity() < size)
+			growArena(size);
+		
+		ByteBuffer src = from.arena.duplicate();
+		arena.clear();
+		for(int i = 0; i < count; i++)
+		{
+			int j = start + i;
+			streamID[i] = from.streamID[j];
+			ts[i] = from.ts[j];
+			duration[i] = from.duration[j];
+			splitPoint[i] = from.splitPoint[j];
+			offset[i] = arena.position();
+			length[i] = from.length[j];
+			pos[i] = from.pos[j];
+			src.limit(from.offset[j] + from.length[j]);
+			src.position(from.offset[j]);
+			arena.put(src);
+		}
+		arena.clear();
+		tb_num = from.tb_num;
+		tb_den = from.tb_den;
+		this.count = count;
+	}
+
+	public void copyData(int i, byte[] dest, int destOffset){
+		arena.limit(offset[i] + length[i]);
+		arena.position(offset[i]);
+		arena.get(dest, destOffset, length[i]);
+		arena.clear();
+	}
+
+	public byte[] getData(int i){
+		byte[] data = new byte[length[i]];
+		copyData(i, data, 0);
+		return data;
+	}
+
+	public DemuxPacket getPacket(int i){
+		DemuxPacket packet = new DemuxPacket();
+		packet.streamID = streamID[i];
+		packet.splitPoint = splitPoint[i];
+		packet.ts = ts[i];
+		packet.duration = duration[i];
+		packet.tb_num = tb_num;
+		packet.tb_den = tb_den;
+		packet.data = getData(i);
+		return packet;
+	}
+}
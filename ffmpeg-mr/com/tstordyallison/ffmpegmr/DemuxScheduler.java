@@ -0,0 +1,180 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.tstordyallison.ffmpegmr.Chunker.ChunkerReport;
+import com.tstordyallison.ffmpegmr.emr.Logger;
+import com.tstordyallison.ffmpegmr.util.FileUtils;
+
+/**
+ * Demuxes several inputs at once, each with its own Chunker pipeline (chunker and writer threads) and output, so the
+ * cluster isn't left waiting while the inputs are demuxed one at a time.
+ *
+ * At most ffmpeg-mr.demuxInputs inputs are demuxed at once, and all of their chunk queues draw on one MemoryBudget
+ * (ffmpeg-mr.demuxMemoryBytes), so the finished chunks in flight are bounded however many inputs are running.
+ *
+ * The budget only covers the chunk queues (including the chunks each writer holds back). Each running input also has
+ * memory and threads of its own that it does not count, so allow for them on top when picking ffmpeg-mr.demuxInputs:
+ *  - The packets still being chunked, up to ffmpeg-mr.spillThreshold per stream before they spill to disk.
+ *  - Stream prefetch blocks (ffmpeg-mr.demuxPrefetchBlocks of Demuxer.STREAM_BUFFER_SIZE each) and, with
+ *    ffmpeg-mr.parallelDemuxThreads, the demuxed ranges waiting to be handed on (the range being read out, or
+ *    ParallelDemuxer.MAX_BUFFERED_BYTES if that is more).
+ *  - A chunker thread, a writer thread, a thread per writer stripe (ffmpeg-mr.writerThreads), a prefetch thread and
+ *    the parallel demux threads.
+ */
+public class DemuxScheduler {
+
+	public static int CONCURRENT_INPUTS = 1; // More than 1 demuxes that many inputs at once (and TranscodeJob demuxes ahead of the jobs).
+	public static long MEMORY_BUDGET = 536870912; // Shared by the chunk queues of all the running inputs (512MB, see above for what it doesn't cover).
+	public static long PROGRESS_INTERVAL_MS = 30000;
+
+	public static enum State { QUEUED, RUNNING, DONE, FAILED }
+
+	/**
+	 * One input's demux. Its ChunkerReport is available from get() once it is done.
+	 */
+	public class DemuxTask implements Callable<ChunkerReport> {
+		private final Configuration config;
+		private final String inputUri;
+		private final String outputUri;
+		private final int blockSize;
+		private final ByteBoundedChunkQueue chunkQ = new ByteBoundedChunkQueue(budget);
+		private Future<ChunkerReport> future;
+
+		private volatile State state = State.QUEUED;
+		private volatile long startTime = 0;
+		private volatile long endTime = 0;
+
+		private DemuxTask(Configuration config, String inputUri, String outputUri, int blockSize) {
+			this.config = config;
+			this.inputUri = inputUri;
+			this.outputUri = outputUri;
+			this.blockSize = blockSize;
+		}
+
+		@Override
+		public ChunkerReport call() throws Exception {
+			startTime = System.currentTimeMillis();
+			state = State.RUNNING;
+			try {
+				ChunkerReport report = Chunker.chunkInputFile(config, inputUri, outputUri, blockSize, chunkQ);
+				state = State.DONE;
+				return report;
+			} catch (Exception e) {
+				state = State.FAILED;
+				throw e;
+			} finally {
+				endTime = System.currentTimeMillis();
+				logger.println("Demux of " + inputUri + " " + (state == State.DONE ? "finished" : "failed") + " after " + getElapsedMillis()/1000 + "s.");
+			}
+		}
+
+		/**
+		 * Waits for the demux to finish (logging the progress of all the inputs while we wait).
+		 */
+		public ChunkerReport get() throws InterruptedException, ExecutionException {
+			while(true)
+			{
+				try {
+					return future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					logProgress();
+				}
+			}
+		}
+
+		public State getState() {
+			return state;
+		}
+		public String getInputUri() {
+			return inputUri;
+		}
+		public String getOutputUri() {
+			return outputUri;
+		}
+		public long getChunkCount() {
+			return chunkQ.getChunkCount();
+		}
+		public long getBytes() {
+			return chunkQ.getTotalBytes();
+		}
+		public long getElapsedMillis() {
+			if(startTime == 0)
+				return 0;
+			return (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+		}
+
+		@Override
+		public String toString() {
+			return inputUri + ": " + state + (startTime != 0 ? ", " + getChunkCount() + " chunks (" + FileUtils.humanReadableByteCount(getBytes(), false) + ") in " + getElapsedMillis()/1000 + "s" : "");
+		}
+	}
+
+	private final MemoryBudget budget;
+	private final ExecutorService executor;
+	private final List<DemuxTask> tasks = new ArrayList<DemuxTask>();
+	private final Logger logger;
+
+	public DemuxScheduler(Configuration config) {
+		this(config, config.getInt("ffmpeg-mr.demuxInputs", CONCURRENT_INPUTS),
+			 new MemoryBudget(config.getLong("ffmpeg-mr.demuxMemoryBytes", MEMORY_BUDGET)));
+	}
+
+	public DemuxScheduler(Configuration config, int concurrentInputs, MemoryBudget budget) {
+		this.budget = budget;
+		this.logger = new Logger(config);
+		this.executor = Executors.newFixedThreadPool(Math.max(1, concurrentInputs), new ThreadFactory() {
+			private int count = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Demux Scheduler " + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues an input to be demuxed to outputUri. The config is used as it is when the demux starts, so pass a copy if
+	 * it will change in the meantime.
+	 */
+	public synchronized DemuxTask submit(Configuration config, String inputUri, String outputUri, int blockSize) {
+		DemuxTask task = new DemuxTask(config, inputUri, outputUri, blockSize);
+		task.future = executor.submit(task);
+		tasks.add(task);
+		return task;
+	}
+
+	public synchronized void logProgress() {
+		StringBuilder progress = new StringBuilder("Demux progress (" + budget + "):");
+		for(DemuxTask task : tasks)
+			progress.append("\n\t").append(task);
+		logger.println(progress.toString());
+	}
+
+	public synchronized List<DemuxTask> getTasks() {
+		return new ArrayList<DemuxTask>(tasks);
+	}
+
+	public MemoryBudget getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Stops any demuxes that haven't started, and interrupts the running ones.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
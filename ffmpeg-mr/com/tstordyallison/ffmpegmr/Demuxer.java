@@ -2,11 +2,15 @@ package com.tstordyallison.ffmpegmr;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import org.apache.hadoop.fs.FSDataInputStream;
 
 import com.tstordyallison.ffmpegmr.util.NativeUtil;
+import com.tstordyallison.ffmpegmr.util.PrefetchInputStream;
 
-public class Demuxer {
+public class Demuxer implements PacketSource {
 	
 	// From avutil.h:
 //	enum AVMediaType {
@@ -40,6 +44,13 @@ public class Demuxer {
 		NativeUtil.loadFFmpegMR();
 	}
 	
+	public static int STREAM_BUFFER_SIZE = 4194304; // 4MB - size of each read from a stream input.
+	public static boolean STREAM_DIRECT_READ = true; // Read streams through a direct ByteBuffer when they support it.
+	public static int STREAM_PREFETCH_BLOCKS = 4; // Blocks to read ahead of the demuxer on streams (0 to disable).
+	
+	private long nativeHandle = 0; // Pointer to the native state, managed by Demuxer.cpp.
+	private PrefetchInputStream prefetch = null;
+	
 	public Demuxer(String filename){
 		int err;
 		if((err = initDemuxWithFile(filename)) != 0)
@@ -47,9 +58,38 @@ public class Demuxer {
 	}
 	
 	public Demuxer(FSDataInputStream stream, long length){
+		this(stream, length, STREAM_BUFFER_SIZE);
+	}
+	
+	public Demuxer(FSDataInputStream stream, long length, int bufferSize){
+		this(stream, length, bufferSize, STREAM_PREFETCH_BLOCKS);
+	}
+	
+	public Demuxer(FSDataInputStream stream, long length, int bufferSize, int prefetchBlocks){
+		this(stream, length, bufferSize, prefetchBlocks, null);
+	}
+	
+	/**
+	 * Opens a stream, using the results of an earlier probe of the same input if we have them (see ProbeCache).
+	 */
+	public Demuxer(FSDataInputStream stream, long length, int bufferSize, int prefetchBlocks, ProbeCache.ProbeResult probe){
+		if(prefetchBlocks > 0 && length >= 0){ // A length of -1 means the input is still being written (see FollowInputStream).
+			prefetch = new PrefetchInputStream(stream, length, bufferSize, prefetchBlocks);
+			try {
+				stream = new FSDataInputStream(prefetch);
+			} catch (IOException e) {
+				prefetch.shutdown();
+				throw new RuntimeException("Failed to set up the prefetch stream.", e);
+			}
+		}
+		
 		int err;
-		if((err = initDemuxWithStream(stream, length)) != 0)
+		if((err = initDemuxWithStream(stream, length, bufferSize, STREAM_DIRECT_READ, 
+									  probe != null ? probe.getStreamHeaders() : null, probe != null ? probe.getDurationMs() : -1)) != 0){
+			if(prefetch != null)
+				prefetch.shutdown();
 			throw new RuntimeException("Native init failed with code " + err + ". See stderr for more info.");
+		}
 	}
 	
 	public Demuxer(File file) throws FileNotFoundException{
@@ -57,7 +97,7 @@ public class Demuxer {
 	}
 	
 	private native int initDemuxWithFile(String filename);
-	private native int initDemuxWithStream(FSDataInputStream stream, long length);
+	private native int initDemuxWithStream(FSDataInputStream stream, long length, int bufferSize, boolean directRead, byte[][] probedHeaders, long probedDurationMs);
 	
 	public native int getStreamCount();
 	public native byte[] getStreamData(int streamID);
@@ -66,6 +106,156 @@ public class Demuxer {
 	{
 		return getNextChunkImpl();
 	}
+	
+	/**
+	 * Reads up to max packets into the batch in a single native call. Returns the number of packets read, 0 at the end of the file.
+	 */
+	public int readPackets(int max, DemuxPacketBatch batch)
+	{
+		int count;
+		max = Math.min(max, batch.capacity());
+		
+		// A negative count means the next packet alone is bigger than the arena.
+		while((count = readPacketsImpl(max, batch.arena, batch.streamID, batch.ts, batch.duration, batch.splitPoint, batch.offset, batch.length, batch.pos)) < 0)
+			batch.growArena(-count);
+		
+		batch.count = count;
+		batch.tb_num = 1;
+		batch.tb_den = getTimeBaseDen();
+		return count;
+	}
+	private native int readPacketsImpl(int max, ByteBuffer arena, int[] streamIDs, long[] ts, long[] durations, boolean[] splitPoints, int[] offsets, int[] lengths, long[] positions);
+	public native long getTimeBaseDen();
+	
+	/**
+	 * A chunk built by the native side (see readChunk): the stream header and packet TPLs in a pooled ChunkBuffer. 
+	 * Whoever takes the buffer sets data to null, otherwise freeChunk gives it back.
+	 */
+	public static class AssembledChunk {
+		public ChunkBuffer data;
+		public int streamID;
+		public long startTS;
+		public long endTS;
+		public int packetCount;
+		public boolean finalChunk;		// The rest of the stream at the end of the file (not split on a keyframe).
+		public int overflowStreamID;	// A stream that went over its block size with nowhere to split it, or -1.
+		
+		private long[] info = new long[6];
+	}
+	
+	/**
+	 * Switches the demuxer over to building the chunks natively, splitting each stream on the last keyframe once it
+	 * goes over its block size (the same rule as ChunkerThread.ChunkBuffers). Use readChunk() from then on.
+	 */
+	public void startChunkAssembly(long[] blockSizes)
+	{
+		int err;
+		if((err = startChunkAssemblyImpl(blockSizes)) != 0)
+			throw new RuntimeException("Native chunk assembly failed to start with code " + err + ".");
+	}
+	private native int startChunkAssemblyImpl(long[] blockSizes);
+	
+	/**
+	 * Reads the next finished chunk into the given holder. Returns false at the end of the file.
+	 */
+	public boolean readChunk(AssembledChunk chunk)
+	{
+		int size = readChunkImpl(chunk.info);
+		if(size <= 0)
+			return false;
+		
+		// Copy it straight into a pooled buffer (the native side keeps reusing its own).
+		chunk.data = ChunkBuffer.acquire(size);
+		int taken = takeChunkImpl(chunk.data.getDirectBuffer());
+		if(taken != size){
+			freeChunk(chunk);
+			throw new RuntimeException("Failed to take an assembled chunk (code " + taken + ").");
+		}
+		chunk.data.setLength(size);
+		
+		chunk.streamID = (int)chunk.info[0];
+		chunk.startTS = chunk.info[1];
+		chunk.endTS = chunk.info[2];
+		chunk.packetCount = (int)chunk.info[3];
+		chunk.finalChunk = chunk.info[4] != 0;
+		chunk.overflowStreamID = (int)chunk.info[5];
+		return true;
+	}
+	private native int readChunkImpl(long[] info);
+	private native int takeChunkImpl(ByteBuffer buffer);
+	
+	public void freeChunk(AssembledChunk chunk)
+	{
+		if(chunk.data != null){
+			chunk.data.release();
+			chunk.data = null;
+		}
+	}
+	
+	/**
+	 * The container index for the stream, or null if it doesn't have one.
+	 */
+	public StreamIndex getStreamIndex(int streamID)
+	{
+		int size = getStreamIndexSize(streamID);
+		if(size <= 0)
+			return null;
+		
+		long[] pos = new long[size];
+		long[] ts = new long[size];
+		boolean[] keyframe = new boolean[size];
+		int[] sizes = new int[size];
+		if(getStreamIndexImpl(streamID, pos, ts, keyframe, sizes) != size)
+			return null;
+		return new StreamIndex(streamID, pos, ts, keyframe, sizes, getStreamFrameCount(streamID));
+	}
+	private native int getStreamIndexSize(int streamID);
+	public native long getStreamFrameCount(int streamID);
+	private native int getStreamIndexImpl(int streamID, long[] pos, long[] ts, boolean[] keyframe, int[] sizes);
+	
+	/**
+	 * Codec parameters for a stream, as far as libavformat knows them (0 where it doesn't).
+	 */
+	public static class StreamParams {
+		public long bitRate;
+		public int width;
+		public int height;
+		public int sampleRate;
+		public int channels;
+		public double frameRate;
+		
+		@Override
+		public String toString() {
+			return "StreamParams [bitRate=" + bitRate + ", width=" + width + ", height=" + height + ", sampleRate=" + sampleRate + ", channels=" + channels + ", frameRate=" + frameRate + "]";
+		}
+	}
+	
+	public StreamParams getStreamParams(int streamID)
+	{
+		long[] values = new long[7];
+		if(getStreamParamsImpl(streamID, values) < 0)
+			return null;
+		
+		StreamParams params = new StreamParams();
+		params.bitRate = values[0];
+		params.width = (int)values[1];
+		params.height = (int)values[2];
+		params.sampleRate = (int)values[3];
+		params.channels = (int)values[4];
+		params.frameRate = values[6] > 0 ? (double)values[5] / values[6] : 0;
+		return params;
+	}
+	private native int getStreamParamsImpl(int streamID, long[] params);
+	
+	/**
+	 * Seeks to the keyframe at or before ts (in the common timebase) on the given stream. Returns false if the seek failed.
+	 */
+	public boolean seek(int streamID, long ts)
+	{
+		return seekImpl(streamID, ts) >= 0;
+	}
+	private native int seekImpl(int streamID, long ts);
+	
 	public AVMediaType getStreamMediaType(int streamID)
 	{
 		switch (getStreamMediaTypeRaw(streamID)) {
@@ -87,8 +277,25 @@ public class Demuxer {
 	}
 	private native int getStreamMediaTypeRaw(int streamID);
 	public native long getDurationMs();
+	/**
+	 * False if the probe results passed in were missing or didn't match the input (so it was probed again).
+	 */
+	public native boolean usedProbedHeaders();
+	
+	/**
+	 * The read-ahead stats for stream input, or null if there is no prefetcher.
+	 */
+	public PrefetchInputStream getPrefetchStream() {
+		return prefetch;
+	}
 	
-	public native int close();
+	public int close()
+	{
+		if(prefetch != null)
+			prefetch.shutdown();
+		return closeImpl();
+	}
+	private native int closeImpl();
 	protected void finalize() throws Throwable {
 	    try {
 	    	// In case someone forgets...
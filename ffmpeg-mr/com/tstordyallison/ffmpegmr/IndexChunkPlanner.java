@@ -0,0 +1,147 @@
+package com.tstordyallison.ffmpegmr;
+
+import com.tstordyallison.ffmpegmr.Demuxer.StreamParams;
+
+/**
+ * Plans the chunks for an input from the container's own index (MP4/MOV sample tables, Matroska cues, AVI idx1), as
+ * loaded by libavformat when the file is opened, so no packet data has to be read.
+ *
+ * How good the plan is depends on the index:
+ *  - Every packet with its size (MP4/MOV): the sizes and keyframes the ChunkerThread will see.
+ *  - Keyframes only (MKV cues, AVI): the same keyframes, with the sizes estimated from the bit rate.
+ *  - No index for the stream: one second steps, sized from the bit rate.
+ *
+ * The index timestamps are decode timestamps, while the ChunkerThread cuts on presentation timestamps, so with
+ * B-frames every boundary is off by the reorder delay. Because of that, these plans are never exact (see
+ * ChunkPlan.isExact()), and only a PacketIndex gives a plan the demux can be cut to.
+ */
+public class IndexChunkPlanner {
+
+	public static ChunkPlan plan(Demuxer demuxer, long[] blockSizes, long inputLength)
+	{
+		int streamCount = demuxer.getStreamCount();
+		long tbDen = demuxer.getTimeBaseDen();
+		long durationMs = demuxer.getDurationMs();
+		long durationTs = durationMs > 0 ? durationMs * tbDen / 1000 : -1;
+
+		// Streams that don't report a bit rate share whatever the others leave of the file's average rate.
+		StreamParams[] params = new StreamParams[streamCount];
+		long knownRate = 0;
+		int unknownRates = 0;
+		for(int s = 0; s < streamCount; s++)
+		{
+			params[s] = demuxer.getStreamParams(s);
+			if(blockSizes[s] == Long.MAX_VALUE)
+				continue;
+			if(params[s] != null && params[s].bitRate > 0)
+				knownRate += params[s].bitRate;
+			else
+				unknownRates++;
+		}
+		long fileRate = durationMs > 0 ? inputLength * 8 * 1000 / durationMs : 0;
+		long fallbackRate = unknownRates > 0 && fileRate > knownRate ? (fileRate - knownRate) / unknownRates : 0;
+
+		ChunkPlan plan = new ChunkPlan(streamCount, tbDen);
+		for(int s = 0; s < streamCount; s++)
+		{
+			if(blockSizes[s] == Long.MAX_VALUE)
+				continue; // Not a stream we chunk.
+
+			byte[] header = demuxer.getStreamData(s);
+			int headerSize = header != null ? header.length : 0;
+			long bitRate = params[s] != null && params[s].bitRate > 0 ? params[s].bitRate : fallbackRate;
+			double frameRate = params[s] != null ? params[s].frameRate : 0;
+			StreamIndex index = demuxer.getStreamIndex(s);
+
+			if(index != null && index.isComplete() && index.hasSizes())
+				planFromPackets(plan, demuxer, s, headerSize, blockSizes[s], index, durationTs);
+			else if(index != null && countKeyframes(index) > 0)
+				planFromKeyframes(plan, demuxer, s, headerSize, blockSizes[s], index, durationTs, bitRate, frameRate);
+			else if(durationTs > 0 && bitRate > 0)
+				planFromBitRate(plan, demuxer, s, headerSize, blockSizes[s], durationTs, bitRate, frameRate);
+		}
+		return plan;
+	}
+
+	private static void planFromPackets(ChunkPlan plan, Demuxer demuxer, int s, int headerSize, long blockSize, StreamIndex index, long durationTs)
+	{
+		int count = index.size();
+		long[] ts = new long[count], pos = new long[count], size = new long[count];
+		boolean[] keyframe = new boolean[count];
+		for(int i = 0; i < count; i++)
+		{
+			ts[i] = index.getTs(i);
+			pos[i] = index.getPos(i);
+			size[i] = index.getSize(i) + DemuxPacket.TPL_OVERHEAD;
+			keyframe[i] = index.isKeyframe(i);
+		}
+		// Not exact: the timestamps are DTS (see above).
+		plan.addStream(s, demuxer.getStreamMediaType(s), headerSize, blockSize, count, ts, pos, size, keyframe,
+					   Math.max(durationTs, ts[count-1]), false);
+	}
+
+	private static void planFromKeyframes(ChunkPlan plan, Demuxer demuxer, int s, int headerSize, long blockSize, StreamIndex index,
+										  long durationTs, long bitRate, double frameRate)
+	{
+		// Each keyframe stands for the run of packets up to the next one.
+		int count = countKeyframes(index);
+		long[] ts = new long[count], pos = new long[count], size = new long[count];
+		boolean[] keyframe = new boolean[count];
+		int k = 0;
+		for(int i = 0; i < index.size(); i++)
+		{
+			if(!index.isKeyframe(i))
+				continue;
+			ts[k] = index.getTs(i);
+			pos[k] = index.getPos(i);
+			keyframe[k] = true;
+			k++;
+		}
+
+		long endTS = Math.max(durationTs, ts[count-1]);
+		for(k = 0; k < count; k++)
+		{
+			long nextTs = k + 1 < count ? ts[k+1] : endTS;
+			if(bitRate > 0)
+				size[k] = estimateSize(nextTs - ts[k], plan.getTbDen(), bitRate, frameRate);
+			else if(k + 1 < count)
+				size[k] = Math.max(pos[k+1] - pos[k], 0); // All the streams' data, but better than nothing.
+		}
+
+		plan.addStream(s, demuxer.getStreamMediaType(s), headerSize, blockSize, count, ts, pos, size, keyframe, endTS, false);
+	}
+
+	private static void planFromBitRate(ChunkPlan plan, Demuxer demuxer, int s, int headerSize, long blockSize, long durationTs, long bitRate, double frameRate)
+	{
+		long step = plan.getTbDen();
+		int count = (int)((durationTs + step - 1) / step);
+		long[] ts = new long[count], pos = new long[count], size = new long[count];
+		boolean[] keyframe = new boolean[count];
+		for(int i = 0; i < count; i++)
+		{
+			ts[i] = i * step;
+			pos[i] = -1;
+			size[i] = estimateSize(Math.min(step, durationTs - ts[i]), plan.getTbDen(), bitRate, frameRate);
+			keyframe[i] = true;
+		}
+		plan.addStream(s, demuxer.getStreamMediaType(s), headerSize, blockSize, count, ts, pos, size, keyframe, durationTs, false);
+	}
+
+	private static long estimateSize(long lengthTs, long tbDen, long bitRate, double frameRate)
+	{
+		double seconds = (double)lengthTs / tbDen;
+		long size = (long)(seconds * bitRate / 8);
+		if(frameRate > 0)
+			size += (long)(seconds * frameRate) * DemuxPacket.TPL_OVERHEAD;
+		return size;
+	}
+
+	private static int countKeyframes(StreamIndex index)
+	{
+		int count = 0;
+		for(int i = 0; i < index.size(); i++)
+			if(index.isKeyframe(i))
+				count++;
+		return count;
+	}
+}
@@ -0,0 +1,106 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.util.concurrent.TimeUnit;
+
+import com.tstordyallison.ffmpegmr.util.FileUtils;
+
+/**
+ * A number of bytes that producers have to reserve before holding data in memory, and give back when they are done
+ * with it. acquire() blocks until there is room, so a budget bounds how much is in flight however big the items are.
+ *
+ * A single item bigger than the whole budget is let through once nothing else is held (otherwise it would never fit).
+ */
+public class MemoryBudget {
+
+	private final long capacity;
+	private long used = 0;
+	private long peak = 0;
+	private long stalls = 0;
+	private long stallNanos = 0;
+
+	public MemoryBudget(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Reserves the bytes, waiting for other holders to release enough if we have to.
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		tryAcquire(bytes, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Reserves the bytes if they fit now.
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		if(!fits(bytes))
+			return false;
+		take(bytes);
+		return true;
+	}
+
+	/**
+	 * Reserves the bytes, waiting up to the timeout for them to fit.
+	 */
+	public synchronized boolean tryAcquire(long bytes, long timeout, TimeUnit unit) throws InterruptedException {
+		if(fits(bytes)){
+			take(bytes);
+			return true;
+		}
+
+		long start = System.nanoTime();
+		long remaining = unit.toNanos(timeout);
+		stalls++;
+		try {
+			while(!fits(bytes))
+			{
+				if(remaining <= 0)
+					return false;
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				remaining = unit.toNanos(timeout) - (System.nanoTime() - start);
+			}
+			take(bytes);
+			return true;
+		} finally {
+			stallNanos += System.nanoTime() - start;
+		}
+	}
+
+	public synchronized void release(long bytes) {
+		used -= bytes;
+		if(used < 0)
+			throw new RuntimeException("More memory released (" + bytes + " bytes) than was acquired from the budget.");
+		notifyAll();
+	}
+
+	private boolean fits(long bytes) {
+		return used == 0 || used + bytes <= capacity;
+	}
+
+	private void take(long bytes) {
+		used += bytes;
+		peak = Math.max(peak, used);
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+	public synchronized long getUsed() {
+		return used;
+	}
+	public synchronized long getPeak() {
+		return peak;
+	}
+	public synchronized long getStalls() {
+		return stalls;
+	}
+	public synchronized long getStallMillis() {
+		return stallNanos / 1000000;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MemoryBudget [used=" + FileUtils.humanReadableByteCount(used, false) + "/" + FileUtils.humanReadableByteCount(capacity, false)
+				+ ", peak=" + FileUtils.humanReadableByteCount(peak, false) + ", stalls=" + stalls + " (" + getStallMillis() + "ms)]";
+	}
+}
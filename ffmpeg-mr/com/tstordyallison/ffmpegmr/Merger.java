@@ -1,7 +1,9 @@
 package com.tstordyallison.ffmpegmr;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
@@ -13,6 +15,8 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.SequenceFile;
 
@@ -35,6 +39,8 @@ public class Merger {
 		NativeUtil.loadFFmpegMR();
 	}
 	
+	private long nativeHandle = 0; // Pointer to the native state, managed by Merger.cpp.
+	
 	private File output;
 	private Path outputUri;
 	private FSDataOutputStream outputStream;
@@ -56,6 +62,7 @@ public class Merger {
 	private native void initWithFile(String filePath);
 	private native void initWithOutputStream(FSDataOutputStream output);
 	private native void addSegment(byte[] segment, long off, long len);
+	private native void addSegment(ByteBuffer segment, long off, long len); // Direct buffer, read in place.
 	private native void addSegment(String filePath); 
 	private native void closeOutput();
 	
@@ -113,6 +120,12 @@ public class Merger {
 				if(item.getPath().toUri().toString().contains("part-")){
 					SequenceFile.Reader reader = new SequenceFile.Reader(fs, item.getPath(), config);
 	
+					if(!reader.isCompressed() && config.getBoolean("ffmpeg-mr.directChunkBuffers", ChunkData.DIRECT_BUFFERS)){
+						mergeRaw(merger, reader, logger);
+						reader.close();
+						continue;
+					}
+					
 					LongWritable key = null;
 					BytesWritable value = null;
 					try {
@@ -143,6 +156,47 @@ public class Merger {
 		}
 	}
 	
+	/**
+	 * Reads the (uncompressed) reducer output records straight into a pooled direct buffer and hands that to the native
+	 * side, rather than going through a BytesWritable and having addSegment copy it again (with ffmpeg-mr.directChunkBuffers).
+	 */
+	private static void mergeRaw(Merger merger, SequenceFile.Reader reader, Logger logger) throws IOException
+	{
+		DataOutputBuffer keyBuffer = new DataOutputBuffer();
+		DataInputBuffer keyIn = new DataInputBuffer();
+		SequenceFile.ValueBytes valueBytes = reader.createValueBytes();
+		LongWritable key = new LongWritable();
+		ChunkBuffer buffer = null;
+		DataOutputStream out = null; // Appends to the buffer (from its length, so clear() starts it again).
+		try {
+			while(reader.nextRaw(keyBuffer, valueBytes) != -1)
+			{
+				int size = valueBytes.getSize();
+				if(buffer == null || buffer.capacity() < size){
+					if(buffer != null)
+						buffer.release();
+					buffer = ChunkBuffer.acquire(size);
+					out = new DataOutputStream(buffer.getOutputStream());
+				}
+				else
+					buffer.clear();
+				valueBytes.writeUncompressedBytes(out);
+				
+				// The value is a BytesWritable: an int length then the data.
+				int length = buffer.getBuffer().getInt();
+				merger.addSegment(buffer.getDirectBuffer(), 4, length-1);
+				
+				keyIn.reset(keyBuffer.getData(), keyBuffer.getLength());
+				key.readFields(keyIn);
+				logger.println("Reduce output merged: ts=" + key.get() + ", size=" + FileUtils.humanReadableByteCount(length, false));
+				keyBuffer.reset();
+			}
+		} finally {
+			if(buffer != null)
+				buffer.release();
+		}
+	}
+	
 	private static void mergeFromFolder(Merger merger, File folder) throws IOException
 	{
 		if (!merger.isClosed()) {
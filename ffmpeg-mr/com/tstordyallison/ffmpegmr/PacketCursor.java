@@ -0,0 +1,200 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Walks the packet TPLs in a chunk's data in place, so Java can look at the packets (timestamps, key flags, sizes)
+ * without going through native code or building DemuxPackets. One cursor can be reset() and reused for any number of
+ * chunks, and moving through the packets allocates nothing.
+ *
+ * Each packet is a TPL image of AVPACKET_TPL_FORMAT (see ffmpeg_tpl.c), laid out as:
+ *
+ * 	0	"tpl" + flags byte (bit 0 set if big endian)
+ * 	4	uint32 image size (including this header)
+ * 	8	"IIiiIiB\0"
+ * 	16	int64 pts
+ * 	24	int64 dts
+ * 	32	int32 flags
+ * 	36	int32 duration
+ * 	40	int64 convergence_duration
+ * 	48	int32 stream_index
+ * 	52	uint32 payload size
+ * 	56	payload
+ *
+ * Anything else in the data (i.e. the stream header TPL at the start of the chunk) is skipped. The timestamps are as
+ * libav gave them, in the stream's own time base.
+ */
+public class PacketCursor {
+
+	public static final long NOPTS_VALUE = 0x8000000000000000L; // AV_NOPTS_VALUE
+	public static final int FLAG_KEY = 1; // AV_PKT_FLAG_KEY
+
+	private static final int HEADER_SIZE = 8;
+	private static final byte[] PACKET_FORMAT = {'I', 'I', 'i', 'i', 'I', 'i', 'B', 0};
+	private static final int PTS = 16, DTS = 24, FLAGS = 32, DURATION = 36, STREAM_INDEX = 48, PAYLOAD_SIZE = 52;
+	public static final int PAYLOAD_OFFSET = DemuxPacket.TPL_OVERHEAD;
+
+	private ByteBuffer data;
+	private int limit;
+	private int next;				// Where the next record starts.
+	private int record = -1;		// The current packet (-1 before the first call to next()).
+	private int recordSize;
+	private int index = -1;
+
+	public PacketCursor() {
+	}
+
+	public PacketCursor(ChunkData chunkData) {
+		reset(chunkData);
+	}
+
+	/**
+	 * Points the cursor at the start of a chunk (its direct buffer if it has one, otherwise its data).
+	 */
+	public PacketCursor reset(ChunkData chunkData) {
+		if(chunkData.getBuffer() != null)
+			return reset(chunkData.getBuffer().getBuffer());
+		return reset(chunkData.getData(), 0, chunkData.getLength());
+	}
+
+	public PacketCursor reset(byte[] data, int offset, int length) {
+		return reset(ByteBuffer.wrap(data, offset, length));
+	}
+
+	/**
+	 * Points the cursor at the records between the buffer's position and limit (the buffer itself is left alone).
+	 */
+	public PacketCursor reset(ByteBuffer data) {
+		this.data = data.duplicate();
+		this.limit = data.limit();
+		this.next = data.position();
+		this.record = -1;
+		this.index = -1;
+		return this;
+	}
+
+	/**
+	 * Moves to the next packet. Returns false once there are none left.
+	 */
+	public boolean next() {
+		record = -1;
+		while(next < limit)
+		{
+			int start = next;
+			if(limit - start < HEADER_SIZE || data.get(start) != 't' || data.get(start+1) != 'p' || data.get(start+2) != 'l')
+				throw new RuntimeException("Invalid TPL record at offset " + start + ".");
+			data.order((data.get(start+3) & 1) != 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+			int size = data.getInt(start+4);
+			if(size < HEADER_SIZE || size > limit - start)
+				throw new RuntimeException("Invalid TPL record size " + (size & 0xffffffffL) + " at offset " + start + ".");
+			next = start + size;
+
+			if(isPacket(start, size)){
+				if(size < PAYLOAD_OFFSET || (data.getInt(start+PAYLOAD_SIZE) & 0xffffffffL) != size - PAYLOAD_OFFSET)
+					throw new RuntimeException("Invalid packet record at offset " + start + ".");
+				record = start;
+				recordSize = size;
+				index++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isPacket(int start, int size) {
+		if(size < HEADER_SIZE + PACKET_FORMAT.length)
+			return false;
+		for(int i = 0; i < PACKET_FORMAT.length; i++)
+			if(data.get(start + HEADER_SIZE + i) != PACKET_FORMAT[i])
+				return false;
+		return true;
+	}
+
+	private int record() {
+		if(record < 0)
+			throw new RuntimeException("The cursor is not on a packet.");
+		return record;
+	}
+
+	public long getPts() {
+		return data.getLong(record() + PTS);
+	}
+	public long getDts() {
+		return data.getLong(record() + DTS);
+	}
+	/**
+	 * The pts, or the dts if there isn't one (as the demuxer does), or 0 if there is neither.
+	 */
+	public long getTs() {
+		long pts = getPts();
+		if(pts != NOPTS_VALUE)
+			return pts;
+		long dts = getDts();
+		return dts != NOPTS_VALUE ? dts : 0;
+	}
+	public int getDuration() {
+		return data.getInt(record() + DURATION);
+	}
+	public int getFlags() {
+		return data.getInt(record() + FLAGS);
+	}
+	public boolean isKeyFrame() {
+		return (getFlags() & FLAG_KEY) != 0;
+	}
+	public int getStreamIndex() {
+		return data.getInt(record() + STREAM_INDEX);
+	}
+
+	/**
+	 * Where the packet's payload starts in the buffer (see getBuffer()).
+	 */
+	public int getPayloadOffset() {
+		return record() + PAYLOAD_OFFSET;
+	}
+	public int getPayloadSize() {
+		record();
+		return recordSize - PAYLOAD_OFFSET;
+	}
+	/**
+	 * Where the whole packet TPL starts in the buffer (e.g. to copy it into another chunk as it is).
+	 */
+	public int getRecordOffset() {
+		return record();
+	}
+	public int getRecordSize() {
+		record();
+		return recordSize;
+	}
+	/**
+	 * The number of the current packet in the chunk (from 0).
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * The buffer the offsets refer to. Use absolute gets, the cursor doesn't care about its position.
+	 */
+	public ByteBuffer getBuffer() {
+		return data;
+	}
+
+	/**
+	 * Counts the packets in a chunk (checking the records as it goes).
+	 */
+	public static int countPackets(ChunkData chunkData) {
+		PacketCursor cursor = new PacketCursor(chunkData);
+		while(cursor.next());
+		return cursor.getIndex() + 1;
+	}
+
+	@Override
+	public String toString() {
+		if(record < 0)
+			return "PacketCursor [" + (index + 1) + " packets read]";
+		return "PacketCursor [index=" + index + ", streamIndex=" + getStreamIndex() + ", ts=" + getTs() + ", duration=" +
+				getDuration() + ", key=" + isKeyFrame() + ", size=" + getPayloadSize() + "]";
+	}
+}
@@ -0,0 +1,303 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
+
+/**
+ * Every packet the demuxer gave for an input (stream, ts, byte position, size, duration, keyframe flag), saved as a
+ * sidecar file so that later runs over the same input can plan their chunks and seek without scanning the file again.
+ *
+ * The sidecar goes next to the input (<input>.fmrindex), or in ffmpeg-mr.indexCacheDir if that is set. It records the
+ * length and modification time of the input, and is ignored if they no longer match.
+ */
+public class PacketIndex implements Writable {
+
+	public static final String SIDECAR_SUFFIX = ".fmrindex";
+	private static final int MAGIC = 0x464d5249; // FMRI
+	private static final int VERSION = 1;
+
+	public static class StreamEntries {
+		private AVMediaType type = AVMediaType.UNKNOWN;
+		private int headerSize = 0;
+		private int count = 0;
+		private long[] ts = new long[1024];
+		private long[] pos = new long[1024];
+		private int[] size = new int[1024];
+		private long[] duration = new long[1024];
+		private boolean[] keyframe = new boolean[1024];
+
+		private void add(long ts, long pos, int size, long duration, boolean keyframe){
+			if(count == this.ts.length)
+				grow(count * 2);
+			this.ts[count] = ts;
+			this.pos[count] = pos;
+			this.size[count] = size;
+			this.duration[count] = duration;
+			this.keyframe[count] = keyframe;
+			count++;
+		}
+
+		private void grow(int capacity){
+			ts = Arrays.copyOf(ts, capacity);
+			pos = Arrays.copyOf(pos, capacity);
+			size = Arrays.copyOf(size, capacity);
+			duration = Arrays.copyOf(duration, capacity);
+			keyframe = Arrays.copyOf(keyframe, capacity);
+		}
+
+		public AVMediaType getType() {
+			return type;
+		}
+		public int getHeaderSize() {
+			return headerSize;
+		}
+		public int size() {
+			return count;
+		}
+		public long getTs(int i) {
+			return ts[i];
+		}
+		public long getPos(int i) {
+			return pos[i];
+		}
+		/**
+		 * The size of the packet as the chunker counts it (the serialised DemuxPacket).
+		 */
+		public int getSize(int i) {
+			return size[i];
+		}
+		public long getDuration(int i) {
+			return duration[i];
+		}
+		public boolean isKeyframe(int i) {
+			return keyframe[i];
+		}
+		public long getTotalSize() {
+			long total = 0;
+			for(int i = 0; i < count; i++)
+				total += size[i];
+			return total;
+		}
+	}
+
+	private long inputLength = -1;
+	private long inputModTime = -1;
+	private long tbDen = 1;
+	private long durationMs = -1;
+	private StreamEntries[] streams = new StreamEntries[0];
+
+	public PacketIndex() {
+	}
+
+	/**
+	 * Starts an empty index for the demuxer's streams - fill it with add() as the packets are read.
+	 */
+	public PacketIndex(PacketSource demuxer, long tbDen) {
+		this.tbDen = tbDen;
+		this.durationMs = demuxer.getDurationMs();
+		this.streams = new StreamEntries[demuxer.getStreamCount()];
+		for(int i = 0; i < streams.length; i++)
+		{
+			streams[i] = new StreamEntries();
+			streams[i].type = demuxer.getStreamMediaType(i);
+			byte[] header = demuxer.getStreamData(i);
+			streams[i].headerSize = header != null ? header.length : 0;
+		}
+	}
+
+	public void add(DemuxPacketBatch batch) {
+		for(int i = 0; i < batch.count; i++)
+			streams[batch.streamID[i]].add(batch.ts[i], batch.pos[i], batch.length[i], batch.duration[i], batch.splitPoint[i]);
+	}
+
+	public int getStreamCount() {
+		return streams.length;
+	}
+
+	public StreamEntries getStream(int streamID) {
+		return streams[streamID];
+	}
+
+	public long getTbDen() {
+		return tbDen;
+	}
+
+	public long getDurationMs() {
+		return durationMs;
+	}
+
+	public long getPacketCount() {
+		long total = 0;
+		for(StreamEntries stream : streams)
+			total += stream.count;
+		return total;
+	}
+
+	/**
+	 * The index as StreamIndexes (one per stream), for seeking and splitting - these are always complete.
+	 */
+	public StreamIndex[] toStreamIndexes() {
+		StreamIndex[] indexes = new StreamIndex[streams.length];
+		for(int i = 0; i < streams.length; i++)
+		{
+			StreamEntries stream = streams[i];
+			int[] payloadSizes = new int[stream.count];
+			for(int j = 0; j < stream.count; j++)
+				payloadSizes[j] = Math.max(stream.size[j] - DemuxPacket.TPL_OVERHEAD, 0);
+			indexes[i] = new StreamIndex(i, Arrays.copyOf(stream.pos, stream.count), Arrays.copyOf(stream.ts, stream.count),
+										 Arrays.copyOf(stream.keyframe, stream.count), payloadSizes, stream.count);
+		}
+		return indexes;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(inputLength);
+		out.writeLong(inputModTime);
+		out.writeLong(tbDen);
+		out.writeLong(durationMs);
+		out.writeInt(streams.length);
+		for(StreamEntries stream : streams)
+		{
+			out.writeInt(stream.type.ordinal());
+			out.writeInt(stream.headerSize);
+			out.writeInt(stream.count);
+
+			// Deltas against the last packet keep this small.
+			long lastTs = 0, lastPos = 0;
+			for(int i = 0; i < stream.count; i++)
+			{
+				WritableUtils.writeVLong(out, stream.ts[i] - lastTs);
+				WritableUtils.writeVLong(out, stream.pos[i] - lastPos);
+				WritableUtils.writeVInt(out, stream.size[i]);
+				WritableUtils.writeVLong(out, stream.duration[i]);
+				out.writeBoolean(stream.keyframe[i]);
+				lastTs = stream.ts[i];
+				lastPos = stream.pos[i];
+			}
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		if(in.readInt() != MAGIC)
+			throw new IOException("Not a packet index.");
+		int version = in.readInt();
+		if(version != VERSION)
+			throw new IOException("Unsupported packet index version " + version + ".");
+
+		inputLength = in.readLong();
+		inputModTime = in.readLong();
+		tbDen = in.readLong();
+		durationMs = in.readLong();
+		streams = new StreamEntries[in.readInt()];
+		for(int s = 0; s < streams.length; s++)
+		{
+			StreamEntries stream = streams[s] = new StreamEntries();
+			stream.type = AVMediaType.values()[in.readInt()];
+			stream.headerSize = in.readInt();
+			int count = in.readInt();
+			stream.grow(Math.max(count, 1));
+
+			long ts = 0, pos = 0;
+			for(int i = 0; i < count; i++)
+			{
+				ts += WritableUtils.readVLong(in);
+				pos += WritableUtils.readVLong(in);
+				stream.add(ts, pos, WritableUtils.readVInt(in), WritableUtils.readVLong(in), in.readBoolean());
+			}
+		}
+	}
+
+	/**
+	 * Where the sidecar for the input lives.
+	 */
+	public static Path getSidecarPath(Configuration config, String inputUri) {
+		String cacheDir = config.get("ffmpeg-mr.indexCacheDir");
+		if(cacheDir == null)
+			return new Path(inputUri + SIDECAR_SUFFIX);
+
+		// Name it after the input URI, so inputs with the same file name don't collide.
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(inputUri.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for(byte b : digest)
+				name.append(String.format("%02x", b));
+			return new Path(cacheDir, name.toString() + SIDECAR_SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Loads the sidecar for the input, or returns null if there isn't one or it is out of date.
+	 */
+	public static PacketIndex load(Configuration config, String inputUri) throws IOException {
+		Path inputPath = new Path(inputUri);
+		FileStatus input = FileSystem.get(URI.create(inputUri), config).getFileStatus(inputPath);
+		Path sidecar = getSidecarPath(config, inputUri);
+		FileSystem fs = FileSystem.get(sidecar.toUri(), config);
+		if(!fs.exists(sidecar))
+			return null;
+
+		PacketIndex index = new PacketIndex();
+		DataInputStream in = new DataInputStream(new GZIPInputStream(fs.open(sidecar)));
+		try {
+			index.readFields(in);
+		} finally {
+			in.close();
+		}
+
+		if(index.inputLength != input.getLen() || index.inputModTime != input.getModificationTime())
+			return null;
+		return index;
+	}
+
+	/**
+	 * Writes the sidecar for the input.
+	 */
+	public void save(Configuration config, String inputUri) throws IOException {
+		FileStatus input = FileSystem.get(URI.create(inputUri), config).getFileStatus(new Path(inputUri));
+		inputLength = input.getLen();
+		inputModTime = input.getModificationTime();
+
+		Path sidecar = getSidecarPath(config, inputUri);
+		FileSystem fs = FileSystem.get(sidecar.toUri(), config);
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(fs.create(sidecar, true)));
+		try {
+			write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("PacketIndex [" + streams.length + " streams, " + getPacketCount() + " packets, duration=" + durationMs + "ms");
+		for(int i = 0; i < streams.length; i++)
+			sb.append("\n\t\tStream " + i + " (" + streams[i].type + "): " + streams[i].count + " packets, " + streams[i].getTotalSize() + " bytes");
+		return sb.append("\n]").toString();
+	}
+}
@@ -0,0 +1,323 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The packets buffered for one stream by ChunkerThread.ChunkBuffers, waiting to be drained as a chunk.
+ *
+ * The per packet metadata lives in a ring of parallel primitive arrays, and the packet data is copied back to back
+ * into a byte arena, so adding a packet doesn't allocate anything (once the buffers have grown to fit a chunk), and
+ * a chunk is built with a single copy of its data.
+ *
+ * If the data in memory goes over the spill threshold (e.g. a long GOP that can't be drained yet), it is moved out to
+ * a temp file, and the chunk it ends up in is backed by that file rather than copied back into memory.
+ */
+class PacketRing {
+
+	private final byte[] header;
+	private long tbNum = 1;
+	private long tbDen = 1;
+	private long packetCount = 0;
+	private boolean firstChunk = true;
+
+	// Ring of packets, oldest at head. Capacity is always a power of two.
+	private long[] ts;
+	private long[] duration;
+	private int[] offset;		// Offset of the packet data in the arena.
+	private int[] length;
+	private int head = 0;
+	private int count = 0;
+	private int endMarker = -1; // The last keyframe (relative to head), which is where the next chunk will start.
+
+	// Packet data, live between dataStart and dataEnd.
+	private byte[] arena;
+	private int dataStart = 0;
+	private int dataEnd = 0;
+	private final int arenaSize;
+	
+	// The first spilledPackets packets have their data in the spill file instead.
+	private final long spillThreshold;
+	private final File spillDir;
+	private File spillFile = null;
+	private FileOutputStream spillOut = null;
+	private long spilledBytes = 0;
+	private int spilledPackets = 0;
+	private long spillCount = 0;
+
+	public PacketRing(byte[] header) {
+		this(header, 1024, 1048576);
+	}
+
+	public PacketRing(byte[] header, long spillThreshold, File spillDir) {
+		this(header, 1024, 1048576, spillThreshold, spillDir);
+	}
+
+	public PacketRing(byte[] header, int packetCapacity, int arenaSize) {
+		this(header, packetCapacity, arenaSize, Long.MAX_VALUE, null);
+	}
+
+	public PacketRing(byte[] header, int packetCapacity, int arenaSize, long spillThreshold, File spillDir) {
+		this.header = header != null ? header : new byte[0];
+		int capacity = Integer.highestOneBit(Math.max(packetCapacity, 2) - 1) << 1;
+		this.ts = new long[capacity];
+		this.duration = new long[capacity];
+		this.offset = new int[capacity];
+		this.length = new int[capacity];
+		this.arena = new byte[arenaSize];
+		this.arenaSize = arenaSize;
+		this.spillThreshold = spillThreshold;
+		this.spillDir = spillDir;
+	}
+
+	/**
+	 * Adds packet i of the batch, copying its data straight out of the batch arena.
+	 */
+	public void add(DemuxPacketBatch batch, int i) {
+		int dest = append(batch.ts[i], batch.duration[i], batch.splitPoint[i], batch.tb_num, batch.tb_den, batch.length[i]);
+		batch.copyData(i, arena, dest);
+	}
+
+	private int append(long ts, long duration, boolean keyframe, long tbNum, long tbDen, int length) {
+		if(count == this.ts.length)
+			growRing();
+		if(dataEnd - dataStart + length > spillThreshold && dataEnd > dataStart)
+			spill();
+		if(arena.length - dataEnd < length)
+			makeRoom(length);
+
+		int slot = (head + count) & (this.ts.length - 1);
+		this.ts[slot] = ts;
+		this.duration[slot] = duration;
+		this.offset[slot] = dataEnd;
+		this.length[slot] = length;
+		if(keyframe)
+			endMarker = count;
+		count++;
+		packetCount++;
+
+		this.tbNum = tbNum;
+		this.tbDen = tbDen;
+
+		int dest = dataEnd;
+		dataEnd += length;
+		return dest;
+	}
+
+	private void growRing() {
+		int capacity = ts.length * 2;
+		long[] newTs = new long[capacity];
+		long[] newDuration = new long[capacity];
+		int[] newOffset = new int[capacity];
+		int[] newLength = new int[capacity];
+		for(int i = 0; i < count; i++)
+		{
+			int slot = (head + i) & (ts.length - 1);
+			newTs[i] = ts[slot];
+			newDuration[i] = duration[slot];
+			newOffset[i] = offset[slot];
+			newLength[i] = length[slot];
+		}
+		ts = newTs;
+		duration = newDuration;
+		offset = newOffset;
+		length = newLength;
+		head = 0;
+	}
+
+	/**
+	 * Makes space for another packet at the end of the arena, by moving the live data back to the start if that frees
+	 * up plenty of space, and otherwise by growing it.
+	 */
+	private void makeRoom(int needed) {
+		int live = dataEnd - dataStart;
+		byte[] dest = arena;
+		if(live + needed > arena.length / 2){
+			int size = arena.length * 2;
+			while(size < live + needed)
+				size *= 2;
+			dest = new byte[size];
+		}
+
+		System.arraycopy(arena, dataStart, dest, 0, live);
+		for(int i = 0; i < count; i++)
+			offset[(head + i) & (ts.length - 1)] -= dataStart;
+		arena = dest;
+		dataStart = 0;
+		dataEnd = live;
+	}
+
+	/**
+	 * Moves all of the packet data in memory out to the end of the spill file, and lets the arena go if it has grown.
+	 */
+	private void spill() {
+		try {
+			if(spillFile == null){
+				spillFile = File.createTempFile("ffmpeg-mr-spill", ".tmp", spillDir);
+				spillOut = new FileOutputStream(spillFile);
+			}
+			spillOut.write(arena, dataStart, dataEnd - dataStart);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to spill buffered packets to disk (" + e.getMessage() + ").", e);
+		}
+		
+		spilledBytes += dataEnd - dataStart;
+		spilledPackets = count;
+		spillCount++;
+		dataStart = 0;
+		dataEnd = 0;
+		if(arena.length > arenaSize)
+			arena = new byte[arenaSize];
+	}
+
+	/**
+	 * Builds a chunk from the first packets (with the stream header in front), and removes them.
+	 */
+	public ChunkData takeChunk(int packets) {
+		if(spilledPackets > 0)
+			return takeSpilledChunk(packets);
+		
+		int bytes = packets == count ? dataEnd - dataStart : offset[(head + packets) & (ts.length - 1)] - dataStart;
+		ChunkData chunkData = new ChunkData(header, arena, dataStart, bytes, packets);
+		remove(packets, bytes);
+		return chunkData;
+	}
+	
+	/**
+	 * Builds a chunk backed by the spill file (which the chunk then owns). If some of the spilled packets aren't in 
+	 * the chunk, they are copied into a new spill file for the ring.
+	 */
+	private ChunkData takeSpilledChunk(int packets) {
+		try {
+			File chunkFile = spillFile;
+			long chunkBytes;
+			
+			if(packets >= spilledPackets){
+				// All of the spilled data, plus the rest of the chunk from memory.
+				int bytes = packets == count ? dataEnd - dataStart : offset[(head + packets) & (ts.length - 1)] - dataStart;
+				spillOut.write(arena, dataStart, bytes);
+				spillOut.close();
+				chunkBytes = spilledBytes + bytes;
+				
+				spillFile = null;
+				spillOut = null;
+				spilledBytes = 0;
+				spilledPackets = 0;
+				remove(packets, bytes);
+			}
+			else{
+				// Just the start of the spilled data - move the rest to a new file.
+				chunkBytes = 0;
+				for(int i = 0; i < packets; i++)
+					chunkBytes += length[(head + i) & (ts.length - 1)];
+				spillOut.close();
+				
+				spillFile = File.createTempFile("ffmpeg-mr-spill", ".tmp", spillDir);
+				spillOut = new FileOutputStream(spillFile);
+				FileInputStream in = new FileInputStream(chunkFile);
+				try {
+					// transferTo can copy less than it is asked to (e.g. sendfile stops at about 2GB), so keep going.
+					long position = chunkBytes;
+					while(position < spilledBytes)
+					{
+						long n = in.getChannel().transferTo(position, spilledBytes - position, spillOut.getChannel());
+						if(n <= 0)
+							throw new IOException("Spill file " + chunkFile + " is truncated (copied " + (position - chunkBytes) + " of " + 
+												  (spilledBytes - chunkBytes) + " bytes).");
+						position += n;
+					}
+				} finally {
+					in.close();
+				}
+				
+				spilledBytes -= chunkBytes;
+				spilledPackets -= packets;
+				remove(packets, 0);
+			}
+			
+			return new ChunkData(header, chunkFile, chunkBytes, packets);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read back spilled packets (" + e.getMessage() + ").", e);
+		}
+	}
+	
+	private void remove(int packets, int bytes) {
+		dataStart += bytes;
+		head = (head + packets) & (ts.length - 1);
+		count -= packets;
+		endMarker = -1;
+		if(count == 0){
+			dataStart = 0;
+			dataEnd = 0;
+		}
+	}
+	
+	/**
+	 * Deletes the spill file (if there is one), e.g. when demuxing is abandoned.
+	 */
+	public void close() {
+		if(spillFile == null)
+			return;
+		try {
+			spillOut.close();
+		} catch (IOException e) {
+		}
+		spillFile.delete();
+		spillFile = null;
+	}
+
+	public int size() {
+		return count;
+	}
+	public long getTs(int i) {
+		return ts[(head + i) & (ts.length - 1)];
+	}
+	public long getDuration(int i) {
+		return duration[(head + i) & (ts.length - 1)];
+	}
+	public long getTbNum() {
+		return tbNum;
+	}
+	public long getTbDen() {
+		return tbDen;
+	}
+	/**
+	 * The buffered size, including the stream header (and whatever has been spilled).
+	 */
+	public long getBufferSize() {
+		return header.length + spilledBytes + dataEnd - dataStart;
+	}
+	/**
+	 * Number of times the buffer has spilled to disk.
+	 */
+	public long getSpillCount() {
+		return spillCount;
+	}
+	public int getEndMarker() {
+		return endMarker;
+	}
+	public void setEndMarker(int endMarker) {
+		this.endMarker = endMarker;
+	}
+	public long getPacketCount() {
+		return packetCount;
+	}
+	public void addPacketCount(long packets) {
+		packetCount += packets;
+	}
+	/**
+	 * True the first time it is called (for the first chunk in the stream).
+	 */
+	public boolean takeFirstChunk() {
+		boolean first = firstChunk;
+		firstChunk = false;
+		return first;
+	}
+
+	@Override
+	public String toString() {
+		return "PacketRing [header=" + header.length + " bytes, packets=" + count + ", data=" + (dataEnd - dataStart) + " bytes, spilled=" + spilledBytes + " bytes, endMarker=" + endMarker + "]";
+	}
+}
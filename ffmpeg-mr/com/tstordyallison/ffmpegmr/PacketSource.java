@@ -0,0 +1,21 @@
+package com.tstordyallison.ffmpegmr;
+
+import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
+
+/**
+ * Anything the ChunkerThread can pull demuxed packets from (a plain Demuxer, or several of them working together).
+ */
+public interface PacketSource {
+
+	public int getStreamCount();
+	public byte[] getStreamData(int streamID);
+	public AVMediaType getStreamMediaType(int streamID);
+	public long getDurationMs();
+
+	/**
+	 * Fills the batch with the next packets, in the order the demuxer would give them. Returns the number of packets read, 0 at the end of the file.
+	 */
+	public int readPackets(int max, DemuxPacketBatch batch);
+
+	public int close();
+}
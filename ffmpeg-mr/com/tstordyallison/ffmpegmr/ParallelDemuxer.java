@@ -0,0 +1,430 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
+import com.tstordyallison.ffmpegmr.emr.Logger;
+
+/**
+ * Demuxes an indexed file (MP4/MOV, MKV with cues...) with several Demuxers at once.
+ *
+ * The file is split into byte ranges that start on keyframes of the video stream. Each range is demuxed by its own
+ * Demuxer (which seeks a little way before the range and throws away what it reads before it), and the ranges are
+ * handed out in order, so the packets come out in exactly the order a single Demuxer gives them.
+ *
+ * That only holds if the demuxer reads the file in byte order, so every range checks that its packets come out with
+ * increasing positions and (where the index lists every packet) that it got all of the packets the index says are in the
+ * range. If a range fails the checks we carry on from the start of that range with a single Demuxer, seeking to the same
+ * keyframe the range's Demuxer started from (or reading from the start of the file if that doesn't work).
+ *
+ * A range is only handed out once all of it has been demuxed and checked, so the one being read out is held in full. The
+ * ranges ahead of it stop demuxing once the packets held (including that range's) reach MAX_BUFFERED_BYTES.
+ */
+public class ParallelDemuxer implements PacketSource {
+
+	public static int DEFAULT_RANGE_SIZE = 67108864; // 64MB
+	public static long SEEK_OVERLAP_MS = 5000; // How far before a range its Demuxer starts reading.
+	public static int RANGE_ARENA_SIZE = 1048576; // Starting arena size for the range batches (they grow if they need to).
+	public static long MAX_BUFFERED_BYTES = 134217728; // 128MB - demuxed packets held before the ranges ahead wait (see above).
+
+	/**
+	 * Opens a new Demuxer on the input (one per range), and closes it (and anything it was reading from) afterwards.
+	 */
+	public interface DemuxerFactory {
+		public Demuxer open() throws IOException;
+		public void release(Demuxer demuxer);
+	}
+
+	private static class Range {
+		int index;
+		long start;
+		long end;
+		long seekTs = -1; // -1 means read from the beginning of the file.
+		List<DemuxPacketBatch> batches = new LinkedList<DemuxPacketBatch>();
+	}
+
+	private final DemuxerFactory factory;
+	private final Demuxer primary; // Used for the stream info, and for carrying on if a range fails.
+	private final int splitStream;
+	private final long splitStartTs; // The first keyframe of the split stream (to go back to the start of the file).
+	private final StreamIndex[] indexes;
+	private final List<Range> ranges;
+	private final int threads;
+	private final Logger logger;
+
+	private final ExecutorService pool;
+	private final List<Future<Range>> results = new ArrayList<Future<Range>>();
+	private final ConcurrentLinkedQueue<DemuxPacketBatch> freeBatches = new ConcurrentLinkedQueue<DemuxPacketBatch>();
+	private volatile boolean closed = false;
+
+	private final Object bufferLock = new Object(); // Guards bufferedBytes and currentRange (for the range threads).
+	private long bufferedBytes = 0;
+	private int currentRange = 0;
+	private Range current = null;
+	private int currentBatchPos = 0; // Packets already handed out from the first batch of the current range.
+	private Demuxer fallback = null;
+	private long fallbackStart = 0;
+	private boolean fallbackSeeked = false; // Check the first packet after the fallback's seek didn't land past fallbackStart.
+
+	/**
+	 * Sets up a parallel demux if the input has a usable index, otherwise returns null (and the caller should use a plain Demuxer).
+	 * The primary demuxer is owned by the ParallelDemuxer from then on.
+	 */
+	public static ParallelDemuxer create(Demuxer primary, DemuxerFactory factory, int threads, long rangeSize, Logger logger)
+	{
+		return create(primary, factory, threads, rangeSize, null, logger);
+	}
+	
+	/**
+	 * As above, but splits using the given indexes (e.g. from a PacketIndex sidecar) rather than the container's own.
+	 */
+	public static ParallelDemuxer create(Demuxer primary, DemuxerFactory factory, int threads, long rangeSize, StreamIndex[] indexes, Logger logger)
+	{
+		if(threads <= 1)
+			return null;
+
+		// Split on the first video stream that has a keyframe index in file order.
+		StreamIndex splitIndex = null;
+		if(indexes == null || indexes.length != primary.getStreamCount())
+		{
+			indexes = new StreamIndex[primary.getStreamCount()];
+			for(int i = 0; i < primary.getStreamCount(); i++)
+				indexes[i] = primary.getStreamIndex(i);
+		}
+		for(int i = 0; i < indexes.length; i++)
+		{
+			if(splitIndex == null && indexes[i] != null && primary.getStreamMediaType(i) == AVMediaType.VIDEO && indexes[i].isPosOrdered())
+				splitIndex = indexes[i];
+		}
+		if(splitIndex == null)
+			return null;
+
+		// Cut a new range at the first keyframe past each rangeSize bytes.
+		long overlap = SEEK_OVERLAP_MS * primary.getTimeBaseDen() / 1000;
+		List<Range> ranges = new ArrayList<Range>();
+		Range range = new Range();
+		range.start = 0;
+		ranges.add(range);
+		for(int i = 0; i < splitIndex.size(); i++)
+		{
+			if(!splitIndex.isKeyframe(i) || splitIndex.getPos(i) - range.start < rangeSize)
+				continue;
+
+			range.end = splitIndex.getPos(i);
+			range = new Range();
+			range.index = ranges.size();
+			range.start = splitIndex.getPos(i);
+			int seekEntry = splitIndex.keyframeBefore(splitIndex.getTs(i) - overlap);
+			range.seekTs = seekEntry >= 0 ? splitIndex.getTs(seekEntry) : splitIndex.getTs(0);
+			ranges.add(range);
+		}
+		range.end = Long.MAX_VALUE;
+
+		if(ranges.size() < 2)
+			return null;
+
+		return new ParallelDemuxer(primary, factory, splitIndex.getStreamID(), splitIndex.getTs(0), indexes, ranges, threads, logger);
+	}
+
+	private ParallelDemuxer(Demuxer primary, DemuxerFactory factory, int splitStream, long splitStartTs, StreamIndex[] indexes, 
+							List<Range> ranges, int threads, Logger logger)
+	{
+		this.primary = primary;
+		this.factory = factory;
+		this.splitStream = splitStream;
+		this.splitStartTs = splitStartTs;
+		this.indexes = indexes;
+		this.ranges = ranges;
+		this.threads = threads;
+		this.logger = logger;
+
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FFmpeg JNI Range Demuxer " + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		logger.println("Demuxing in " + ranges.size() + " ranges on " + threads + " threads.");
+
+		// Keep one range per thread (plus the one being read out) in flight - the rest are submitted as the earlier ones are read out.
+		for(int i = 0; i < Math.min(ranges.size(), threads + 1); i++)
+			submit(ranges.get(i));
+	}
+
+	private void submit(final Range range)
+	{
+		results.add(pool.submit(new Callable<Range>() {
+			@Override
+			public Range call() throws Exception {
+				return demuxRange(range);
+			}
+		}));
+	}
+
+	private DemuxPacketBatch newBatch()
+	{
+		DemuxPacketBatch batch = freeBatches.poll();
+		return batch != null ? batch : new DemuxPacketBatch(DemuxPacketBatch.DEFAULT_MAX_PACKETS, RANGE_ARENA_SIZE);
+	}
+
+	private Range demuxRange(Range range) throws IOException, InterruptedException
+	{
+		if(closed)
+			return range;
+
+		Demuxer demuxer = factory.open();
+		try{
+			if(range.seekTs >= 0 && !demuxer.seek(splitStream, range.seekTs))
+				throw new IllegalStateException("seek to " + range.seekTs + " failed");
+
+			int[] counts = new int[indexes.length];
+			boolean[] keep = new boolean[0];
+			boolean first = true;
+			boolean started = false; // Seen a packet in the range.
+			boolean done = false;
+			long lastPos = -1;
+
+			while(!done && !closed)
+			{
+				waitForRoom(range);
+				DemuxPacketBatch batch = newBatch();
+				if(demuxer.readPackets(batch.capacity(), batch) <= 0){
+					freeBatches.add(batch);
+					break;
+				}
+
+				if(keep.length < batch.count)
+					keep = new boolean[batch.count];
+
+				for(int i = 0; i < batch.count; i++)
+				{
+					long pos = batch.pos[i];
+					keep[i] = false;
+
+					if(pos < 0)
+						throw new IllegalStateException("packet with no byte position");
+					if(first && range.seekTs >= 0 && pos >= range.start)
+						throw new IllegalStateException("seek landed past the start of the range");
+					first = false;
+
+					// Once we are in the range, every packet has to come after the last one (before we skip any), 
+					// otherwise one going back over a range boundary would be dropped by both ranges.
+					if(started && pos < lastPos)
+						throw new IllegalStateException("packets are not in file order (" + pos + " after " + lastPos + ")");
+					if(pos < range.start)
+						continue; // Still catching up to the range.
+					started = true;
+					lastPos = pos;
+
+					if(done || pos >= range.end){
+						done = true;
+						continue;
+					}
+
+					keep[i] = true;
+					counts[batch.streamID[i]]++;
+				}
+
+				batch.retain(keep);
+				if(batch.count > 0){
+					range.batches.add(batch);
+					synchronized (bufferLock) {
+						bufferedBytes += batch.arena.capacity();
+					}
+				}
+				else
+					freeBatches.add(batch);
+			}
+
+			// Where the index lists every packet we can check that none went missing.
+			for(int i = 0; i < indexes.length; i++)
+			{
+				if(indexes[i] == null || !indexes[i].isComplete())
+					continue;
+				int expected = indexes[i].countInRange(range.start, range.end);
+				if(counts[i] != expected)
+					throw new IllegalStateException("stream " + i + " gave " + counts[i] + " packets, the index has " + expected);
+			}
+
+			return range;
+		}
+		finally{
+			factory.release(demuxer);
+		}
+	}
+
+	/**
+	 * Waits while the packets held are over MAX_BUFFERED_BYTES, unless this is the range being read out (which never
+	 * waits, so the reader always gets its range).
+	 */
+	private void waitForRoom(Range range) throws InterruptedException
+	{
+		synchronized (bufferLock) {
+			while(!closed && range.index > currentRange && bufferedBytes >= MAX_BUFFERED_BYTES)
+				bufferLock.wait();
+		}
+	}
+
+	@Override
+	public int readPackets(int max, DemuxPacketBatch batch)
+	{
+		if(fallback != null)
+			return readFallback(max, batch);
+
+		while(current == null || current.batches.isEmpty())
+		{
+			if(current != null){
+				// Finished with this range - start on the next one that isn't in flight yet.
+				current = null;
+				synchronized (bufferLock) {
+					currentRange++;
+					bufferLock.notifyAll();
+				}
+				if(results.size() < ranges.size() && !closed)
+					submit(ranges.get(results.size()));
+			}
+			if(currentRange >= ranges.size())
+				return 0;
+
+			try {
+				current = results.get(currentRange).get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Interrupted while waiting for a range to demux.", e);
+			} catch (ExecutionException e) {
+				Range failed = ranges.get(currentRange);
+				logger.println("WARNING: Range " + failed.index + " could not be demuxed in parallel (" + e.getCause().getMessage() + "). Carrying on with a single demuxer.");
+				startFallback(failed);
+				return readFallback(max, batch);
+			}
+		}
+
+		DemuxPacketBatch next = current.batches.get(0);
+		int count = Math.min(Math.min(max, batch.capacity()), next.count - currentBatchPos);
+		if(currentBatchPos == 0 && count == next.count){
+			// Hand the whole batch over without copying, and keep the caller's old arrays for reuse.
+			current.batches.remove(0);
+			releaseBatch(next);
+			batch.swap(next);
+			freeBatches.add(next);
+			return batch.count;
+		}
+		
+		// The caller wants fewer packets than the batch has, so copy them out and keep the rest for next time.
+		batch.copyFrom(next, currentBatchPos, count);
+		currentBatchPos += count;
+		if(currentBatchPos == next.count){
+			current.batches.remove(0);
+			releaseBatch(next);
+			freeBatches.add(next);
+			currentBatchPos = 0;
+		}
+		return batch.count;
+	}
+
+	private void releaseBatch(DemuxPacketBatch batch)
+	{
+		synchronized (bufferLock) {
+			bufferedBytes -= batch.arena.capacity();
+			bufferLock.notifyAll();
+		}
+	}
+
+	private void startFallback(Range failed)
+	{
+		// Stop everything that's still running, then read on from the start of the failed range. Seek to where its
+		// Demuxer started, otherwise (or if the seek fails) read from the start of the file.
+		cancelRanges();
+		current = null;
+		fallback = primary;
+		fallbackStart = failed.start > 0 ? failed.start : Long.MIN_VALUE;
+		fallbackSeeked = failed.seekTs >= 0 && primary.seek(splitStream, failed.seekTs);
+		if(failed.seekTs >= 0 && !fallbackSeeked)
+			logger.println("WARNING: Could not seek to range " + failed.index + ", demuxing from the start of the file.");
+	}
+
+	private int readFallback(int max, DemuxPacketBatch batch)
+	{
+		boolean[] keep = new boolean[batch.capacity()];
+		while(fallback.readPackets(max, batch) > 0)
+		{
+			if(fallbackSeeked){
+				fallbackSeeked = false;
+				if(batch.pos[0] < 0 || batch.pos[0] > fallbackStart){
+					// Landed past the start of the range (so we'd miss packets) - go back to the start of the file.
+					logger.println("WARNING: Seeking to the failed range went past its start, demuxing from the start of the file.");
+					if(!fallback.seek(splitStream, splitStartTs))
+						throw new RuntimeException("Could not seek back to the start of the file to carry on demuxing.");
+					continue;
+				}
+			}
+			for(int i = 0; i < batch.count; i++)
+				keep[i] = batch.pos[i] >= fallbackStart;
+			batch.retain(keep);
+			if(batch.count > 0){
+				fallbackStart = Long.MIN_VALUE; // Past the failed range start - keep everything from here on.
+				return batch.count;
+			}
+		}
+		return 0;
+	}
+
+	private void cancelRanges()
+	{
+		closed = true;
+		synchronized (bufferLock) {
+			bufferLock.notifyAll();
+		}
+		for(Future<Range> result : results)
+			result.cancel(false);
+		pool.shutdown();
+		freeBatches.clear();
+	}
+
+	public int getRangeCount() {
+		return ranges.size();
+	}
+
+	public int getThreadCount() {
+		return threads;
+	}
+
+	@Override
+	public int getStreamCount() {
+		return primary.getStreamCount();
+	}
+
+	@Override
+	public byte[] getStreamData(int streamID) {
+		return primary.getStreamData(streamID);
+	}
+
+	@Override
+	public AVMediaType getStreamMediaType(int streamID) {
+		return primary.getStreamMediaType(streamID);
+	}
+
+	@Override
+	public long getDurationMs() {
+		return primary.getDurationMs();
+	}
+
+	@Override
+	public int close() {
+		cancelRanges();
+		return primary.close();
+	}
+}
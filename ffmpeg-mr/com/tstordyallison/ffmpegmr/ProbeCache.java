@@ -0,0 +1,283 @@
+package com.tstordyallison.ffmpegmr;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * What probing an input found (the stream headers from getStreamData and the duration), keyed by URI, length and
+ * modification time, so that opening the same input again can skip avformat_find_stream_info.
+ *
+ * There is one cache per JVM, holding the most recently used ffmpeg-mr.probeCacheSize entries. If
+ * ffmpeg-mr.probeCacheDir is set, entries are also saved there so other tasks and later jobs can use them.
+ */
+public class ProbeCache {
+
+	public static int DEFAULT_CAPACITY = 256;
+	public static final String FILE_SUFFIX = ".fmrprobe";
+	private static final int MAGIC = 0x464d5250; // FMRP
+	private static final int VERSION = 1;
+
+	public static class ProbeResult implements Writable {
+		private byte[][] streamHeaders = new byte[0][];
+		private long durationMs = -1;
+
+		public ProbeResult() {
+		}
+
+		public ProbeResult(byte[][] streamHeaders, long durationMs) {
+			this.streamHeaders = streamHeaders;
+			this.durationMs = durationMs;
+		}
+
+		/**
+		 * Takes the results from a demuxer that has just probed its input.
+		 */
+		public static ProbeResult fromDemuxer(Demuxer demuxer) {
+			byte[][] headers = new byte[demuxer.getStreamCount()][];
+			for(int i = 0; i < headers.length; i++)
+				headers[i] = demuxer.getStreamData(i);
+			return new ProbeResult(headers, demuxer.getDurationMs());
+		}
+
+		public int getStreamCount() {
+			return streamHeaders.length;
+		}
+		/**
+		 * The TPL stream headers (empty for streams we have no decoder for).
+		 */
+		public byte[][] getStreamHeaders() {
+			return streamHeaders;
+		}
+		public long getDurationMs() {
+			return durationMs;
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(durationMs);
+			WritableUtils.writeVInt(out, streamHeaders.length);
+			for(byte[] header : streamHeaders)
+			{
+				WritableUtils.writeVInt(out, header.length);
+				out.write(header);
+			}
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			if(in.readInt() != MAGIC)
+				throw new IOException("Not a probe cache entry.");
+			int version = in.readInt();
+			if(version != VERSION)
+				throw new IOException("Unsupported probe cache entry version " + version + ".");
+
+			durationMs = in.readLong();
+			streamHeaders = new byte[WritableUtils.readVInt(in)][];
+			for(int i = 0; i < streamHeaders.length; i++)
+			{
+				streamHeaders[i] = new byte[WritableUtils.readVInt(in)];
+				in.readFully(streamHeaders[i]);
+			}
+		}
+	}
+
+	private static ProbeCache instance = null;
+
+	/**
+	 * The cache for this JVM (set up from the first config it is asked for).
+	 */
+	public static synchronized ProbeCache getInstance(Configuration config) {
+		if(instance == null)
+			instance = new ProbeCache(config.getInt("ffmpeg-mr.probeCacheSize", DEFAULT_CAPACITY), config, config.get("ffmpeg-mr.probeCacheDir"));
+		return instance;
+	}
+
+	public static String getKey(String uri, long length, long modificationTime) {
+		return uri + "|" + length + "|" + modificationTime;
+	}
+
+	private final int capacity;
+	private final Configuration config;
+	private final String cacheDir;
+	private final Map<String, ProbeResult> entries;
+
+	private long hits = 0;
+	private long dirHits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public ProbeCache(int capacity, Configuration config, String cacheDir) {
+		this.capacity = capacity;
+		this.config = config;
+		this.cacheDir = cacheDir;
+		this.entries = new LinkedHashMap<String, ProbeResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ProbeResult> eldest) {
+				if(size() > ProbeCache.this.capacity){
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * The cached result for the key, or null if we haven't probed it yet.
+	 */
+	public synchronized ProbeResult get(String key) {
+		ProbeResult result = entries.get(key);
+		if(result != null){
+			hits++;
+			return result;
+		}
+
+		result = load(key);
+		if(result != null){
+			dirHits++;
+			return result;
+		}
+
+		misses++;
+		return null;
+	}
+	
+	/**
+	 * Reads an entry in from the cache dir (if there is one there) and keeps it in memory.
+	 */
+	private ProbeResult load(String key) {
+		ProbeResult result = readEntry(key);
+		if(result != null)
+			entries.put(key, result);
+		return result;
+	}
+
+	public synchronized void put(String key, ProbeResult result) {
+		entries.put(key, result);
+		writeEntry(key, result);
+	}
+
+	/**
+	 * Opens a stream demuxer, skipping the probe if we have the results for this key, and caching them if we don't 
+	 * (or if the native side rejected the ones we had).
+	 */
+	public Demuxer open(String key, FSDataInputStream in, long length, int bufferSize, int prefetchBlocks) {
+		ProbeResult probe;
+		boolean fromDir = false;
+		synchronized(this) {
+			probe = entries.get(key);
+			if(probe == null && (probe = load(key)) != null)
+				fromDir = true;
+		}
+		
+		Demuxer demuxer = new Demuxer(in, length, bufferSize, prefetchBlocks, probe);
+		
+		// Only count it as a hit if the demuxer actually used it - if not, the entry is stale, so replace it.
+		boolean used = probe != null && demuxer.usedProbedHeaders();
+		synchronized(this) {
+			if(!used)
+				misses++;
+			else if(fromDir)
+				dirHits++;
+			else
+				hits++;
+		}
+		if(!used)
+			put(key, ProbeResult.fromDemuxer(demuxer));
+		return demuxer;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+	public synchronized long getDirHits() {
+		return dirHits;
+	}
+	public synchronized long getMisses() {
+		return misses;
+	}
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private Path getEntryPath(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for(byte b : digest)
+				name.append(String.format("%02x", b));
+			return new Path(cacheDir, name.toString() + FILE_SUFFIX);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private ProbeResult readEntry(String key) {
+		if(cacheDir == null)
+			return null;
+
+		// The cache is only ever a shortcut, so anything going wrong here is just a miss.
+		try {
+			Path path = getEntryPath(key);
+			FileSystem fs = FileSystem.get(path.toUri(), config);
+			if(!fs.exists(path))
+				return null;
+
+			ProbeResult result = new ProbeResult();
+			DataInputStream in = fs.open(path);
+			try {
+				result.readFields(in);
+			} finally {
+				in.close();
+			}
+			return result;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void writeEntry(String key, ProbeResult result) {
+		if(cacheDir == null)
+			return;
+
+		try {
+			Path path = getEntryPath(key);
+			FileSystem fs = FileSystem.get(path.toUri(), config);
+			DataOutputStream out = fs.create(path, true);
+			try {
+				result.write(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to save probe cache entry for " + key + " (" + e.getMessage() + ").");
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ProbeCache [size=" + entries.size() + "/" + capacity + ", hits=" + hits + ", dirHits=" + dirHits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+}
@@ -1,12 +1,51 @@
 package com.tstordyallison.ffmpegmr;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 import com.tstordyallison.ffmpegmr.util.NativeUtil;
 
 public class Remuxer {
-	
+
 	static{
 		NativeUtil.loadFFmpegMR();
 	}
-	
-	public native static byte[] muxChunks(Iterable<Chunk> chunks);
+
+	/**
+	 * Muxes the chunks (one for each stream) into one MKV segment. Chunks already in a ChunkBuffer are passed to the
+	 * native side as they are (retained while we use them, as the reducer reads the next chunk into the same
+	 * ChunkData), the others are copied into one first.
+	 */
+	public static byte[] muxChunks(Iterable<Chunk> chunks) {
+		List<ChunkBuffer> chunkBuffers = new ArrayList<ChunkBuffer>();
+		List<Integer> streamIDs = new ArrayList<Integer>();
+		try {
+			for(Chunk chunk : chunks)
+			{
+				ChunkData data = chunk.getChunkData();
+				if(data.getBuffer() != null)
+					chunkBuffers.add(data.getBuffer().retain());
+				else
+					chunkBuffers.add(ChunkBuffer.copyOf(data.getData(), 0, data.getLength()));
+				streamIDs.add(chunk.getChunkID().getStreamID());
+			}
+
+			ByteBuffer[] buffers = new ByteBuffer[chunkBuffers.size()];
+			int[] lengths = new int[buffers.length];
+			int[] ids = new int[buffers.length];
+			for(int i = 0; i < buffers.length; i++)
+			{
+				buffers[i] = chunkBuffers.get(i).getDirectBuffer();
+				lengths[i] = chunkBuffers.get(i).getLength();
+				ids[i] = streamIDs.get(i);
+			}
+			return muxBuffers(buffers, lengths, ids);
+		} finally {
+			for(ChunkBuffer buffer : chunkBuffers)
+				buffer.release();
+		}
+	}
+
+	private native static byte[] muxBuffers(ByteBuffer[] buffers, int[] lengths, int[] streamIDs);
 }
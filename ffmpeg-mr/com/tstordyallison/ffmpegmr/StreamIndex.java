@@ -0,0 +1,102 @@
+package com.tstordyallison.ffmpegmr;
+
+/**
+ * The container index for one stream (MP4/MOV sample tables, MKV cues, AVI idx1...), as loaded by libavformat.
+ *
+ * Timestamps are in the common demuxer timebase (1/Demuxer.getTimeBaseDen()), but they are decode timestamps, so
+ * with B-frames they can be behind DemuxPacket.ts (which is the PTS) by the reorder delay.
+ */
+public class StreamIndex {
+
+	private final int streamID;
+	private final long[] pos;
+	private final long[] ts;
+	private final boolean[] keyframe;
+	private final int[] size;
+	private final long frameCount;
+
+	public StreamIndex(int streamID, long[] pos, long[] ts, boolean[] keyframe, int[] size, long frameCount) {
+		this.streamID = streamID;
+		this.pos = pos;
+		this.ts = ts;
+		this.keyframe = keyframe;
+		this.size = size;
+		this.frameCount = frameCount;
+	}
+
+	public int getStreamID() {
+		return streamID;
+	}
+
+	public int size() {
+		return pos.length;
+	}
+
+	public long getPos(int i) {
+		return pos[i];
+	}
+
+	public long getTs(int i) {
+		return ts[i];
+	}
+
+	public boolean isKeyframe(int i) {
+		return keyframe[i];
+	}
+
+	/**
+	 * The payload size of the packet, or 0 if the container doesn't store it.
+	 */
+	public int getSize(int i) {
+		return size[i];
+	}
+
+	/**
+	 * True if every entry has a size.
+	 */
+	public boolean hasSizes() {
+		for(int s : size)
+			if(s <= 0)
+				return false;
+		return size.length > 0;
+	}
+
+	/**
+	 * True if there is an entry for every packet in the stream (e.g. MP4), rather than just for some keyframes (e.g. MKV cues).
+	 */
+	public boolean isComplete() {
+		return frameCount > 0 && pos.length == frameCount;
+	}
+
+	/**
+	 * True if the entries are in increasing byte position order.
+	 */
+	public boolean isPosOrdered() {
+		for(int i = 0; i < pos.length; i++)
+			if(pos[i] < 0 || (i > 0 && pos[i] <= pos[i-1]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * The number of entries with a byte position in [start, end).
+	 */
+	public int countInRange(long start, long end) {
+		int count = 0;
+		for(long p : pos)
+			if(p >= start && p < end)
+				count++;
+		return count;
+	}
+
+	/**
+	 * The last keyframe entry with a timestamp at or before ts, or -1.
+	 */
+	public int keyframeBefore(long ts) {
+		int found = -1;
+		for(int i = 0; i < this.ts.length; i++)
+			if(keyframe[i] && this.ts[i] <= ts && (found == -1 || this.ts[i] >= this.ts[found]))
+				found = i;
+		return found;
+	}
+}
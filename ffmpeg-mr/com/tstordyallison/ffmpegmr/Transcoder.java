@@ -1,5 +1,6 @@
 package com.tstordyallison.ffmpegmr;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import com.tstordyallison.ffmpegmr.util.NativeUtil;
@@ -11,6 +12,9 @@ public class Transcoder
 		NativeUtil.loadFFmpegMR();
 	}
 	
+	private long nativeHandle = 0; // Pointer to the native state, managed by Transcoder.cpp.
+	private ChunkBuffer buffer = null; // The off heap data the native side is reading from (retained until close).
+	
 	// For now, we will just have a fixed output of:
 	// MKV container
 	// H.264 video
@@ -19,26 +23,79 @@ public class Transcoder
 	
 	public Transcoder(long chunkpointNum, long chunkpointDen, List<Long> outputChunkPoints, byte[] data)
 	{
-		this(chunkpointNum, chunkpointDen, outputChunkPoints, data, 0, 0, 0, 0, 0);
+		this(chunkpointNum, chunkpointDen, outputChunkPoints, data, data.length);
+	}
+	
+	/**
+	 * Transcodes the first length bytes of data (e.g. a ChunkData's getData() and getLength()).
+	 */
+	public Transcoder(long chunkpointNum, long chunkpointDen, List<Long> outputChunkPoints, byte[] data, int length)
+	{
+		this(chunkpointNum, chunkpointDen, outputChunkPoints, data, length, 0, 0, 0, 0, 0);
 	}
 	
 	public Transcoder(long chunkpointNum, long chunkpointDen, List<Long> outputChunkPoints, byte[] data, 
 					  double videoResScale, double videoCrf, int videoBitrate, int audioBitrate, int videoThreads) {
+		this(chunkpointNum, chunkpointDen, outputChunkPoints, data, data.length, videoResScale, videoCrf, videoBitrate, audioBitrate, videoThreads);
+	}
+	
+	public Transcoder(long chunkpointNum, long chunkpointDen, List<Long> outputChunkPoints, byte[] data, int length,
+					  double videoResScale, double videoCrf, int videoBitrate, int audioBitrate, int videoThreads) {
+		if(length < 0 || length > data.length)
+			throw new RuntimeException("Invalid data length " + length + " (the array is " + data.length + " bytes).");
+		init(chunkpointNum, chunkpointDen, outputChunkPoints, data, null, length, videoResScale, videoCrf, videoBitrate, audioBitrate, videoThreads);
+	}
+	
+	/**
+	 * Transcodes a chunk's data. If it is in a ChunkBuffer, the native side reads it where it is (the buffer is 
+	 * retained until close()), otherwise it is copied in from the heap.
+	 */
+	public Transcoder(long chunkpointNum, long chunkpointDen, List<Long> outputChunkPoints, ChunkData data, 
+			  		  double videoResScale, double videoCrf, int videoBitrate, int audioBitrate, int videoThreads) {
+		ChunkBuffer chunkBuffer = data.getBuffer();
+		if(chunkBuffer == null){
+			init(chunkpointNum, chunkpointDen, outputChunkPoints, data.getData(), null, data.getLength(), videoResScale, videoCrf, videoBitrate, audioBitrate, videoThreads);
+			return;
+		}
+		
+		buffer = chunkBuffer.retain();
+		try {
+			init(chunkpointNum, chunkpointDen, outputChunkPoints, null, chunkBuffer.getDirectBuffer(), chunkBuffer.getLength(), videoResScale, videoCrf, videoBitrate, audioBitrate, videoThreads);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	private void init(long chunkpointNum, long chunkpointDen, List<Long> outputChunkPoints, byte[] data, ByteBuffer directData, int length, 
+			  		  double videoResScale, double videoCrf, int videoBitrate, int audioBitrate, int videoThreads) {
 		int err;
 		long[] chunkPointsNative = new long[outputChunkPoints.size()];
 		for(int i = 0; i < outputChunkPoints.size(); i++)
 			chunkPointsNative[i] = outputChunkPoints.get(i);
 			
-		if((err = initWithBytes(chunkpointNum, chunkpointDen, chunkPointsNative, data, 
+		if((err = initWithBytes(chunkpointNum, chunkpointDen, chunkPointsNative, data, directData, length, 
 								videoResScale, videoCrf, videoBitrate, audioBitrate, videoThreads)) != 0)
 			throw new RuntimeException("Transcoder native init failed with code " + err + ". See stderr for more info.");	
 	}
 
-	private native int initWithBytes(long chunkpointNum, long chunkpointDen, long[] chunkPointsNative, byte[] data, 
+	/**
+	 * Takes the data from the direct buffer if there is one (without copying it), otherwise from the byte array.
+	 */
+	private native int initWithBytes(long chunkpointNum, long chunkpointDen, long[] chunkPointsNative, byte[] data, ByteBuffer directData, int length, 
 									 double videoResScale, double videoCrf, int videoBitrate, int audioBitrate, int videoThreads);
 	public native DemuxPacket getNextPacket();
 	public native byte[] getStreamData();
-	public native int close();
+	private native int closeNative();
+	
+	public int close() {
+		int ret = closeNative();
+		if(buffer != null){
+			buffer.release();
+			buffer = null;
+		}
+		return ret;
+	}
 	
 	protected void finalize() throws Throwable {
 	    try {
@@ -5,6 +5,7 @@ import java.net.URI;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -24,8 +25,10 @@ public class WriterThread extends Thread{
 	public static int BLOCK_SIZE = 16777216;
 	public static boolean PRINT_WRITE = true;
 	
+	private int writeBufferSize = WRITE_BUFFER_SIZE;
 	private boolean draining = false;
 	private BlockingQueue<Chunk> chunkQ;
+	private ByteBoundedChunkQueue byteQ = null; // Set if the queue is byte bounded (we give the memory back as we write).
 	private Queue<Chunk> bufferQ = new LinkedList<Chunk>();
 	
 	private String outputUri = "";
@@ -36,16 +39,92 @@ public class WriterThread extends Thread{
 	private int blockSize = BLOCK_SIZE;
 	private Logger logger;
 	
+	private StripeThread[] stripes = null; // Set if we are writing to several part files.
+	private boolean stripeByStream = false;
+	private long stripeCounter = 0;
+	
+	private volatile Exception failure = null; // The first error writing (ours or a stripe's).
+	
+	/**
+	 * Appends the chunks it is given to one part file. The WriterThread still does the holding back, and freezes each
+	 * chunk's ID before passing it on, so nothing can change it while it is being written.
+	 * 
+	 * If a stripe fails, it records the error and interrupts the WriterThread, which stops the other stripes (rather
+	 * than blocking forever on a queue no one is taking from) and reports the error (see getFailure()).
+	 */
+	private class StripeThread extends Thread {
+		private final BlockingQueue<Chunk> stripeQ = new LinkedBlockingQueue<Chunk>(Chunker.CHUNK_Q_LIMIT);
+		private final SequenceFile.Writer stripeWriter;
+		
+		public StripeThread(String partUri, String name) {
+			super(name);
+			stripeWriter = createWriter(partUri);
+		}
+		
+		@Override
+		public void run() {
+			boolean closed = false;
+			try{
+				if(stripeWriter == null)
+					throw new IOException("Could not create the part file for " + getName() + ".");
+				Chunk chunk;
+				while((chunk = stripeQ.take()).getChunkData() != null)
+					append(stripeWriter, chunk);
+				stripeWriter.close(); // Here rather than below, so that errors closing it are reported.
+				closed = true;
+			} catch (InterruptedException e) {
+				// Stopped by the WriterThread (because it or another stripe failed).
+			} catch (Exception e) {
+				System.err.println("Error writing " + getName() + ":");
+				e.printStackTrace();
+				fail(e);
+				WriterThread.this.interrupt();
+			}
+			finally {
+				if(stripeWriter != null && !closed)
+					IOUtils.closeStream(stripeWriter);
+			}
+		}
+	}
+	
 	public WriterThread(Configuration conf, BlockingQueue<Chunk> chunkQ, String outputUri, String name, int blockSize) {
+		this(conf, chunkQ, outputUri, name, blockSize, 1, false);
+	}
+	
+	/**
+	 * With more than one stripe, the output uri is a directory, and the chunks are written to a part file for each 
+	 * stripe (part-00000 etc.) by their own threads. Chunks go to the stripes round robin, or by stream if byStream is set.
+	 */
+	public WriterThread(Configuration conf, BlockingQueue<Chunk> chunkQ, String outputUri, String name, int blockSize, int stripes, boolean byStream) {
 		super(name);
 		this.conf = conf;
 		this.chunkQ = chunkQ;
+		if(chunkQ instanceof ByteBoundedChunkQueue)
+			this.byteQ = (ByteBoundedChunkQueue)chunkQ;
 		this.outputUri = outputUri;
 		this.blockSize = blockSize;
 		logger = new Logger(conf);
-		initFileSystem(conf, chunkQ,outputUri);
+		
+		if(stripes > 1){
+			this.stripes = new StripeThread[stripes];
+			this.stripeByStream = byStream;
+			for(int i = 0; i < stripes; i++)
+				this.stripes[i] = new StripeThread(getPartUri(outputUri, i), name + " (part " + i + ")");
+		}
+		else
+			initFileSystem(conf, chunkQ,outputUri);
 	}
+	
+	public static String getPartUri(String outputUri, int part) {
+		return outputUri + "/part-" + String.format("%05d", part);
+	}
+	
 	private void initFileSystem(Configuration conf, BlockingQueue<Chunk> chunkQ, String outputUri)
+	{	
+		writer = createWriter(outputUri);
+	}
+	
+	private SequenceFile.Writer createWriter(String outputUri)
 	{	
 		// Connect to the ouptut filesystem.
 		try {
@@ -57,23 +136,28 @@ public class WriterThread extends Thread{
 			
 			fs = FileSystem.get(URI.create(outputUri), conf);
 			path = new Path(outputUri);
-			writer = SequenceFile.createWriter(fs, conf, path, ChunkID.class, ChunkData.class, fs.getConf().getInt("io.file.buffer.size", 4096),
+			return SequenceFile.createWriter(fs, conf, path, ChunkID.class, ChunkData.class, fs.getConf().getInt("io.file.buffer.size", 4096),
 		            fs.getDefaultReplication(), writerBlockSize,CompressionType.NONE, new DefaultCodec(), null, new Metadata());
 		} catch (IOException e) {
 			System.err.println("IO Error connecting to FS:");
 			e.printStackTrace();
+			return null;
 		} 
 	}
 
 	@Override
 	public void run() {
 		// Process items in the writing queue and output them to the fs.
+		if(stripes != null)
+			for(StripeThread stripe : stripes)
+				stripe.start();
+		
 		try{
 			
 			while(!draining){
 				
 				// Get a new chunk off the main Q, and add it to our buffer.
-				Chunk newChunk = chunkQ.take();
+				Chunk newChunk = nextChunk();
 				bufferQ.add(newChunk);
 				
 				// If this new chunk is null, then we are draining.
@@ -81,7 +165,7 @@ public class WriterThread extends Thread{
 					draining = true;
 				
 				// If the buffer is big enough, or if we are draining, write out stuff to the FS.
-				while(draining || bufferQ.size() > WRITE_BUFFER_SIZE){
+				while(draining || bufferQ.size() > writeBufferSize){
 					
 					// Get our chunk.
 					Chunk chunk = bufferQ.remove();
@@ -93,28 +177,134 @@ public class WriterThread extends Thread{
 						break;
 					}
 					
-					if(FILE_PER_CHUNK)
-						initFileSystem(conf, chunkQ, outputUri + "." + chunk.getChunkID().getStreamID() + "." + chunk.getChunkID().getChunkNumber());
-					writer.append(chunk.getChunkID(), chunk.getChunkData());
-					if(FILE_PER_CHUNK)
-						writer.close();
-					if(PRINT_WRITE)
-						logger.println("Written: " + chunk.toString());
+					write(chunk);
 				}
 			}
 			
 		} catch (InterruptedException e) {
+			// A stripe failed (see StripeThread), or we were stopped.
 		} catch (IOException e) {
 			System.err.println("IO error:");
 			e.printStackTrace();
+			fail(e);
 		} catch (Exception e) {
 			e.printStackTrace();
+			fail(e);
 		}
 		finally {
 			if(writer != null)
 				IOUtils.closeStream(writer);
+			if(stripes != null)
+				closeStripes();
 		}
 	}
+	
+	private void fail(Exception e) {
+		synchronized (this) {
+			if(failure == null)
+				failure = e;
+		}
+	}
+	
+	/**
+	 * Ends the stripes: once they have written everything, or straight away if anything has failed.
+	 */
+	private void closeStripes() {
+		try {
+			if(failure == null)
+				for(StripeThread stripe : stripes)
+					stripe.stripeQ.put(new Chunk(null, null));
+		} catch (InterruptedException e) {
+			// A stripe failed while we were closing.
+		}
+		if(failure != null || isInterrupted())
+			for(StripeThread stripe : stripes)
+				stripe.interrupt();
+		
+		boolean interrupted = false;
+		for(StripeThread stripe : stripes)
+		{
+			while(stripe.isAlive())
+			{
+				try {
+					stripe.join();
+				} catch (InterruptedException e) {
+					// A stripe failed while we were waiting for the others, so stop them all.
+					interrupted = true;
+					for(StripeThread other : stripes)
+						other.interrupt();
+				}
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * The first error hit writing the chunks (by this thread or one of its stripes), or null if there wasn't one. 
+	 * Check this once the thread has finished.
+	 */
+	public Exception getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Takes the next chunk from the queue. If the queue is byte bounded and the chunker is waiting for memory while
+	 * we are holding chunks back, the held back chunks are written out (oldest first) to make room. A chunk written
+	 * early can't have its chunk points fixed up any more (if the chunker needs to, it fails rather than losing the
+	 * fix), so the budget should allow for the held back chunks.
+	 */
+	private Chunk nextChunk() throws InterruptedException, IOException {
+		if(byteQ == null)
+			return chunkQ.take();
+		
+		while(true)
+		{
+			Chunk chunk = byteQ.takeOrStall(!bufferQ.isEmpty());
+			if(chunk != null)
+				return chunk;
+			logger.println("Memory budget full, writing a held back chunk early.");
+			write(bufferQ.remove());
+		}
+	}
+	
+	private void write(Chunk chunk) throws IOException, InterruptedException {
+		// From here on the ChunkerThread can't change the chunk points (see ChunkID.addOutputChunkPoint).
+		chunk.getChunkID().freeze();
+		
+		if(stripes != null){
+			int stripe;
+			if(stripeByStream)
+				stripe = chunk.getChunkID().getStreamID() % stripes.length;
+			else
+				stripe = (int)(stripeCounter++ % stripes.length);
+			stripes[stripe].stripeQ.put(chunk);
+			return;
+		}
+		
+		if(FILE_PER_CHUNK)
+			initFileSystem(conf, chunkQ, outputUri + "." + chunk.getChunkID().getStreamID() + "." + chunk.getChunkID().getChunkNumber());
+		append(writer, chunk);
+		if(FILE_PER_CHUNK)
+			writer.close();
+	}
+	
+	private void append(SequenceFile.Writer writer, Chunk chunk) throws IOException {
+		writer.append(chunk.getChunkID(), chunk.getChunkData());
+		if(PRINT_WRITE)
+			logger.println("Written: " + chunk.toString());
+		if(byteQ != null)
+			byteQ.release(chunk); // Before the chunk lets go of its data (and its size with it).
+		chunk.getChunkData().release();
+	}
+
+	/**
+	 * How many chunks to hold back before writing (so the ChunkerThread can still fix up their chunk points). Zero if 
+	 * the chunk IDs are final when they are queued.
+	 */
+	public void setWriteBufferSize(int writeBufferSize) {
+		this.writeBufferSize = writeBufferSize;
+	}
 
 	public int getBlockSize() {
 		return blockSize;
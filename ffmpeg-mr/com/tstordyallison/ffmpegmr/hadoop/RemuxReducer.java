@@ -7,11 +7,18 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapreduce.Reducer;
 
 import com.tstordyallison.ffmpegmr.Chunk;
+import com.tstordyallison.ffmpegmr.ChunkData;
 import com.tstordyallison.ffmpegmr.Remuxer;
 import com.tstordyallison.ffmpegmr.emr.Logger;
 
 public class RemuxReducer extends Reducer<LongWritable, Chunk, LongWritable, BytesWritable> {
 
+	@Override
+	protected void setup(Context context) throws IOException, InterruptedException {
+		super.setup(context);
+		ChunkData.DIRECT_BUFFERS = context.getConfiguration().getBoolean("ffmpeg-mr.directChunkBuffers", ChunkData.DIRECT_BUFFERS);
+	}
+	
 	/**
 	 * The reducer takes all of the 'Chunks' with the same timestamp (and because of our demux 
 	 * chunking method, the same duration also) and interleaves the different streams of data (audio/video)
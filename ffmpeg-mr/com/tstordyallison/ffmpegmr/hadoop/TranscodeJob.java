@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import org.apache.hadoop.conf.Configuration;
@@ -26,6 +28,7 @@ import org.apache.hadoop.util.ToolRunner;
 
 import com.tstordyallison.ffmpegmr.Chunk;
 import com.tstordyallison.ffmpegmr.Chunker;
+import com.tstordyallison.ffmpegmr.DemuxScheduler;
 import com.tstordyallison.ffmpegmr.Merger;
 import com.tstordyallison.ffmpegmr.WriterThread;
 
@@ -117,6 +120,10 @@ public class TranscodeJob extends Configured implements Tool {
 		Logger logger = new Logger(config);
 		logger.markStartTime(TimedEvent.JOBRUN);
 		
+		// Demuxes started ahead of their jobs (if we are demuxing more than one input at once).
+		DemuxScheduler demuxScheduler = null;
+		Map<TranscodeJobDef, DemuxScheduler.DemuxTask> demuxTasks = new HashMap<TranscodeJobDef, DemuxScheduler.DemuxTask>();
+		
 		// Get cluster status from Hadoop.
 		@SuppressWarnings("deprecation")
 		JobClient jobClient = new JobClient(new JobConf(config));
@@ -143,6 +150,24 @@ public class TranscodeJob extends Configured implements Tool {
 			// Print out the job list.
 			logger.println("Job submission from: " + args[0]);
 			
+			// If we can demux several inputs at once, start demuxing them all now, so later jobs' inputs are 
+			// demuxed while the earlier jobs are running on the cluster.
+			if(config.getInt("ffmpeg-mr.demuxInputs", DemuxScheduler.CONCURRENT_INPUTS) > 1){
+				demuxScheduler = new DemuxScheduler(config);
+				int demuxCounter = 0;
+				for(TranscodeJobDef jobDef : list.getJobs())
+				{
+					demuxCounter += 1;
+					if(jobDef.getProcessingType() != ProcessingType.MapReduce || jobDef.getInputType() != InputType.RawFile)
+						continue;
+					Configuration demuxConfig = new Configuration(config);
+					demuxConfig.setInt("ffmpeg-mr.jobCounter", demuxCounter);
+					demuxTasks.put(jobDef, demuxScheduler.submit(demuxConfig, new Path(jobDef.getInputUri()).toUri().toString(), 
+							"/tmp/demux-temp-" + jobID + "-" + demuxCounter, jobDef.getDemuxChunkSize()));
+				}
+				logger.println("Demuxing " + demuxTasks.size() + " inputs, " + config.getInt("ffmpeg-mr.demuxInputs", DemuxScheduler.CONCURRENT_INPUTS) + " at a time.");
+			}
+			
 			// Process each of the jobs.
 			int counter = 0;
 			for(TranscodeJobDef jobDef : list.getJobs())
@@ -186,9 +211,19 @@ public class TranscodeJob extends Configured implements Tool {
 								logger.println("WARNING: Please upload this file as a pre-demuxed SequenceFile to improve performance, or copy locally.");
 							}
 							
-							logger.markStartTime(TimedEvent.DEMUX);
-								packetCount = Chunker.chunkInputFile(config, movieFile.toUri().toString(), demuxData.toUri().toString(), jobDef.getDemuxChunkSize()).getPacketCounts();
-							logger.markEndTime(TimedEvent.DEMUX);
+							DemuxScheduler.DemuxTask demuxTask = demuxTasks.remove(jobDef);
+							if(demuxTask != null){
+								// Already being demuxed, so just wait for it (the DEMUX time is only the time we waited).
+								logger.markStartTime(TimedEvent.DEMUX);
+									packetCount = demuxTask.get().getPacketCounts();
+								logger.markEndTime(TimedEvent.DEMUX);
+								logger.println("Demuxed in " + demuxTask.getElapsedMillis()/1000 + "s (" + demuxTask + ").");
+							}
+							else{
+								logger.markStartTime(TimedEvent.DEMUX);
+									packetCount = Chunker.chunkInputFile(config, movieFile.toUri().toString(), demuxData.toUri().toString(), jobDef.getDemuxChunkSize()).getPacketCounts();
+								logger.markEndTime(TimedEvent.DEMUX);
+							}
 						}
 						if(jobDef.getInputType() == InputType.RawFileCopy){
 							logger.println("Job requires demux. Copying locallly, then demuxing and copying into HDFS.");
@@ -201,12 +236,14 @@ public class TranscodeJob extends Configured implements Tool {
 								FileUtils.copy(movieFile, new Path("file://" + tempFile.getAbsolutePath()), false, true, config);
 							logger.markEndTime(TimedEvent.RAW_COPY_IN);
 							
-							// Demux onto HDFS.
+							// Demux onto HDFS (keeping the packet index with the original input, not the copy).
 							demuxData = new Path("/tmp/demux-temp-" + jobID); 
+							config.set("ffmpeg-mr.indexInputUri", movieFile.toUri().toString());
 							
 							logger.markStartTime(TimedEvent.DEMUX);
 								packetCount = Chunker.chunkInputFile(config, tempFile, demuxData.toUri().toString(), jobDef.getDemuxChunkSize()).getPacketCounts();
 							logger.markEndTime(TimedEvent.DEMUX);
+							config.set("ffmpeg-mr.indexInputUri", "");
 							
 							tempFile.delete();
 						}
@@ -270,7 +307,7 @@ public class TranscodeJob extends Configured implements Tool {
 	
 				        if(jobDef.getInputType() == InputType.RawFile || jobDef.getInputType() == InputType.RawFileCopy){
 				        	logger.println("Deleting temp demuxed data from HDFS.");
-				        	FileSystem.get(config).delete(demuxData, false);
+				        	FileSystem.get(config).delete(demuxData, true); // This is a directory if the demux was written in parts.
 				        }
 			        
 				        if(jobDef.getOutputType() == OutputType.RawFile && success)
@@ -368,6 +405,8 @@ public class TranscodeJob extends Configured implements Tool {
 			throw exRun;
 		}
 		finally{
+			if(demuxScheduler != null)
+				demuxScheduler.shutdown();
 			logger.logEntry("Job run complete.");
 			logger.markEndTime(TimedEvent.JOBRUN);
 			logger.flush();
@@ -38,6 +38,7 @@ public class TranscodeMapper extends Mapper<ChunkID,ChunkData,LongWritable,Chunk
 		videoBitrate = config.getInt("ffmpeg-mr.videoBitrate", videoBitrate);
 		audioBitrate = config.getInt("ffmpeg-mr.audioBitrate", audioBitrate);
 		videoThreads = config.getInt("ffmpeg-mr.videoThreads", videoThreads);
+		ChunkData.DIRECT_BUFFERS = config.getBoolean("ffmpeg-mr.directChunkBuffers", ChunkData.DIRECT_BUFFERS);
 		
 		logger = new Logger(context.getConfiguration());
 	}
@@ -58,7 +59,7 @@ public class TranscodeMapper extends Mapper<ChunkID,ChunkData,LongWritable,Chunk
 		Stopwatch stopwatch = new Stopwatch();
 		stopwatch.start(); 
 		
-    	Transcoder trans = new  Transcoder(key.getTbNum(), key.getTbDen(), key.getOutputChunkPoints(), value.getData(), 
+    	Transcoder trans = new  Transcoder(key.getTbNum(), key.getTbDen(), key.getOutputChunkPoints(), value, 
     									   videoResScale, videoCrf, videoBitrate, audioBitrate, videoThreads);
     	byte[] header = trans.getStreamData();
     	List<DemuxPacket> currentPackets = new LinkedList<DemuxPacket>();
@@ -0,0 +1,176 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.WritableComparator;
+
+import com.tstordyallison.ffmpegmr.ChunkID;
+import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
+
+/**
+ * Times sorting serialised ChunkID keys the way the sort phase does - with the raw comparator registered for ChunkID,
+ * with a comparator that reads both keys back in and uses compareTo, and (for comparison) with the old toString()
+ * ordering.
+ *
+ * Usage:
+ * 	ChunkIDSortBench synthetic [keys] [rounds]		- sort made up keys.
+ * 	ChunkIDSortBench file <sequence file> [rounds]	- sort the keys of a demuxed SequenceFile.
+ */
+public class ChunkIDSortBench {
+
+	public static int WARMUP_ROUNDS = 2;
+
+	/**
+	 * Compares by reading both keys back in, as WritableComparator does when there is no raw comparator.
+	 */
+	private static class DeserialisingComparator extends WritableComparator {
+		private final boolean byString;
+		public DeserialisingComparator(boolean byString) {
+			super(ChunkID.class, true);
+			this.byString = byString;
+		}
+		@SuppressWarnings("rawtypes")
+		@Override
+		public int compare(org.apache.hadoop.io.WritableComparable a, org.apache.hadoop.io.WritableComparable b) {
+			if(byString)
+				return a.toString().compareTo(b.toString());
+			return super.compare(a, b);
+		}
+	}
+
+	private static DataOutputBuffer keys = new DataOutputBuffer();
+	private static List<int[]> offsets = new ArrayList<int[]>(); // start, length
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1){
+			usage();
+			return;
+		}
+
+		int rounds;
+		if(args[0].equals("synthetic")){
+			int count = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+			rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			loadSynthetic(count);
+		}
+		else if(args[0].equals("file") && args.length > 1){
+			rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			loadFile(args[1]);
+		}
+		else{
+			usage();
+			return;
+		}
+		System.out.println("Sorting " + offsets.size() + " keys (" + keys.getLength() + " bytes).");
+
+		WritableComparator raw = WritableComparator.get(ChunkID.class);
+		if(!(raw instanceof ChunkID.Comparator))
+			throw new RuntimeException("The raw comparator for ChunkID is not registered.");
+		checkOrder(raw, new DeserialisingComparator(false));
+
+		bench("raw", raw, rounds);
+		bench("compareTo", new DeserialisingComparator(false), rounds);
+		bench("toString", new DeserialisingComparator(true), rounds);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: ChunkIDSortBench synthetic [keys] [rounds] | file <sequence file> [rounds]");
+	}
+
+	private static void add(DataOutputBuffer key) throws IOException {
+		offsets.add(new int[] {keys.getLength(), key.getLength()});
+		keys.write(key.getData(), 0, key.getLength());
+	}
+
+	private static void loadSynthetic(int count) throws IOException {
+		Random random = new Random(42);
+		DataOutputBuffer key = new DataOutputBuffer();
+		for(int i = 0; i < count; i++)
+		{
+			ChunkID id = new ChunkID();
+			id.setStreamID(random.nextInt(3));
+			id.setChunkNumber(random.nextInt(count));
+			id.setStartTS(id.getChunkNumber() * 90000 * 10);
+			id.setEndTS(id.getStartTS() + 90000 * 10);
+			id.setTbNum(1);
+			id.setTbDen(90000);
+			id.setStreamType(id.getStreamID() == 0 ? AVMediaType.VIDEO : AVMediaType.AUDIO);
+			for(int j = 1; j < 4; j++)
+				id.getOutputChunkPoints().add(id.getStartTS() + j * 90000 * 2);
+			key.reset();
+			id.write(key);
+			add(key);
+		}
+	}
+
+	private static void loadFile(String uri) throws IOException {
+		Configuration config = new Configuration();
+		FileSystem fs = FileSystem.get(URI.create(uri), config);
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, new Path(uri), config);
+		try {
+			DataOutputBuffer key = new DataOutputBuffer();
+			while(reader.nextRawKey(key) != -1)
+			{
+				add(key);
+				key.reset();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static List<int[]> shuffled() {
+		List<int[]> order = new ArrayList<int[]>(offsets);
+		Collections.shuffle(order, new Random(7));
+		return order;
+	}
+
+	private static void sort(List<int[]> order, final WritableComparator comparator) {
+		final byte[] data = keys.getData();
+		Collections.sort(order, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return comparator.compare(data, a[0], a[1], data, b[0], b[1]);
+			}
+		});
+	}
+
+	private static void checkOrder(WritableComparator raw, WritableComparator deserialising) {
+		List<int[]> a = shuffled(), b = shuffled();
+		sort(a, raw);
+		sort(b, deserialising);
+		byte[] data = keys.getData();
+		for(int i = 0; i < a.size(); i++)
+			if(deserialising.compare(data, a.get(i)[0], a.get(i)[1], data, b.get(i)[0], b.get(i)[1]) != 0)
+				throw new RuntimeException("The raw comparator's order differs from compareTo at key " + i + ".");
+	}
+
+	private static void bench(String name, WritableComparator comparator, int rounds) {
+		for(int i = 0; i < WARMUP_ROUNDS; i++)
+			sort(shuffled(), comparator);
+
+		long[] times = new long[rounds];
+		for(int i = 0; i < rounds; i++)
+		{
+			List<int[]> order = shuffled();
+			long start = System.nanoTime();
+			sort(order, comparator);
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		double ms = times[rounds / 2] / 1e6;
+		System.out.println(String.format("%-10s median %8.1fms (%.0f keys/s)", name, ms, offsets.size() / (ms / 1000)));
+	}
+}
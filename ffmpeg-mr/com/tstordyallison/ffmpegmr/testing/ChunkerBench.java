@@ -0,0 +1,251 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.tstordyallison.ffmpegmr.Chunk;
+import com.tstordyallison.ffmpegmr.ChunkData;
+import com.tstordyallison.ffmpegmr.Chunker;
+import com.tstordyallison.ffmpegmr.ChunkerThread;
+import com.tstordyallison.ffmpegmr.DemuxPacket;
+import com.tstordyallison.ffmpegmr.DemuxPacketBatch;
+import com.tstordyallison.ffmpegmr.Demuxer;
+import com.tstordyallison.ffmpegmr.PacketSource;
+import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
+
+/**
+ * Repeatable benchmarks for the demux and chunking hot path. Each one runs a few warm up rounds and then the measured
+ * rounds, and reports packets/s, MB/s and the bytes allocated (on the benchmark thread) per packet.
+ *
+ * The chunking benchmarks run over packet traces (see PacketTrace), so they don't need any media or the native library.
+ *
+ * Usage:
+ * 	ChunkerBench synthetic [seconds] [block size] [rounds]	- chunk a made up trace.
+ * 	ChunkerBench trace <trace file> [block size] [rounds]	- chunk a recorded trace.
+ * 	ChunkerBench record <input file> <trace file>			- record a trace from an input.
+ * 	ChunkerBench demux <input file> [rounds]				- demux an input (readPackets and getNextChunk).
+ */
+public class ChunkerBench {
+
+	public static int WARMUP_ROUNDS = 3;
+
+	/**
+	 * One thing to measure - run() does a single round and returns the number of packets it went through.
+	 */
+	private interface Round {
+		public long run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Thread.setDefaultUncaughtExceptionHandler(new ThreadCatcher());
+
+		if(args.length < 1){
+			usage();
+			return;
+		}
+
+		String mode = args[0];
+		if(mode.equals("synthetic") || mode.equals("trace"))
+		{
+			PacketTrace trace;
+			int arg = 1;
+			if(mode.equals("synthetic"))
+				trace = PacketTrace.synthetic(args.length > arg ? Integer.parseInt(args[arg++]) : 600, 12, 8000000);
+			else if(args.length > arg)
+				trace = PacketTrace.load(new File(args[arg++]));
+			else{
+				usage();
+				return;
+			}
+			long blockSize = args.length > arg ? Long.parseLong(args[arg++]) : 33554432;
+			int rounds = args.length > arg ? Integer.parseInt(args[arg++]) : 10;
+
+			benchChunking(trace, blockSize, rounds);
+			benchChunkData(trace, blockSize, rounds);
+		}
+		else if(mode.equals("record") && args.length > 2)
+		{
+			PacketTrace trace = PacketTrace.record(new Demuxer(args[1]));
+			trace.save(new File(args[2]));
+			System.out.println("Recorded " + trace.getPacketCount() + " packets (" + trace.getTotalSize() + " bytes) to " + args[2] + ".");
+		}
+		else if(mode.equals("demux") && args.length > 1)
+		{
+			benchDemux(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 5);
+		}
+		else
+			usage();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: ChunkerBench synthetic [seconds] [block size] [rounds]");
+		System.err.println("       ChunkerBench trace <trace file> [block size] [rounds]");
+		System.err.println("       ChunkerBench record <input file> <trace file>");
+		System.err.println("       ChunkerBench demux <input file> [rounds]");
+		System.exit(1);
+	}
+
+	/**
+	 * ChunkBuffers.add/drainChunk and the ChunkData builds, through a whole ChunkerThread run.
+	 */
+	private static void benchChunking(final PacketTrace trace, final long blockSize, int rounds) throws Exception
+	{
+		measure("ChunkerThread", trace.getTotalSize(), rounds, new Round() {
+			@Override
+			public long run() throws Exception {
+				final BlockingQueue<Chunk> chunkQ = new LinkedBlockingQueue<Chunk>(Chunker.CHUNK_Q_LIMIT);
+				Thread consumer = new Thread("Chunk Consumer") {
+					@Override
+					public void run() {
+						try {
+							while(chunkQ.take().getChunkID() != null);
+						} catch (InterruptedException e) {
+						}
+					}
+				};
+				consumer.start();
+
+				// Run the chunker on this thread, so its allocations are the ones we count.
+				new ChunkerThread(new Configuration(), chunkQ, trace.newSource(), blockSize, "Chunker").run();
+				consumer.join();
+				return trace.getPacketCount();
+			}
+		});
+	}
+
+	/**
+	 * new ChunkData(header, packets) on its own, over the video packets split into block sized runs.
+	 */
+	private static void benchChunkData(PacketTrace trace, long blockSize, int rounds) throws Exception
+	{
+		PacketSource source = trace.newSource();
+		final byte[] header = source.getStreamData(0);
+		final List<List<DemuxPacket>> chunks = new ArrayList<List<DemuxPacket>>();
+		List<DemuxPacket> current = new LinkedList<DemuxPacket>();
+		long currentSize = 0, totalSize = 0;
+		int packets = 0;
+
+		DemuxPacketBatch batch = new DemuxPacketBatch();
+		while(source.readPackets(batch.capacity(), batch) > 0)
+		{
+			for(int i = 0; i < batch.count; i++)
+			{
+				if(batch.streamID[i] != 0)
+					continue;
+				if(currentSize > blockSize && batch.splitPoint[i]){
+					chunks.add(current);
+					current = new LinkedList<DemuxPacket>();
+					currentSize = 0;
+				}
+				current.add(batch.getPacket(i));
+				currentSize += batch.length[i];
+				totalSize += batch.length[i];
+				packets++;
+			}
+		}
+		chunks.add(current);
+
+		final int packetCount = packets;
+		measure("ChunkData(header, packets)", totalSize, rounds, new Round() {
+			@Override
+			public long run() throws Exception {
+				long check = 0;
+				for(List<DemuxPacket> chunk : chunks)
+					check += new ChunkData(header, chunk).getSize();
+				if(check < 0)
+					System.out.println(check); // Keep the result live.
+				return packetCount;
+			}
+		});
+	}
+
+	private static void benchDemux(final String filename, int rounds) throws Exception
+	{
+		final long length = new File(filename).length();
+
+		measure("Demuxer.readPackets", length, rounds, new Round() {
+			@Override
+			public long run() throws Exception {
+				Demuxer demuxer = new Demuxer(filename);
+				DemuxPacketBatch batch = new DemuxPacketBatch();
+				long packets = 0;
+				while(demuxer.readPackets(batch.capacity(), batch) > 0)
+					packets += batch.count;
+				demuxer.close();
+				return packets;
+			}
+		});
+
+		measure("Demuxer.getNextChunk", length, rounds, new Round() {
+			@Override
+			public long run() throws Exception {
+				Demuxer demuxer = new Demuxer(filename);
+				long packets = 0;
+				while(demuxer.getNextChunk() != null)
+					packets++;
+				demuxer.close();
+				return packets;
+			}
+		});
+	}
+
+	private static void measure(String name, long bytesPerRound, int rounds, Round round) throws Exception
+	{
+		for(int i = 0; i < WARMUP_ROUNDS; i++)
+			round.run();
+
+		double[] packetRates = new double[rounds];
+		double[] byteRates = new double[rounds];
+		double[] allocPerPacket = new double[rounds];
+		for(int i = 0; i < rounds; i++)
+		{
+			System.gc();
+			long allocStart = allocatedBytes();
+			long start = System.nanoTime();
+			long packets = round.run();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			long allocated = allocatedBytes() - allocStart;
+
+			packetRates[i] = packets / seconds;
+			byteRates[i] = bytesPerRound / 1048576.0 / seconds;
+			allocPerPacket[i] = allocStart >= 0 ? (double)allocated / packets : -1;
+		}
+
+		System.out.println(String.format("%-28s %12.0f packets/s %10.1f MB/s %12.1f bytes allocated/packet   (median of %d, best %.0f packets/s)",
+				name, median(packetRates), median(byteRates), median(allocPerPacket), rounds, max(packetRates)));
+	}
+
+	/**
+	 * Bytes allocated so far by this thread, or -1 if the JVM can't tell us.
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	private static double median(double[] values)
+	{
+		double[] sorted = Arrays.copyOf(values, values.length);
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	private static double max(double[] values)
+	{
+		double max = values[0];
+		for(double value : values)
+			max = Math.max(max, value);
+		return max;
+	}
+}
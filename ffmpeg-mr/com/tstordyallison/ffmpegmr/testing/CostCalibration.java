@@ -0,0 +1,77 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.tstordyallison.ffmpegmr.Chunk;
+import com.tstordyallison.ffmpegmr.Chunker;
+import com.tstordyallison.ffmpegmr.ChunkerThread;
+import com.tstordyallison.ffmpegmr.CostModel;
+import com.tstordyallison.ffmpegmr.Demuxer;
+import com.tstordyallison.ffmpegmr.Demuxer.StreamParams;
+import com.tstordyallison.ffmpegmr.Transcoder;
+import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
+
+/**
+ * Calibration run for the CostModel: chunks an input, transcodes the first few chunks (timing each one), and prints
+ * the ffmpeg-mr.costScale that makes the predicted costs match what this machine actually took.
+ *
+ * Usage: CostCalibration <input file> [block size] [chunks]
+ */
+public class CostCalibration {
+
+	public static void main(String[] args) throws Exception {
+		Thread.setDefaultUncaughtExceptionHandler(new ThreadCatcher());
+
+		if(args.length < 1){
+			System.err.println("Usage: CostCalibration <input file> [block size] [chunks]");
+			System.exit(1);
+		}
+
+		File input = new File(args[0]);
+		long blockSize = args.length > 1 ? Long.parseLong(args[1]) : 16777216;
+		int maxChunks = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		Configuration config = new Configuration();
+		Demuxer demuxer = new Demuxer(input);
+		StreamParams[] params = new StreamParams[demuxer.getStreamCount()];
+		for(int i = 0; i < params.length; i++)
+			params[i] = demuxer.getStreamParams(i);
+		CostModel model = new CostModel(config, demuxer, params);
+		demuxer.close();
+
+		BlockingQueue<Chunk> chunkQ = new LinkedBlockingQueue<Chunk>(Chunker.CHUNK_Q_LIMIT);
+		ChunkerThread chunker = new ChunkerThread(config, chunkQ, "file://" + input.getAbsolutePath(), blockSize, "Chunker");
+		chunker.start();
+
+		double totalPredicted = 0, totalTaken = 0;
+		int chunks = 0;
+		Chunk chunk;
+		while((chunk = chunkQ.take()).getChunkID() != null)
+		{
+			if(chunks >= maxChunks)
+				continue; // Let the chunker finish.
+
+			double predicted = model.cost(chunk.getChunkID(), chunk.getChunkData());
+			long start = System.nanoTime();
+			Transcoder trans = new Transcoder(chunk.getChunkID().getTbNum(), chunk.getChunkID().getTbDen(),
+											  chunk.getChunkID().getOutputChunkPoints(), chunk.getChunkData().getData(), chunk.getChunkData().getLength());
+			while(trans.getNextPacket() != null);
+			trans.close();
+			double taken = (System.nanoTime() - start) / 1e9;
+
+			System.out.println(String.format("Stream %d chunk %d: predicted %.2fs, took %.2fs",
+					chunk.getChunkID().getStreamID(), chunk.getChunkID().getChunkNumber(), predicted, taken));
+			totalPredicted += predicted;
+			totalTaken += taken;
+			chunks++;
+		}
+		chunker.join();
+
+		if(totalPredicted > 0)
+			System.out.println(String.format("ffmpeg-mr.costScale=%.3f", config.getFloat("ffmpeg-mr.costScale", 1) * totalTaken / totalPredicted));
+	}
+}
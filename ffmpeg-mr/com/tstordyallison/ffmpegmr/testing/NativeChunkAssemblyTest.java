@@ -0,0 +1,88 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.tstordyallison.ffmpegmr.Chunk;
+import com.tstordyallison.ffmpegmr.ChunkID;
+import com.tstordyallison.ffmpegmr.Chunker;
+import com.tstordyallison.ffmpegmr.ChunkerThread;
+import com.tstordyallison.ffmpegmr.util.Stopwatch;
+import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
+
+/**
+ * Chunks a file from Java DemuxPackets and then with native chunk assembly, and checks that both give exactly
+ * the same chunks (ChunkIDs and data).
+ *
+ * Usage: NativeChunkAssemblyTest <input file> [block size]
+ */
+public class NativeChunkAssemblyTest {
+
+	public static void main(String[] args) throws Exception {
+		Thread.setDefaultUncaughtExceptionHandler(new ThreadCatcher());
+
+		if(args.length < 1){
+			System.err.println("Usage: NativeChunkAssemblyTest <input file> [block size]");
+			System.exit(1);
+		}
+
+		String inputUri = "file://" + new File(args[0]).getAbsolutePath();
+		long blockSize = args.length > 1 ? Long.parseLong(args[1]) : 33554432;
+
+		List<String> java = chunkWithTimer(inputUri, false, blockSize);
+		List<String> assembled = chunkWithTimer(inputUri, true, blockSize);
+
+		boolean passed = java.equals(assembled);
+		if(!passed)
+		{
+			for(int i = 0; i < Math.max(java.size(), assembled.size()); i++)
+			{
+				String a = i < java.size() ? java.get(i) : "<missing>";
+				String b = i < assembled.size() ? assembled.get(i) : "<missing>";
+				if(!a.equals(b)){
+					System.err.println("First difference at chunk " + i + ":\n\tJava:   " + a + "\n\tNative: " + b);
+					break;
+				}
+			}
+		}
+
+		System.out.println((passed ? "PASSED" : "FAILED") + ": " + java.size() + " Java chunks, " + assembled.size() + " native chunks.");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static List<String> chunkWithTimer(String inputUri, boolean nativeAssembly, long blockSize) throws Exception
+	{
+		Configuration config = new Configuration();
+		config.setBoolean("ffmpeg-mr.nativeChunkAssembly", nativeAssembly);
+
+		BlockingQueue<Chunk> chunkQ = new LinkedBlockingQueue<Chunk>(Chunker.CHUNK_Q_LIMIT);
+		Stopwatch stopwatch = new Stopwatch().start();
+		ChunkerThread chunker = new ChunkerThread(config, chunkQ, inputUri, blockSize, "FFmpeg JNI Demuxer");
+		chunker.start();
+
+		// Keep hold of the IDs until the end - the chunker can still add chunk points to them after they are queued.
+		List<ChunkID> ids = new ArrayList<ChunkID>();
+		List<Integer> hashes = new ArrayList<Integer>();
+		Chunk chunk;
+		while((chunk = chunkQ.take()).getChunkID() != null)
+		{
+			ids.add(chunk.getChunkID());
+			hashes.add(Arrays.hashCode(chunk.getChunkData().getData()));
+		}
+		chunker.join();
+		stopwatch.stop();
+
+		List<String> chunks = new ArrayList<String>();
+		for(int i = 0; i < ids.size(); i++)
+			chunks.add(ids.get(i).toString().replace('\n', ' ') + " data=" + hashes.get(i));
+
+		System.out.println((nativeAssembly ? "Native" : "Java") + " assembly: " + chunks.size() + " chunks in " + stopwatch.getElapsedTime() / 1000.0 + "s.");
+		return chunks;
+	}
+}
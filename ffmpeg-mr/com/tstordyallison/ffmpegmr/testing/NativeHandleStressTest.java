@@ -0,0 +1,128 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+
+import com.tstordyallison.ffmpegmr.ChunkData;
+import com.tstordyallison.ffmpegmr.ChunkID;
+import com.tstordyallison.ffmpegmr.DemuxPacket;
+import com.tstordyallison.ffmpegmr.DemuxPacketBatch;
+import com.tstordyallison.ffmpegmr.Demuxer;
+import com.tstordyallison.ffmpegmr.Transcoder;
+import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
+
+/**
+ * Hammers the native handles from several threads at once: every thread opens its own Demuxers (and Transcoders, if
+ * given a demuxed SequenceFile) over the same input, and every run has to give exactly the same packet counts.
+ *
+ * Usage: NativeHandleStressTest <input file> [demuxed seq file] [threads] [iterations]
+ */
+public class NativeHandleStressTest {
+
+	public static void main(String[] args) throws Exception {
+		Thread.setDefaultUncaughtExceptionHandler(new ThreadCatcher());
+
+		if(args.length < 1){
+			System.err.println("Usage: NativeHandleStressTest <input file> [demuxed seq file] [threads] [iterations]");
+			System.exit(1);
+		}
+
+		final String inputFile = args[0];
+		final String seqFile = args.length > 1 ? args[1] : null;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 2;
+		final int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+		final long expectedPackets = demuxPacketCount(inputFile);
+		final long expectedTranscoded = seqFile != null ? transcodePacketCount(seqFile) : 0;
+		System.out.println("Single threaded: " + expectedPackets + " demuxed packets, " + expectedTranscoded + " transcoded packets.");
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for(int t = 0; t < threads; t++)
+		{
+			final int threadID = t;
+			results.add(pool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int failures = 0;
+					for(int i = 0; i < iterations; i++)
+					{
+						// Mix the two object types on alternate threads so the handles interleave.
+						long packets = demuxPacketCount(inputFile);
+						if(packets != expectedPackets){
+							System.err.println("Thread " + threadID + ": demuxed " + packets + " packets, expected " + expectedPackets + ".");
+							failures++;
+						}
+						if(seqFile != null && (threadID + i) % 2 == 0){
+							long transcoded = transcodePacketCount(seqFile);
+							if(transcoded != expectedTranscoded){
+								System.err.println("Thread " + threadID + ": transcoded " + transcoded + " packets, expected " + expectedTranscoded + ".");
+								failures++;
+							}
+						}
+					}
+					return failures;
+				}
+			}));
+		}
+
+		int failures = 0;
+		for(Future<Integer> result : results)
+			failures += result.get();
+		pool.shutdown();
+
+		// A closed object must not find its old state again.
+		Demuxer demuxer = new Demuxer(inputFile);
+		demuxer.close();
+		if(demuxer.close() != -1 || demuxer.getStreamCount() != -1){
+			System.err.println("Closed demuxer still resolved its native state.");
+			failures++;
+		}
+
+		System.out.println((failures == 0 ? "PASSED" : "FAILED (" + failures + " failures)") + ": " + threads + " threads x " + iterations + " iterations.");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static long demuxPacketCount(String inputFile)
+	{
+		Demuxer demuxer = new Demuxer(inputFile);
+		DemuxPacketBatch batch = new DemuxPacketBatch();
+		long count = 0;
+		while(demuxer.readPackets(batch.capacity(), batch) > 0)
+			count += batch.count;
+		demuxer.close();
+		return count;
+	}
+
+	private static long transcodePacketCount(String seqFile) throws IOException
+	{
+		Configuration config = new Configuration();
+		Path path = new Path(seqFile);
+		SequenceFile.Reader reader = new SequenceFile.Reader(FileSystem.get(path.toUri(), config), path, config);
+		ChunkID key = new ChunkID();
+		ChunkData value = new ChunkData();
+		long count = 0;
+
+		while(reader.next(key, value))
+		{
+			Transcoder trans = new Transcoder(key.getTbNum(), key.getTbDen(), key.getOutputChunkPoints(), value.getData(), value.getLength());
+			DemuxPacket pkt;
+			while((pkt = trans.getNextPacket()) != null)
+				if(pkt.data != null)
+					count++;
+			trans.close();
+		}
+		reader.close();
+		return count;
+	}
+}
@@ -0,0 +1,189 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+
+import com.tstordyallison.ffmpegmr.ChunkData;
+import com.tstordyallison.ffmpegmr.ChunkID;
+import com.tstordyallison.ffmpegmr.PacketCursor;
+import com.tstordyallison.ffmpegmr.util.FileUtils;
+
+/**
+ * Walks the packets of demuxed chunks with a PacketCursor, checking each chunk's packet count and stream index
+ * against its key, and prints per stream stats and how fast the walk goes.
+ *
+ * Usage:
+ * 	PacketCursorBench synthetic [chunks] [rounds]		- made up chunks (no native code needed).
+ * 	PacketCursorBench file <sequence file> [rounds]		- the chunks of a demuxed SequenceFile.
+ */
+public class PacketCursorBench {
+
+	public static int WARMUP_ROUNDS = 2;
+
+	private static List<ChunkID> keys = new ArrayList<ChunkID>();
+	private static List<ChunkData> chunks = new ArrayList<ChunkData>();
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1){
+			usage();
+			return;
+		}
+
+		int rounds;
+		if(args[0].equals("synthetic")){
+			int count = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+			rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			loadSynthetic(count);
+		}
+		else if(args[0].equals("file") && args.length > 1){
+			rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			loadFile(args[1]);
+		}
+		else{
+			usage();
+			return;
+		}
+
+		long bytes = 0;
+		for(ChunkData chunk : chunks)
+			bytes += chunk.getLength();
+		System.out.println("Walking " + chunks.size() + " chunks (" + FileUtils.humanReadableByteCount(bytes, false) + ").");
+
+		check();
+		bench(bytes, rounds);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: PacketCursorBench synthetic [chunks] [rounds] | file <sequence file> [rounds]");
+	}
+
+	private static void loadFile(String uri) throws IOException {
+		Configuration config = new Configuration();
+		FileSystem fs = FileSystem.get(URI.create(uri), config);
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, new Path(uri), config);
+		try {
+			while(true)
+			{
+				ChunkID key = new ChunkID();
+				ChunkData value = new ChunkData();
+				if(!reader.next(key, value))
+					break;
+				keys.add(key);
+				chunks.add(value);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Chunks of 25fps video (a key frame every 50) and audio, laid out as the demuxer does: a stand in header TPL then
+	 * the packet TPLs.
+	 */
+	private static void loadSynthetic(int count) {
+		Random random = new Random(42);
+		for(int i = 0; i < count; i++)
+		{
+			int streamID = i % 2;
+			int packets = streamID == 0 ? 250 : 470;
+			ByteBuffer data = ByteBuffer.allocate(packets * (PacketCursor.PAYLOAD_OFFSET + 8192) + 64).order(ByteOrder.LITTLE_ENDIAN);
+
+			// Stream header (its contents don't matter here, only that it is skipped).
+			putHeader(data, "iiiB", 16);
+			data.position(data.position() + 16);
+
+			for(int j = 0; j < packets; j++)
+			{
+				int size = streamID == 0 ? (j % 50 == 0 ? 8192 : 512 + random.nextInt(2048)) : 300 + random.nextInt(100);
+				long ts = (long)i / 2 * packets + j;
+				putHeader(data, "IIiiIiB", 40 + size);
+				data.putLong(ts).putLong(ts);
+				data.putInt(streamID == 1 || j % 50 == 0 ? PacketCursor.FLAG_KEY : 0).putInt(1);
+				data.putLong(0).putInt(streamID).putInt(size);
+				data.position(data.position() + size);
+			}
+			data.flip();
+
+			ChunkID key = new ChunkID();
+			key.setStreamID(streamID);
+			key.setChunkNumber(i / 2);
+			keys.add(key);
+			chunks.add(new ChunkData(data, packets));
+		}
+	}
+
+	private static void putHeader(ByteBuffer data, String format, int bodySize) {
+		data.put((byte)'t').put((byte)'p').put((byte)'l').put((byte)0);
+		data.putInt(8 + format.length() + 1 + bodySize);
+		for(int i = 0; i < format.length(); i++)
+			data.put((byte)format.charAt(i));
+		data.put((byte)0);
+	}
+
+	private static void check() {
+		long[] packets = new long[16], keyFrames = new long[16], payload = new long[16];
+		PacketCursor cursor = new PacketCursor();
+		for(int i = 0; i < chunks.size(); i++)
+		{
+			ChunkID key = keys.get(i);
+			cursor.reset(chunks.get(i));
+			while(cursor.next())
+			{
+				if(cursor.getStreamIndex() != key.getStreamID())
+					throw new RuntimeException("Chunk " + key + " has a packet from stream " + cursor.getStreamIndex() + ": " + cursor);
+				int stream = Math.min(key.getStreamID(), packets.length - 1);
+				packets[stream]++;
+				if(cursor.isKeyFrame())
+					keyFrames[stream]++;
+				payload[stream] += cursor.getPayloadSize();
+			}
+			if(cursor.getIndex() + 1 != chunks.get(i).getPacketCount())
+				throw new RuntimeException("Chunk " + key + " has " + (cursor.getIndex() + 1) + " packets, expected " + chunks.get(i).getPacketCount() + ".");
+		}
+		for(int i = 0; i < packets.length; i++)
+			if(packets[i] > 0)
+				System.out.println("Stream " + i + ": " + packets[i] + " packets, " + keyFrames[i] + " key frames, " +
+								   FileUtils.humanReadableByteCount(payload[i], false) + " of payload.");
+	}
+
+	private static long walk() {
+		long sum = 0;
+		PacketCursor cursor = new PacketCursor();
+		for(ChunkData chunk : chunks)
+		{
+			cursor.reset(chunk);
+			while(cursor.next())
+				sum += cursor.getTs() + cursor.getDuration() + cursor.getPayloadSize() + (cursor.isKeyFrame() ? 1 : 0);
+		}
+		return sum;
+	}
+
+	private static void bench(long bytes, int rounds) {
+		long sum = 0;
+		for(int i = 0; i < WARMUP_ROUNDS; i++)
+			sum += walk();
+
+		long[] times = new long[rounds];
+		for(int i = 0; i < rounds; i++)
+		{
+			long start = System.nanoTime();
+			sum += walk();
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		double ms = times[rounds / 2] / 1e6;
+		System.out.println(String.format("PacketCursor median %.2fms (%s/s) [%d]", ms,
+				FileUtils.humanReadableByteCount((long)(bytes / (ms / 1000)), false), sum % 10));
+	}
+}
@@ -0,0 +1,249 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.tstordyallison.ffmpegmr.DemuxPacket;
+import com.tstordyallison.ffmpegmr.DemuxPacketBatch;
+import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
+import com.tstordyallison.ffmpegmr.PacketSource;
+
+/**
+ * The packets a demuxer gave for an input (stream, ts, duration, keyframe flag and TPL size, in demux order), so the
+ * chunking code can be run over the same packet sequence again without the input or the native library.
+ *
+ * Traces are either recorded from a real demux, or made up (see synthetic()). Replaying one gives packets of the
+ * right size, but the data in them is just zeros.
+ */
+public class PacketTrace {
+
+	private static final int MAGIC = 0x464d5254; // FMRT
+
+	private AVMediaType[] streamTypes;
+	private byte[][] streamHeaders;
+	private long tbDen;
+	private long durationMs;
+
+	private int count = 0;
+	private int[] streamID = new int[4096];
+	private long[] ts = new long[4096];
+	private long[] duration = new long[4096];
+	private boolean[] keyframe = new boolean[4096];
+	private int[] length = new int[4096];
+
+	private PacketTrace(AVMediaType[] streamTypes, byte[][] streamHeaders, long tbDen, long durationMs) {
+		this.streamTypes = streamTypes;
+		this.streamHeaders = streamHeaders;
+		this.tbDen = tbDen;
+		this.durationMs = durationMs;
+	}
+
+	private void add(int streamID, long ts, long duration, boolean keyframe, int length) {
+		if(count == this.streamID.length){
+			int capacity = count * 2;
+			this.streamID = Arrays.copyOf(this.streamID, capacity);
+			this.ts = Arrays.copyOf(this.ts, capacity);
+			this.duration = Arrays.copyOf(this.duration, capacity);
+			this.keyframe = Arrays.copyOf(this.keyframe, capacity);
+			this.length = Arrays.copyOf(this.length, capacity);
+		}
+		this.streamID[count] = streamID;
+		this.ts[count] = ts;
+		this.duration[count] = duration;
+		this.keyframe[count] = keyframe;
+		this.length[count] = length;
+		count++;
+	}
+
+	/**
+	 * Reads every packet from the source (and closes it).
+	 */
+	public static PacketTrace record(PacketSource source) {
+		AVMediaType[] types = new AVMediaType[source.getStreamCount()];
+		byte[][] headers = new byte[source.getStreamCount()][];
+		for(int i = 0; i < types.length; i++)
+		{
+			types[i] = source.getStreamMediaType(i);
+			headers[i] = source.getStreamData(i);
+		}
+
+		PacketTrace trace = null;
+		DemuxPacketBatch batch = new DemuxPacketBatch();
+		while(source.readPackets(batch.capacity(), batch) > 0)
+		{
+			if(trace == null)
+				trace = new PacketTrace(types, headers, batch.tb_den, source.getDurationMs());
+			for(int i = 0; i < batch.count; i++)
+				trace.add(batch.streamID[i], batch.ts[i], batch.duration[i], batch.splitPoint[i], batch.length[i]);
+		}
+		source.close();
+
+		return trace != null ? trace : new PacketTrace(types, headers, 1, source.getDurationMs());
+	}
+
+	/**
+	 * Makes up a trace for a plain video + audio input: 25fps video with a keyframe every gopSize frames (keyframes
+	 * about five times the size of the rest) at videoBitRate, and 48kHz AAC-like audio (1024 samples a packet) at 128kbps.
+	 */
+	public static PacketTrace synthetic(int seconds, int gopSize, long videoBitRate) {
+		long tbDen = 48000;
+		PacketTrace trace = new PacketTrace(new AVMediaType[]{AVMediaType.VIDEO, AVMediaType.AUDIO},
+											new byte[][]{new byte[200], new byte[120]}, tbDen, seconds * 1000L);
+
+		long frameDuration = tbDen / 25;
+		long audioDuration = 1024;
+		int frameSize = (int)(videoBitRate / 8 / 25);
+		int deltaSize = frameSize * gopSize / (gopSize + 4);
+		int keySize = deltaSize * 5;
+		int audioSize = (int)(128000 / 8 * audioDuration / tbDen);
+
+		long videoTs = 0, audioTs = 0, frame = 0;
+		long endTs = seconds * tbDen;
+		while(videoTs < endTs || audioTs < endTs)
+		{
+			if(videoTs <= audioTs){
+				boolean key = frame % gopSize == 0;
+				// Vary the sizes a bit, the same way every time.
+				int size = (key ? keySize : deltaSize) + (int)((frame * 7919) % 1024) - 512;
+				trace.add(0, videoTs, frameDuration, key, Math.max(size, 16) + DemuxPacket.TPL_OVERHEAD);
+				videoTs += frameDuration;
+				frame++;
+			}
+			else{
+				trace.add(1, audioTs, audioDuration, true, audioSize + DemuxPacket.TPL_OVERHEAD);
+				audioTs += audioDuration;
+			}
+		}
+		return trace;
+	}
+
+	public int getPacketCount() {
+		return count;
+	}
+
+	public long getTotalSize() {
+		long total = 0;
+		for(int i = 0; i < count; i++)
+			total += length[i];
+		return total;
+	}
+
+	public int getLength(int i) {
+		return length[i];
+	}
+
+	/**
+	 * A PacketSource that plays the trace back.
+	 */
+	public PacketSource newSource() {
+		return new PacketSource() {
+			private int next = 0;
+
+			@Override
+			public int getStreamCount() {
+				return streamTypes.length;
+			}
+			@Override
+			public byte[] getStreamData(int streamID) {
+				return streamHeaders[streamID].clone();
+			}
+			@Override
+			public AVMediaType getStreamMediaType(int streamID) {
+				return streamTypes[streamID];
+			}
+			@Override
+			public long getDurationMs() {
+				return durationMs;
+			}
+			@Override
+			public int readPackets(int max, DemuxPacketBatch batch) {
+				max = Math.min(max, batch.capacity());
+				if(next < count && length[next] > batch.arena.capacity())
+					batch.growArena(length[next]);
+
+				int n = 0, offset = 0;
+				while(n < max && next < count && offset + length[next] <= batch.arena.capacity())
+				{
+					batch.streamID[n] = streamID[next];
+					batch.ts[n] = ts[next];
+					batch.duration[n] = duration[next];
+					batch.splitPoint[n] = keyframe[next];
+					batch.offset[n] = offset;
+					batch.length[n] = length[next];
+					batch.pos[n] = -1;
+					offset += length[next];
+					n++;
+					next++;
+				}
+				batch.count = n;
+				batch.tb_num = 1;
+				batch.tb_den = tbDen;
+				return n;
+			}
+			@Override
+			public int close() {
+				return 0;
+			}
+		};
+	}
+
+	public void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(tbDen);
+			out.writeLong(durationMs);
+			out.writeInt(streamTypes.length);
+			for(int i = 0; i < streamTypes.length; i++)
+			{
+				out.writeInt(streamTypes[i].ordinal());
+				out.writeInt(streamHeaders[i].length);
+				out.write(streamHeaders[i]);
+			}
+			out.writeInt(count);
+			for(int i = 0; i < count; i++)
+			{
+				out.writeInt(streamID[i]);
+				out.writeLong(ts[i]);
+				out.writeLong(duration[i]);
+				out.writeBoolean(keyframe[i]);
+				out.writeInt(length[i]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static PacketTrace load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC)
+				throw new IOException(file + " is not a packet trace.");
+			long tbDen = in.readLong();
+			long durationMs = in.readLong();
+			AVMediaType[] types = new AVMediaType[in.readInt()];
+			byte[][] headers = new byte[types.length][];
+			for(int i = 0; i < types.length; i++)
+			{
+				types[i] = AVMediaType.values()[in.readInt()];
+				headers[i] = new byte[in.readInt()];
+				in.readFully(headers[i]);
+			}
+
+			PacketTrace trace = new PacketTrace(types, headers, tbDen, durationMs);
+			int count = in.readInt();
+			for(int i = 0; i < count; i++)
+				trace.add(in.readInt(), in.readLong(), in.readLong(), in.readBoolean(), in.readInt());
+			return trace;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.tstordyallison.ffmpegmr.Chunk;
+import com.tstordyallison.ffmpegmr.ChunkID;
+import com.tstordyallison.ffmpegmr.Chunker;
+import com.tstordyallison.ffmpegmr.ChunkerThread;
+import com.tstordyallison.ffmpegmr.util.Stopwatch;
+import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
+
+/**
+ * Chunks a file with the single demuxer and then with the parallel range demuxer, and checks that both give exactly
+ * the same chunks (ChunkIDs and data).
+ *
+ * Usage: ParallelDemuxTest <input file> [threads] [range size] [block size]
+ */
+public class ParallelDemuxTest {
+
+	public static void main(String[] args) throws Exception {
+		Thread.setDefaultUncaughtExceptionHandler(new ThreadCatcher());
+
+		if(args.length < 1){
+			System.err.println("Usage: ParallelDemuxTest <input file> [threads] [range size] [block size]");
+			System.exit(1);
+		}
+
+		String inputUri = "file://" + new File(args[0]).getAbsolutePath();
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		long rangeSize = args.length > 2 ? Long.parseLong(args[2]) : 16777216;
+		long blockSize = args.length > 3 ? Long.parseLong(args[3]) : 33554432;
+
+		List<String> serial = chunkWithTimer(inputUri, 1, rangeSize, blockSize);
+		List<String> parallel = chunkWithTimer(inputUri, threads, rangeSize, blockSize);
+
+		boolean passed = serial.equals(parallel);
+		if(!passed)
+		{
+			for(int i = 0; i < Math.max(serial.size(), parallel.size()); i++)
+			{
+				String a = i < serial.size() ? serial.get(i) : "<missing>";
+				String b = i < parallel.size() ? parallel.get(i) : "<missing>";
+				if(!a.equals(b)){
+					System.err.println("First difference at chunk " + i + ":\n\tSerial:   " + a + "\n\tParallel: " + b);
+					break;
+				}
+			}
+		}
+
+		System.out.println((passed ? "PASSED" : "FAILED") + ": " + serial.size() + " serial chunks, " + parallel.size() + " parallel chunks.");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static List<String> chunkWithTimer(String inputUri, int threads, long rangeSize, long blockSize) throws Exception
+	{
+		Configuration config = new Configuration();
+		config.setInt("ffmpeg-mr.parallelDemuxThreads", threads);
+		config.setLong("ffmpeg-mr.parallelDemuxRangeSize", rangeSize);
+
+		BlockingQueue<Chunk> chunkQ = new LinkedBlockingQueue<Chunk>(Chunker.CHUNK_Q_LIMIT);
+		Stopwatch stopwatch = new Stopwatch().start();
+		ChunkerThread chunker = new ChunkerThread(config, chunkQ, inputUri, blockSize, "FFmpeg JNI Demuxer");
+		chunker.start();
+
+		// Keep hold of the IDs until the end - the chunker can still add chunk points to them after they are queued.
+		List<ChunkID> ids = new ArrayList<ChunkID>();
+		List<Integer> hashes = new ArrayList<Integer>();
+		Chunk chunk;
+		while((chunk = chunkQ.take()).getChunkID() != null)
+		{
+			ids.add(chunk.getChunkID());
+			hashes.add(Arrays.hashCode(chunk.getChunkData().getData()));
+		}
+		chunker.join();
+		stopwatch.stop();
+
+		List<String> chunks = new ArrayList<String>();
+		for(int i = 0; i < ids.size(); i++)
+			chunks.add(ids.get(i).toString().replace('\n', ' ') + " data=" + hashes.get(i));
+
+		System.out.println(threads + " demux threads: " + chunks.size() + " chunks in " + stopwatch.getElapsedTime() / 1000.0 + "s.");
+		return chunks;
+	}
+}
@@ -0,0 +1,181 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+
+import com.tstordyallison.ffmpegmr.DemuxPacketBatch;
+import com.tstordyallison.ffmpegmr.Demuxer;
+import com.tstordyallison.ffmpegmr.util.PrefetchInputStream;
+import com.tstordyallison.ffmpegmr.util.Stopwatch;
+import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
+
+/**
+ * Checks the prefetcher against a local file made to behave like a remote stream (a fixed delay on every read and seek).
+ *
+ * First it reads the file with a mix of sequential reads and random seeks and compares every byte with the file, then
+ * it demuxes the file with and without prefetching and compares the packet counts and times.
+ *
+ * Usage: PrefetchTest <input file> [latency ms] [seek iterations]
+ */
+public class PrefetchTest {
+
+	/**
+	 * Local file stand-in for an S3/HDFS stream.
+	 */
+	public static class SlowInputStream extends FSInputStream {
+
+		private final RandomAccessFile file;
+		private final long latencyMs;
+		private final int maxReadSize;
+
+		public SlowInputStream(File file, long latencyMs, int maxReadSize) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+			this.latencyMs = latencyMs;
+			this.maxReadSize = maxReadSize;
+		}
+
+		private void delay() throws IOException {
+			try {
+				Thread.sleep(latencyMs);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted.");
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			delay();
+			return file.read(b, off, Math.min(len, maxReadSize));
+		}
+
+		@Override
+		public int read() throws IOException {
+			delay();
+			return file.read();
+		}
+
+		@Override
+		public void seek(long pos) throws IOException {
+			delay();
+			file.seek(pos);
+		}
+
+		@Override
+		public long getPos() throws IOException {
+			return file.getFilePointer();
+		}
+
+		@Override
+		public boolean seekToNewSource(long targetPos) throws IOException {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Thread.setDefaultUncaughtExceptionHandler(new ThreadCatcher());
+
+		if(args.length < 1){
+			System.err.println("Usage: PrefetchTest <input file> [latency ms] [seek iterations]");
+			System.exit(1);
+		}
+
+		File input = new File(args[0]);
+		long latencyMs = args.length > 1 ? Long.parseLong(args[1]) : 20;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		boolean passed = checkRandomReads(input, latencyMs, iterations);
+
+		long plainPackets = demuxWithTimer(input, latencyMs, 0);
+		long prefetchPackets = demuxWithTimer(input, latencyMs, Demuxer.STREAM_PREFETCH_BLOCKS);
+		if(plainPackets != prefetchPackets){
+			System.err.println("Packet counts differ: " + plainPackets + " without prefetch, " + prefetchPackets + " with.");
+			passed = false;
+		}
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static boolean checkRandomReads(File input, long latencyMs, int iterations) throws IOException
+	{
+		Random random = new Random(42);
+		long length = input.length();
+		RandomAccessFile reference = new RandomAccessFile(input, "r");
+		PrefetchInputStream prefetch = new PrefetchInputStream(new FSDataInputStream(new SlowInputStream(input, latencyMs / 10, 65536)), length, 262144, 4);
+		FSDataInputStream in = new FSDataInputStream(prefetch);
+
+		byte[] expected = new byte[131072];
+		byte[] actual = new byte[131072];
+		boolean passed = true;
+
+		for(int i = 0; i < iterations && passed; i++)
+		{
+			// Mostly small hops forward (like libavformat skipping atoms), some long jumps either way.
+			long pos = in.getPos();
+			int choice = random.nextInt(10);
+			if(choice < 6)
+				pos += random.nextInt(4096);
+			else if(choice < 8)
+				pos += random.nextInt(1048576);
+			else
+				pos = (long)(random.nextDouble() * length);
+			pos = Math.min(pos, length);
+			in.seek(pos);
+			reference.seek(pos);
+
+			int len = 1 + random.nextInt(expected.length);
+			int expectedRead = reference.read(expected, 0, len);
+			int actualRead = 0;
+			while(actualRead < Math.max(expectedRead, 0)){
+				int n = in.read(actual, actualRead, expectedRead - actualRead);
+				if(n < 0)
+					break;
+				actualRead += n;
+			}
+
+			if(expectedRead > 0 && (actualRead != expectedRead || !Arrays.equals(Arrays.copyOf(expected, expectedRead), Arrays.copyOf(actual, actualRead)))){
+				System.err.println("Mismatch reading " + len + " bytes at " + pos + " (read " + actualRead + ", expected " + expectedRead + ").");
+				passed = false;
+			}
+			if(in.getPos() != reference.getFilePointer()){
+				System.err.println("Position mismatch after reading at " + pos + ": " + in.getPos() + ", expected " + reference.getFilePointer() + ".");
+				passed = false;
+			}
+		}
+
+		System.out.println("Random reads: " + prefetch.toString());
+		in.close();
+		reference.close();
+		return passed;
+	}
+
+	private static long demuxWithTimer(File input, long latencyMs, int prefetchBlocks) throws IOException
+	{
+		FSDataInputStream in = new FSDataInputStream(new SlowInputStream(input, latencyMs, 1048576));
+
+		Stopwatch stopwatch = new Stopwatch().start();
+		Demuxer demuxer = new Demuxer(in, input.length(), 1048576, prefetchBlocks);
+		DemuxPacketBatch batch = new DemuxPacketBatch();
+		long packets = 0;
+		while(demuxer.readPackets(batch.capacity(), batch) > 0)
+			packets += batch.count;
+		String stats = demuxer.getPrefetchStream() != null ? demuxer.getPrefetchStream().toString() : "No prefetch.";
+		demuxer.close();
+		stopwatch.stop();
+		in.close();
+
+		System.out.println(String.format("%d prefetch blocks: %d packets in %.2fs. %s", prefetchBlocks, packets, stopwatch.getElapsedTime() / 1000.0, stats));
+		return packets;
+	}
+}
@@ -0,0 +1,74 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.tstordyallison.ffmpegmr.DemuxPacketBatch;
+import com.tstordyallison.ffmpegmr.Demuxer;
+import com.tstordyallison.ffmpegmr.util.FileUtils;
+import com.tstordyallison.ffmpegmr.util.Stopwatch;
+import com.tstordyallison.ffmpegmr.util.ThreadCatcher;
+
+/**
+ * Compares stream demux throughput with the old IO settings (4k byte[] reads, no prefetch) against the current ones.
+ *
+ * Usage: StreamDemuxBench <input uri> [runs]
+ */
+public class StreamDemuxBench {
+
+	public static void main(String[] args) throws Exception {
+		Thread.setDefaultUncaughtExceptionHandler(new ThreadCatcher());
+
+		if(args.length < 1){
+			System.err.println("Usage: StreamDemuxBench <input uri> [runs]");
+			System.exit(1);
+		}
+
+		String inputUri = args[0];
+		if(!inputUri.contains("://"))
+			inputUri = "file://" + new File(inputUri).getAbsolutePath();
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		int bufferSize = Demuxer.STREAM_BUFFER_SIZE;
+		boolean directRead = Demuxer.STREAM_DIRECT_READ;
+		int prefetchBlocks = Demuxer.STREAM_PREFETCH_BLOCKS;
+
+		for(int i = 0; i < runs; i++)
+		{
+			Demuxer.STREAM_DIRECT_READ = false;
+			demuxWithTimer(inputUri, 4096, 0, "Legacy (4k, byte[])");
+			Demuxer.STREAM_DIRECT_READ = directRead;
+			demuxWithTimer(inputUri, bufferSize, prefetchBlocks, "Current (" + FileUtils.humanReadableByteCount(bufferSize, false) + ", " + 
+					(directRead ? "direct" : "byte[]") + ", " + prefetchBlocks + " prefetch)");
+		}
+	}
+
+	private static void demuxWithTimer(String inputUri, int bufferSize, int prefetchBlocks, String label) throws IOException
+	{
+		Configuration config = new Configuration();
+		Path file = new Path(URI.create(inputUri));
+		FileSystem fs = FileSystem.get(file.toUri(), config);
+		long length = fs.getFileStatus(file).getLen();
+		FSDataInputStream in = fs.open(file);
+
+		Stopwatch stopwatch = new Stopwatch().start();
+		Demuxer demuxer = new Demuxer(in, length, bufferSize, prefetchBlocks);
+		DemuxPacketBatch batch = new DemuxPacketBatch();
+		long packets = 0;
+		while(demuxer.readPackets(batch.capacity(), batch) > 0)
+			packets += batch.count;
+		demuxer.close();
+		stopwatch.stop();
+		in.close();
+
+		double seconds = Math.max(stopwatch.getElapsedTime(), 1) / 1000.0;
+		System.out.println(String.format("%-30s %d packets from %s in %.2fs (%.1f MB/s).", label, packets,
+				FileUtils.humanReadableByteCount(length, false), seconds, (length / 1048576.0) / seconds));
+	}
+}
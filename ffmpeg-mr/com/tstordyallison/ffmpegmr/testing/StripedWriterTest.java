@@ -0,0 +1,166 @@
+package com.tstordyallison.ffmpegmr.testing;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+
+import com.tstordyallison.ffmpegmr.ByteBoundedChunkQueue;
+import com.tstordyallison.ffmpegmr.Chunk;
+import com.tstordyallison.ffmpegmr.ChunkData;
+import com.tstordyallison.ffmpegmr.ChunkID;
+import com.tstordyallison.ffmpegmr.Demuxer.AVMediaType;
+import com.tstordyallison.ffmpegmr.WriterThread;
+
+/**
+ * Writes made up chunks through a WriterThread with several stripes to a local directory, and reads every part file
+ * back to check each chunk was written once with the right data. Then has a stripe fail part way through, and checks
+ * the WriterThread finishes and reports the error rather than hanging.
+ *
+ * Usage: StripedWriterTest [stripes] [chunks]
+ */
+public class StripedWriterTest {
+
+	public static void main(String[] args) throws Exception {
+		int stripes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		File dir = File.createTempFile("striped-writer-test", "");
+		dir.delete();
+		dir.mkdirs();
+		try {
+			boolean passed = writeAndReadBack(new File(dir, "ok"), stripes, count) && failingStripe(new File(dir, "fail"), stripes, count);
+			System.out.println(passed ? "PASSED" : "FAILED");
+			System.exit(passed ? 0 : 1);
+		} finally {
+			FileUtil.fullyDelete(dir);
+		}
+	}
+
+	private static Chunk makeChunk(int i, Random random) {
+		ChunkID id = new ChunkID();
+		id.setStreamID(i % 2);
+		id.setChunkNumber(i);
+		id.setStartTS(i * 1000L);
+		id.setEndTS((i + 1) * 1000L);
+		id.setTbNum(1);
+		id.setTbDen(1000);
+		id.setStreamType(i % 2 == 0 ? AVMediaType.VIDEO : AVMediaType.AUDIO);
+		byte[] data = new byte[1024 + random.nextInt(65536)];
+		random.nextBytes(data);
+		data[0] = (byte)i;
+		return new Chunk(id, new ChunkData(null, data, 0, data.length, 1));
+	}
+
+	private static boolean writeAndReadBack(File output, int stripes, int count) throws Exception {
+		Configuration config = new Configuration();
+		ByteBoundedChunkQueue chunkQ = new ByteBoundedChunkQueue(16777216);
+		WriterThread writer = new WriterThread(config, chunkQ, "file://" + output.getAbsolutePath(), "Writer", 0, stripes, false);
+		writer.start();
+
+		Random random = new Random(42);
+		long[] sums = new long[count];
+		for(int i = 0; i < count; i++)
+		{
+			Chunk chunk = makeChunk(i, random);
+			sums[i] = checksum(chunk.getChunkData());
+			chunkQ.put(chunk);
+		}
+		chunkQ.put(new Chunk(null, null));
+		writer.join();
+
+		if(writer.getFailure() != null){
+			System.err.println("Writer failed: " + writer.getFailure());
+			return false;
+		}
+
+		// Read back every part file.
+		FileSystem fs = FileSystem.getLocal(config);
+		Set<Long> seen = new HashSet<Long>();
+		for(int part = 0; part < stripes; part++)
+		{
+			Path path = new Path(WriterThread.getPartUri("file://" + output.getAbsolutePath(), part));
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, config);
+			int inPart = 0;
+			try {
+				ChunkID key = new ChunkID();
+				ChunkData value = new ChunkData();
+				while(reader.next(key, value))
+				{
+					int i = (int)key.getChunkNumber();
+					if(i < 0 || i >= count || !seen.add(key.getChunkNumber())){
+						System.err.println("Unexpected or repeated chunk in part " + part + ": " + key);
+						return false;
+					}
+					if(checksum(value) != sums[i]){
+						System.err.println("Chunk " + i + " in part " + part + " has the wrong data.");
+						return false;
+					}
+					inPart++;
+				}
+			} finally {
+				reader.close();
+			}
+			System.out.println("Part " + part + ": " + inPart + " chunks.");
+		}
+		if(seen.size() != count){
+			System.err.println("Read back " + seen.size() + " of " + count + " chunks.");
+			return false;
+		}
+		System.out.println("Wrote and read back " + count + " chunks over " + stripes + " stripes.");
+		return true;
+	}
+
+	private static boolean failingStripe(File output, int stripes, final int count) throws Exception {
+		Configuration config = new Configuration();
+		final ByteBoundedChunkQueue chunkQ = new ByteBoundedChunkQueue(1048576);
+		WriterThread writer = new WriterThread(config, chunkQ, "file://" + output.getAbsolutePath(), "Failing Writer", 0, stripes, false);
+		writer.setWriteBufferSize(0);
+		writer.start();
+
+		// A chunk the stripe can't write (no stream type), then more than the queues and budget can hold.
+		final Random random = new Random(7);
+		Thread producer = new Thread("Producer") {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < count; i++)
+					{
+						Chunk chunk = makeChunk(i, random);
+						if(i == count / 4)
+							chunk.getChunkID().setStreamType(null);
+						chunkQ.put(chunk);
+					}
+					chunkQ.put(new Chunk(null, null));
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		producer.start();
+
+		writer.join(60000);
+		if(writer.isAlive()){
+			System.err.println("The writer hung after a stripe failed.");
+			return false;
+		}
+		producer.interrupt();
+		producer.join();
+		if(writer.getFailure() == null){
+			System.err.println("The stripe failure was not reported.");
+			return false;
+		}
+		System.out.println("Stripe failure reported: " + writer.getFailure());
+		return true;
+	}
+
+	private static long checksum(ChunkData data) {
+		return Arrays.hashCode(Arrays.copyOf(data.getData(), data.getLength()));
+	}
+}
@@ -0,0 +1,198 @@
+package com.tstordyallison.ffmpegmr.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads a file that is still being written (e.g. a live recording), like tail -f. At the end of the data written so
+ * far, reads wait for the file to grow rather than returning EOF. The stream only ends once the end marker file
+ * exists (and everything before it has been read), or the file hasn't grown for the idle timeout.
+ *
+ * The file is reopened when it grows, as HDFS streams don't see data appended after they were opened. If the reopened
+ * stream still can't see all of the new data (its length can show up before the data does), reads wait and reopen
+ * again rather than taking that as the end.
+ */
+public class FollowInputStream extends FSInputStream {
+
+	public static long DEFAULT_POLL_MS = 1000;
+	public static long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+
+	private final FileSystem fs;
+	private final Path path;
+	private final Path endMarker;
+	private final long pollMs;
+	private final long idleTimeoutMs;
+
+	private FSDataInputStream in;
+	private long pos = 0;
+	private long length;		// Length when we last looked.
+	private long lastGrowth;	// When it last grew.
+	private boolean ended = false;
+
+	// Stats
+	private long waits = 0;
+	private long waitNanos = 0;
+	private long reopens = 0;
+
+	/**
+	 * @param endMarker File whose existence means the input is complete (or null to rely on the idle timeout).
+	 */
+	public FollowInputStream(FileSystem fs, Path path, Path endMarker, long pollMs, long idleTimeoutMs) throws IOException {
+		this.fs = fs;
+		this.path = path;
+		this.endMarker = endMarker;
+		this.pollMs = pollMs;
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.in = fs.open(path);
+		this.length = fs.getFileStatus(path).getLen();
+		this.lastGrowth = System.currentTimeMillis();
+	}
+
+	/**
+	 * Waits until there is data past target, or the input has ended. Returns false if it has ended first.
+	 */
+	private boolean waitFor(long target) throws IOException {
+		long start = System.nanoTime();
+		boolean waited = false;
+		try {
+			while(true)
+			{
+				if(target < length)
+					return true;
+				if(ended)
+					return false;
+
+				// Check for the end marker before the length, so we can't miss data written just before it.
+				boolean complete = endMarker != null && fs.exists(endMarker);
+				long newLength = fs.getFileStatus(path).getLen();
+				if(newLength > length){
+					length = newLength;
+					lastGrowth = System.currentTimeMillis();
+					reopen();
+					continue;
+				}
+				if(complete || System.currentTimeMillis() - lastGrowth > idleTimeoutMs){
+					ended = true;
+					continue;
+				}
+
+				waited = true;
+				try {
+					Thread.sleep(pollMs);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for " + path + " to grow.");
+				}
+			}
+		} finally {
+			if(waited){
+				waits++;
+				waitNanos += System.nanoTime() - start;
+			}
+		}
+	}
+
+	private void reopen() throws IOException {
+		in.close();
+		in = fs.open(path);
+		in.seek(pos);
+		reopens++;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		if(!waitFor(pos))
+			return -1;
+
+		int wanted = (int)Math.min(len, length - pos);
+		int total = 0;
+		long stalledSince = -1;
+		while(total < wanted)
+		{
+			int n = in.read(b, off + total, wanted - total);
+			if(n > 0){
+				pos += n;
+				total += n;
+				continue;
+			}
+			if(total > 0)
+				break; // Hand over what we have, the next read waits for the rest.
+			
+			// We know there is more, the stream just can't see it yet.
+			long now = System.currentTimeMillis();
+			if(stalledSince < 0)
+				stalledSince = now;
+			else if(now - stalledSince > idleTimeoutMs)
+				throw new IOException(path + " is " + length + " bytes long, but only " + pos + " of them could be read.");
+			long start = System.nanoTime();
+			try {
+				Thread.sleep(pollMs);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting to read " + path + ".");
+			}
+			waits++;
+			waitNanos += System.nanoTime() - start;
+			reopen();
+		}
+		return total;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == 1 ? (b[0] & 0xff) : -1;
+	}
+
+	@Override
+	public void seek(long target) throws IOException {
+		if(target < 0)
+			throw new EOFException("Cannot seek to a negative offset.");
+		if(target > length && !waitFor(target - 1))
+			throw new EOFException("Cannot seek past the end of " + path + ".");
+		in.seek(target);
+		pos = target;
+	}
+
+	@Override
+	public long getPos() throws IOException {
+		return pos;
+	}
+
+	@Override
+	public boolean seekToNewSource(long targetPos) throws IOException {
+		return false;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int)Math.min(length - pos, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * The length of the input so far (its final length once it has ended).
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public boolean isEnded() {
+		return ended;
+	}
+
+	@Override
+	public String toString() {
+		return "Follow: " + FileUtils.humanReadableByteCount(length, false) + " read" + (ended ? " (ended)" : "") + ", waited " +
+				waits + " times (" + (waitNanos / 1000000) + "ms), reopened " + reopens + " times.";
+	}
+}
@@ -0,0 +1,363 @@
+package com.tstordyallison.ffmpegmr.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+
+/**
+ * Reads a remote stream ahead of the demuxer on a background thread.
+ *
+ * The fetcher reads sequential blocks into a bounded ring of buffers, so libavformat is only held up by the network
+ * when it gets ahead of the fetcher. Seeks that land in (or just ahead of) the buffered data are served from it,
+ * anything else throws away the buffered blocks and restarts the fetcher at the new position.
+ *
+ * Only one thread should read from this stream at a time.
+ */
+public class PrefetchInputStream extends FSInputStream {
+
+	public static int DEFAULT_BLOCK_SIZE = 4194304; // 4MB
+	public static int DEFAULT_BLOCK_COUNT = 4;
+
+	private static class Block {
+		long pos;
+		byte[] data;
+		int length;
+
+		Block(int size){
+			data = new byte[size];
+		}
+	}
+
+	private final FSDataInputStream in;
+	private final long length;
+	private final int blockSize;
+
+	private final Object lock = new Object();
+	private final ArrayDeque<Block> filled = new ArrayDeque<Block>();
+	private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+	private Block current = null;
+	private int currentOffset = 0;
+	private long pos = 0;			// Reader position.
+	private long fetchPos = 0;		// Where the next block will be fetched from.
+	private int generation = 0;		// Bumped on every seek that invalidates the buffer.
+	private boolean closed = false;
+	private IOException error = null;
+	private final Thread fetcher;
+
+	// Stats
+	private long bytesServed = 0;
+	private long bytesFetched = 0;
+	private long stallCount = 0;
+	private long stallNanos = 0;
+	private long seekCount = 0;
+	private long invalidationCount = 0;
+
+	public PrefetchInputStream(FSDataInputStream in, long length){
+		this(in, length, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT);
+	}
+
+	public PrefetchInputStream(FSDataInputStream in, long length, int blockSize, int blockCount) {
+		if(blockSize <= 0 || blockCount <= 0)
+			throw new IllegalArgumentException("Block size and count must be positive.");
+
+		this.in = in;
+		this.length = length;
+		this.blockSize = blockSize;
+		for(int i = 0; i < blockCount; i++)
+			free.add(new Block(blockSize));
+
+		try {
+			this.pos = this.fetchPos = in.getPos();
+		} catch (IOException e) {
+			this.pos = this.fetchPos = 0;
+		}
+
+		fetcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fetch();
+			}
+		}, "PrefetchInputStream");
+		fetcher.setDaemon(true);
+		fetcher.start();
+	}
+
+	private void fetch()
+	{
+		long streamPos = fetchPos;
+		while(true)
+		{
+			Block block;
+			long readPos;
+			int readGeneration;
+
+			synchronized (lock) {
+				while(!closed && error == null && (free.isEmpty() || fetchPos >= length)){
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if(closed || error != null)
+					return;
+
+				block = free.poll();
+				readPos = fetchPos;
+				readGeneration = generation;
+			}
+
+			// Read a whole block (or up to EOF) outside the lock.
+			int read = 0;
+			try {
+				if(streamPos != readPos)
+					in.seek(readPos);
+				streamPos = readPos;
+
+				int toRead = (int)Math.min(blockSize, length - readPos);
+				while(read < toRead){
+					int n = in.read(block.data, read, toRead - read);
+					if(n < 0)
+						break;
+					read += n;
+				}
+				streamPos += read;
+			} catch (IOException e) {
+				synchronized (lock) {
+					if(readGeneration == generation)
+						error = e;
+					free.add(block);
+					lock.notifyAll();
+				}
+				if(readGeneration == generation)
+					return;
+				streamPos = -1; // Don't know where the stream is now.
+				continue;
+			}
+
+			synchronized (lock) {
+				if(readGeneration != generation || read == 0)
+				{
+					// Stale (we seeked while reading) or the stream was shorter than it claimed.
+					free.add(block);
+					if(readGeneration == generation)
+						fetchPos = length;
+				}
+				else
+				{
+					block.pos = readPos;
+					block.length = read;
+					filled.add(block);
+					fetchPos = readPos + read;
+					bytesFetched += read;
+				}
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Moves to the next buffered block, waiting on the fetcher if it hasn't got there yet. Returns false at EOF.
+	 */
+	private boolean nextBlock() throws IOException
+	{
+		synchronized (lock) {
+			if(current != null){
+				free.add(current);
+				current = null;
+				lock.notifyAll();
+			}
+
+			long start = System.nanoTime();
+			boolean stalled = false;
+			while(filled.isEmpty())
+			{
+				if(closed)
+					throw new IOException("Stream closed.");
+				if(error != null)
+					throw error;
+				if(fetchPos >= length)
+					return false;
+
+				stalled = true;
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while waiting for the prefetcher.");
+				}
+			}
+			if(stalled){
+				stallCount++;
+				stallNanos += System.nanoTime() - start;
+			}
+
+			current = filled.poll();
+			currentOffset = (int)(pos - current.pos);
+			return true;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		if(pos >= length)
+			return -1;
+
+		while(current == null || currentOffset >= current.length)
+			if(!nextBlock())
+				return -1;
+
+		int n = Math.min(len, current.length - currentOffset);
+		System.arraycopy(current.data, currentOffset, b, off, n);
+		currentOffset += n;
+		pos += n;
+		bytesServed += n;
+		return n;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == 1 ? (b[0] & 0xff) : -1;
+	}
+
+	@Override
+	public void seek(long target) throws IOException {
+		if(target < 0)
+			throw new EOFException("Cannot seek to a negative offset.");
+
+		synchronized (lock) {
+			if(target == pos)
+				return;
+			seekCount++;
+
+			// Still inside the current block?
+			if(current != null && target >= current.pos && target < current.pos + current.length){
+				currentOffset = (int)(target - current.pos);
+				pos = target;
+				return;
+			}
+
+			// A short way ahead - skip over buffered blocks (or into the block being fetched).
+			if(target > pos)
+			{
+				while(!filled.isEmpty() && filled.peek().pos + filled.peek().length <= target)
+					free.add(filled.poll());
+
+				if((!filled.isEmpty() && filled.peek().pos <= target) ||
+				   (filled.isEmpty() && target >= fetchPos && target < fetchPos + blockSize))
+				{
+					if(current != null)
+						free.add(current);
+					current = null;
+					pos = target;
+					lock.notifyAll();
+					return;
+				}
+			}
+
+			// Otherwise, start again from the new position.
+			invalidationCount++;
+			generation++;
+			if(current != null)
+				free.add(current);
+			current = null;
+			free.addAll(filled);
+			filled.clear();
+			pos = fetchPos = target;
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public long getPos() throws IOException {
+		return pos;
+	}
+
+	@Override
+	public boolean seekToNewSource(long targetPos) throws IOException {
+		return false;
+	}
+
+	@Override
+	public int available() throws IOException {
+		synchronized (lock) {
+			long buffered = current != null ? current.length - currentOffset : 0;
+			for(Block block : filled)
+				buffered += block.length;
+			return (int)Math.min(buffered, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Stops the fetcher thread, but leaves the wrapped stream open.
+	 */
+	public void shutdown()
+	{
+		synchronized (lock) {
+			if(closed)
+				return;
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			fetcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		shutdown();
+		in.close();
+	}
+
+	public long getBytesServed() {
+		return bytesServed;
+	}
+
+	public long getBytesFetched() {
+		synchronized (lock) {
+			return bytesFetched;
+		}
+	}
+
+	public long getStallCount() {
+		synchronized (lock) {
+			return stallCount;
+		}
+	}
+
+	public long getStallTimeMs() {
+		synchronized (lock) {
+			return stallNanos / 1000000;
+		}
+	}
+
+	public long getSeekCount() {
+		synchronized (lock) {
+			return seekCount;
+		}
+	}
+
+	public long getInvalidationCount() {
+		synchronized (lock) {
+			return invalidationCount;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (lock) {
+			return "Prefetch: " + FileUtils.humanReadableByteCount(bytesServed, false) + " served, " +
+					FileUtils.humanReadableByteCount(bytesFetched, false) + " fetched, " +
+					stallCount + " stalls (" + (stallNanos / 1000000) + "ms), " +
+					seekCount + " seeks (" + invalidationCount + " invalidated the buffer).";
+		}
+	}
+}
@@ -32,10 +32,10 @@ JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_initDemuxWithFil
 /*
  * Class:     com_tstordyallison_ffmpegmr_Demuxer
  * Method:    initDemuxWithStream
- * Signature: (Lorg/apache/hadoop/fs/FSDataInputStream;J)I
+ * Signature: (Lorg/apache/hadoop/fs/FSDataInputStream;JIZ[[BJ)I
  */
 JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_initDemuxWithStream
-  (JNIEnv *, jobject, jobject, jlong);
+  (JNIEnv *, jobject, jobject, jlong, jint, jboolean, jobjectArray, jlong);
 
 /*
  * Class:     com_tstordyallison_ffmpegmr_Demuxer
@@ -61,6 +61,22 @@ JNIEXPORT jbyteArray JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamD
 JNIEXPORT jobject JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getNextChunkImpl
   (JNIEnv *, jobject);
 
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    readPacketsImpl
+ * Signature: (ILjava/nio/ByteBuffer;[I[J[J[Z[I[I[J)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_readPacketsImpl
+  (JNIEnv *, jobject, jint, jobject, jintArray, jlongArray, jlongArray, jbooleanArray, jintArray, jintArray, jlongArray);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getTimeBaseDen
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getTimeBaseDen
+  (JNIEnv *, jobject);
+
 /*
  * Class:     com_tstordyallison_ffmpegmr_Demuxer
  * Method:    getStreamMediaTypeRaw
@@ -79,10 +95,82 @@ JNIEXPORT jlong JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getDurationMs
 
 /*
  * Class:     com_tstordyallison_ffmpegmr_Demuxer
- * Method:    close
+ * Method:    usedProbedHeaders
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_usedProbedHeaders
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getStreamIndexSize
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamIndexSize
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getStreamFrameCount
+ * Signature: (I)J
+ */
+JNIEXPORT jlong JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamFrameCount
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getStreamIndexImpl
+ * Signature: (I[J[J[Z[I)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamIndexImpl
+  (JNIEnv *, jobject, jint, jlongArray, jlongArray, jbooleanArray, jintArray);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    getStreamParamsImpl
+ * Signature: (I[J)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_getStreamParamsImpl
+  (JNIEnv *, jobject, jint, jlongArray);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    seekImpl
+ * Signature: (IJ)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_seekImpl
+  (JNIEnv *, jobject, jint, jlong);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    startChunkAssemblyImpl
+ * Signature: ([J)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_startChunkAssemblyImpl
+  (JNIEnv *, jobject, jlongArray);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    readChunkImpl
+ * Signature: ([J)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_readChunkImpl
+  (JNIEnv *, jobject, jlongArray);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    takeChunkImpl
+ * Signature: (Ljava/nio/ByteBuffer;)I
+ */
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_takeChunkImpl
+  (JNIEnv *, jobject, jobject);
+
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Demuxer
+ * Method:    closeImpl
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_close
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Demuxer_closeImpl
   (JNIEnv *, jobject);
 
 #ifdef __cplusplus
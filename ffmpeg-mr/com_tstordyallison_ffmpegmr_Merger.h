@@ -31,6 +31,14 @@ JNIEXPORT void JNICALL Java_com_tstordyallison_ffmpegmr_Merger_initWithOutputStr
 JNIEXPORT void JNICALL Java_com_tstordyallison_ffmpegmr_Merger_addSegment___3BJJ
   (JNIEnv *, jobject, jbyteArray, jlong, jlong);
 
+/*
+ * Class:     com_tstordyallison_ffmpegmr_Merger
+ * Method:    addSegment
+ * Signature: (Ljava/nio/ByteBuffer;JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_tstordyallison_ffmpegmr_Merger_addSegment__Ljava_nio_ByteBuffer_2JJ
+  (JNIEnv *, jobject, jobject, jlong, jlong);
+
 /*
  * Class:     com_tstordyallison_ffmpegmr_Merger
  * Method:    addSegment
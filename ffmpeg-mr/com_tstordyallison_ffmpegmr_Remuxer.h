@@ -9,11 +9,11 @@ extern "C" {
 #endif
 /*
  * Class:     com_tstordyallison_ffmpegmr_Remuxer
- * Method:    muxChunks
- * Signature: (Ljava/lang/Iterable;)[B
+ * Method:    muxBuffers
+ * Signature: ([Ljava/nio/ByteBuffer;[I[I)[B
  */
-JNIEXPORT jbyteArray JNICALL Java_com_tstordyallison_ffmpegmr_Remuxer_muxChunks
-  (JNIEnv *, jclass, jobject);
+JNIEXPORT jbyteArray JNICALL Java_com_tstordyallison_ffmpegmr_Remuxer_muxBuffers
+  (JNIEnv *, jclass, jobjectArray, jintArray, jintArray);
 
 #ifdef __cplusplus
 }
@@ -10,10 +10,10 @@ extern "C" {
 /*
  * Class:     com_tstordyallison_ffmpegmr_Transcoder
  * Method:    initWithBytes
- * Signature: (JJ[J[BDDIII)I
+ * Signature: (JJ[J[BLjava/nio/ByteBuffer;IDDIII)I
  */
 JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_initWithBytes
-  (JNIEnv *, jobject, jlong, jlong, jlongArray, jbyteArray, jdouble, jdouble, jint, jint, jint);
+  (JNIEnv *, jobject, jlong, jlong, jlongArray, jbyteArray, jobject, jint, jdouble, jdouble, jint, jint, jint);
 
 /*
  * Class:     com_tstordyallison_ffmpegmr_Transcoder
@@ -33,10 +33,10 @@ JNIEXPORT jbyteArray JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_getStre
 
 /*
  * Class:     com_tstordyallison_ffmpegmr_Transcoder
- * Method:    close
+ * Method:    closeNative
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_close
+JNIEXPORT jint JNICALL Java_com_tstordyallison_ffmpegmr_Transcoder_closeNative
   (JNIEnv *, jobject);
 
 #ifdef __cplusplus
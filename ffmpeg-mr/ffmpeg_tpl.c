@@ -177,6 +177,70 @@ int read_avstream_chunk_from_memory(uint8_t *buf, int buf_size, AVFormatContext
 
 }
 
+// Loads a stream header back over an existing stream (e.g. one that avformat_open_input has just created), in place of
+// probing it with avformat_find_stream_info. The stream keeps its own time base, as the demuxer uses it for the packets.
+int read_avstream_chunk_into_stream(uint8_t *buf, size_t buf_size, AVStream *stream){
+    tpl_node *tn;
+    tpl_bin data;
+    AVRational time_base;
+    int ret;
+    
+    tn = tpl_map(AVSTREAM_TPL_FORMAT,
+                 &(time_base.num),
+                 &(time_base.den),
+                 &(stream->r_frame_rate.num),
+                 &(stream->r_frame_rate.den),
+                 &(stream->sample_aspect_ratio.num),
+                 &(stream->sample_aspect_ratio.den),
+                 &(stream->codec->flags),
+                 &(stream->codec->bits_per_raw_sample),
+                 &(stream->codec->chroma_sample_location),
+                 &(stream->codec->codec_id),
+                 &(stream->codec->codec_type),
+                 &(stream->codec->bit_rate),
+                 &(stream->codec->time_base.num),
+                 &(stream->codec->time_base.den),
+                 &(stream->codec->channel_layout),
+                 &(stream->codec->sample_rate),
+                 &(stream->codec->channels),
+                 &(stream->codec->sample_fmt),
+                 &(stream->codec->frame_size),
+                 &(stream->codec->audio_service_type),
+                 &(stream->codec->block_align),
+                 &(stream->codec->pix_fmt),
+                 &(stream->codec->width),
+                 &(stream->codec->height),
+                 &(stream->codec->has_b_frames),
+                 &(stream->codec->sample_aspect_ratio.num),
+                 &(stream->codec->sample_aspect_ratio.den),
+                 &(stream->codec->ticks_per_frame),
+                 &data);
+    
+    ret = tpl_load(tn, TPL_MEM|TPL_EXCESS_OK, buf, buf_size);
+    if(ret < 0){
+        tpl_free(tn);
+        return ret;
+    }
+    tpl_unpack(tn, 0);
+    tpl_free(tn);
+    
+    // Swap in the extradata (padded, as the decoders expect).
+    av_freep(&stream->codec->extradata);
+    stream->codec->extradata_size = 0;
+    if(data.sz > 0){
+        stream->codec->extradata = av_mallocz(data.sz + FF_INPUT_BUFFER_PADDING_SIZE);
+        memcpy(stream->codec->extradata, data.addr, data.sz);
+        stream->codec->extradata_size = data.sz;
+    }
+    free(data.addr);
+    stream->codec->codec_tag = 0;
+    
+    if(stream->avg_frame_rate.num == 0)
+        stream->avg_frame_rate = stream->r_frame_rate;
+    
+    return 0;
+}
+
 int read_avstream_chunk_from_fd(int fd, AVFormatContext *os, AVStream **new_stream){
     
     AVStream *stream;
@@ -465,6 +529,35 @@ int write_avpacket_chunk_to_memory(AVPacket *pkt, uint8_t **unallocd_buffer, int
     
 }
 
+// Writes the packet TPL straight into a caller owned buffer. Returns 1 (and the size needed) if it does not fit.
+int write_avpacket_chunk_to_buffer(AVPacket *pkt, uint8_t *buffer, size_t buffer_size, size_t *size){
+    tpl_node *tn;
+    tpl_bin data;
+    int ret;
+    
+    data.sz = pkt->size;
+    data.addr = pkt->data;
+    
+    tn = tpl_map(AVPACKET_TPL_FORMAT,
+                 &(pkt->pts), 
+                 &(pkt->dts),
+                 &(pkt->flags),
+                 &(pkt->duration),
+                 &(pkt->convergence_duration),
+                 &(pkt->stream_index),
+                 &data);
+    
+    tpl_pack(tn,0);
+    tpl_dump(tn, TPL_GETSIZE, size);
+    if(*size > buffer_size)
+        ret = 1;
+    else
+        ret = tpl_dump(tn, TPL_MEM|TPL_PREALLOCD, buffer, buffer_size);
+    tpl_free(tn);
+    
+    return ret;
+}
+
 int write_avpacket_chunk_to_fd(AVPacket *pkt, int fd){
     uint8_t *buffer;
     int size, ret;
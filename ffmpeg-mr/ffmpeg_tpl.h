@@ -19,6 +19,7 @@ int tpl_gather_image_list(uint8_t *data, size_t size, TPLImageRef **list, size_t
 int read_avstream_chunk_as_cc_from_memory(uint8_t *buf, size_t buf_size, AVCodecContext **codec_ref, AVRational *stream_time_base, AVRational *stream_frame_rate, AVRational *stream_aspect_ratio);
 int read_avstream_chunk_from_memory(uint8_t *buf, int buf_size, AVFormatContext *os, AVStream **stream);
 int read_avstream_chunk_from_fd(int fd, AVFormatContext *os, AVStream **stream);
+int read_avstream_chunk_into_stream(uint8_t *buf, size_t buf_size, AVStream *stream);
 
 int write_avstream_chunk_as_cc_to_memory(AVCodecContext *codec_ref, AVRational stream_time_base, AVRational stream_frame_rate, AVRational stream_aspect_ratio, uint8_t **unallocd_buffer, int *size);
 int write_avstream_chunk_to_memory(AVStream *stream, uint8_t **unallocd_buffer, int *size);
@@ -30,4 +31,5 @@ int read_avpacket_chunk_from_memory(uint8_t *buf, size_t buf_size, AVPacket *pkt
 int read_avpacket_chunk_from_fd(int fd, AVPacket *pkt);
 
 int write_avpacket_chunk_to_memory(AVPacket *pkt, uint8_t **unallocd_buffer, int *size);
+int write_avpacket_chunk_to_buffer(AVPacket *pkt, uint8_t *buffer, size_t buffer_size, size_t *size);
 int write_avpacket_chunk_to_fd(AVPacket *pkt, int fd);
\ No newline at end of file